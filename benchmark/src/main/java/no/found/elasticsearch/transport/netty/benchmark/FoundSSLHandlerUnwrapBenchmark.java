@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2013, Found AS.
+ * See LICENSE for details.
+ */
+
+package no.found.elasticsearch.transport.netty.benchmark;
+
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.openjdk.jmh.annotations.*;
+
+import javax.net.ssl.SSLException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how fast a client {@link no.found.elasticsearch.transport.netty.ssl.FoundSSLHandler} decrypts
+ * messages of a given size.
+ *
+ * The records are encrypted by the in-memory server as part of each operation, as every record can only be
+ * decrypted once. {@link #serverWrap} measures that part on its own, so it can be subtracted from
+ * {@link #unwrap}. Run with {@code sbt "benchmark/run -prof gc"} to also report the bytes allocated per
+ * message ({@code gc.alloc.rate.norm}).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgs = {"-Xms1g", "-Xmx1g"})
+@State(Scope.Thread)
+public class FoundSSLHandlerUnwrapBenchmark {
+    @Param({"100", "1024", "16384", "65536", "1048576", "4194304"})
+    public int size;
+
+    @Param({"false", "true"})
+    public boolean batchUnwrap;
+
+    @Param({"TLSv1.3"})
+    public String protocol;
+
+    private InMemorySSLConnection connection;
+    private ByteBuffer message;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        connection = new InMemorySSLConnection(ImmutableSettings.settingsBuilder()
+            .put("transport.found.ssl.unsafe_allow_self_signed", true)
+            .put("transport.found.ssl.handshake_executor.size", 0)
+            .put("transport.found.ssl.batch_unwrap", batchUnwrap)
+            .build(), protocol);
+        connection.setCaptureClientWrites(false);
+
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        message = ByteBuffer.wrap(bytes);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        connection.close();
+    }
+
+    @Benchmark
+    public long unwrap(ThroughputCounters counters) throws SSLException {
+        message.clear();
+        connection.serverWrite(message);
+        counters.bytes += size;
+        return connection.getClientBytesReceived();
+    }
+
+    @Benchmark
+    public long serverWrap(ThroughputCounters counters) throws SSLException {
+        message.clear();
+        connection.serverWrite(message, false);
+        counters.bytes += size;
+        return connection.getClientBytesReceived();
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2013, Found AS.
+ * See LICENSE for details.
+ */
+
+package no.found.elasticsearch.transport.netty.benchmark;
+
+import org.elasticsearch.common.netty.buffer.ChannelBuffers;
+import org.elasticsearch.common.netty.channel.ChannelFuture;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how fast a client {@link no.found.elasticsearch.transport.netty.ssl.FoundSSLHandler} encrypts
+ * writes of a given size. The encrypted records are counted and discarded.
+ *
+ * Run with {@code sbt "benchmark/run -prof gc"} to also report the bytes allocated per write
+ * ({@code gc.alloc.rate.norm}).
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgs = {"-Xms1g", "-Xmx1g"})
+@State(Scope.Thread)
+public class FoundSSLHandlerWrapBenchmark {
+    @Param({"100", "1024", "16384", "65536", "1048576", "4194304"})
+    public int size;
+
+    @Param({"false", "true"})
+    public boolean wrapDirect;
+
+    @Param({"TLSv1.3"})
+    public String protocol;
+
+    private InMemorySSLConnection connection;
+    private byte[] message;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        connection = new InMemorySSLConnection(ImmutableSettings.settingsBuilder()
+            .put("transport.found.ssl.unsafe_allow_self_signed", true)
+            .put("transport.found.ssl.handshake_executor.size", 0)
+            .put("transport.found.ssl.wrap_direct", wrapDirect)
+            .build(), protocol);
+        connection.setCaptureClientWrites(false);
+
+        message = new byte[size];
+        new Random(size).nextBytes(message);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        connection.close();
+    }
+
+    @Benchmark
+    public ChannelFuture wrap(ThroughputCounters counters) {
+        ChannelFuture future = connection.clientWrite(ChannelBuffers.wrappedBuffer(message));
+        counters.bytes += size;
+        return future;
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * Copyright (c) 2013, Found AS.
+ * See LICENSE for details.
+ */
+
+package no.found.elasticsearch.transport.netty.benchmark;
+
+import no.found.elasticsearch.transport.netty.FoundSSLHandlerFactory;
+import no.found.elasticsearch.transport.netty.LocalSSLEchoServer;
+import no.found.elasticsearch.transport.netty.ssl.FoundSSLHandler;
+import org.elasticsearch.common.netty.buffer.ChannelBuffer;
+import org.elasticsearch.common.netty.buffer.ChannelBuffers;
+import org.elasticsearch.common.netty.channel.*;
+import org.elasticsearch.common.settings.Settings;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * A client {@link FoundSSLHandler} connected to an in-memory server {@link SSLEngine}.
+ *
+ * The handler sits in a regular {@link DefaultChannelPipeline}, attached to a stub {@link Channel} whose
+ * {@link ChannelSink} collects the encrypted writes instead of sending them anywhere. Everything runs in the
+ * calling thread: there are no sockets, no I/O threads and no handshake executor.
+ */
+public class InMemorySSLConnection {
+    /**
+     * The number of bytes handed to the client per read, about what an NIO worker reads at a time.
+     */
+    public static final int READ_SIZE = 64 * 1024;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final int MAX_HANDSHAKE_ROUNDS = 100;
+
+    private final InetSocketAddress remoteAddress = InetSocketAddress.createUnresolved("localhost", 9343);
+    private final InetSocketAddress localAddress = InetSocketAddress.createUnresolved("localhost", 0);
+
+    private final FoundSSLHandlerFactory factory;
+    private final FoundSSLHandler clientHandler;
+    private final SSLEngine serverEngine;
+    private final StubChannel channel;
+
+    private final Queue<ChannelBuffer> clientWrites = new ArrayDeque<ChannelBuffer>();
+    private boolean captureClientWrites = true;
+    private long clientBytesWritten;
+    private long clientBytesReceived;
+
+    private ByteBuffer serverInNet;
+    private final ByteBuffer serverOutNet;
+    private final ByteBuffer serverApp;
+
+    /**
+     * Creates the connection and completes the handshake.
+     *
+     * @param settings the {@code transport.found.ssl.*} settings to create the client handler with.
+     * @param protocol the protocol the server accepts.
+     */
+    public InMemorySSLConnection(Settings settings, String protocol) throws Exception {
+        factory = new FoundSSLHandlerFactory(settings);
+        clientHandler = factory.newHandler(remoteAddress);
+
+        serverEngine = LocalSSLEchoServer.createContext().createSSLEngine();
+        serverEngine.setUseClientMode(false);
+        serverEngine.setEnabledProtocols(new String[]{protocol});
+
+        int packetBufferSize = serverEngine.getSession().getPacketBufferSize();
+        serverInNet = ByteBuffer.allocate(packetBufferSize);
+        serverOutNet = ByteBuffer.allocate(READ_SIZE + packetBufferSize);
+        serverApp = ByteBuffer.allocate(serverEngine.getSession().getApplicationBufferSize());
+
+        ChannelPipeline pipeline = new DefaultChannelPipeline();
+        pipeline.addLast("ssl", clientHandler);
+        pipeline.addLast("receiver", new SimpleChannelUpstreamHandler() {
+            @Override
+            public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+                clientBytesReceived += ((ChannelBuffer) e.getMessage()).readableBytes();
+            }
+        });
+        channel = new StubChannel(pipeline, new StubChannelSink());
+        Channels.fireChannelOpen(channel);
+        Channels.fireChannelConnected(channel, remoteAddress);
+
+        handshake(protocol);
+    }
+
+    private void handshake(String protocol) throws Exception {
+        ChannelFuture handshakeFuture = clientHandler.handshake();
+        for (int round = 0; round < MAX_HANDSHAKE_ROUNDS; round++) {
+            if (!pumpServer() && handshakeFuture.isDone()) {
+                break;
+            }
+        }
+        if (!handshakeFuture.isSuccess()) {
+            throw new IllegalStateException("The handshake did not complete", handshakeFuture.getCause());
+        }
+        String negotiated = clientHandler.getEngine().getSession().getProtocol();
+        if (!protocol.equals(negotiated)) {
+            throw new IllegalStateException("Negotiated [" + negotiated + "] instead of [" + protocol + "]");
+        }
+    }
+
+    public FoundSSLHandler getClientHandler() {
+        return clientHandler;
+    }
+
+    /**
+     * Sets whether the encrypted client writes are kept for the server to read, or discarded.
+     */
+    public void setCaptureClientWrites(boolean captureClientWrites) {
+        this.captureClientWrites = captureClientWrites;
+        if (!captureClientWrites) {
+            clientWrites.clear();
+        }
+    }
+
+    /**
+     * Returns the number of encrypted bytes the client has written.
+     */
+    public long getClientBytesWritten() {
+        return clientBytesWritten;
+    }
+
+    /**
+     * Returns the number of decrypted bytes the client has received.
+     */
+    public long getClientBytesReceived() {
+        return clientBytesReceived;
+    }
+
+    /**
+     * Writes the message through the client pipeline.
+     */
+    public ChannelFuture clientWrite(ChannelBuffer message) {
+        return Channels.write(channel, message);
+    }
+
+    /**
+     * Encrypts the message on the server, and hands the records to the client in reads of up to
+     * {@link #READ_SIZE} bytes.
+     */
+    public void serverWrite(ByteBuffer message) throws SSLException {
+        serverWrite(message, true);
+    }
+
+    /**
+     * Encrypts the message on the server, and either hands the records to the client or discards them.
+     */
+    public void serverWrite(ByteBuffer message, boolean deliver) throws SSLException {
+        int packetBufferSize = serverEngine.getSession().getPacketBufferSize();
+        while (message.hasRemaining()) {
+            serverOutNet.clear();
+            while (message.hasRemaining() && serverOutNet.remaining() >= packetBufferSize
+                    && serverOutNet.position() < READ_SIZE) {
+                SSLEngineResult result = serverEngine.wrap(message, serverOutNet);
+                if (result.getStatus() != SSLEngineResult.Status.OK) {
+                    throw new SSLException("Unexpected server wrap result: " + result);
+                }
+            }
+            serverOutNet.flip();
+            if (deliver) {
+                // the client copies whatever it does not decode right away, so the buffer can be reused.
+                Channels.fireMessageReceived(channel, ChannelBuffers.wrappedBuffer(serverOutNet));
+            }
+        }
+    }
+
+    /**
+     * Closes the client channel and releases the resources of the client handler factory.
+     */
+    public void close() {
+        Channels.close(channel);
+        factory.close();
+    }
+
+    /**
+     * Lets the server read the captured client writes and hands its responses to the client.
+     *
+     * @return {@code true} if any data was moved in either direction.
+     */
+    private boolean pumpServer() throws SSLException {
+        boolean progress = false;
+
+        ChannelBuffer write;
+        while ((write = clientWrites.poll()) != null) {
+            if (serverInNet.remaining() < write.readableBytes()) {
+                ByteBuffer larger = ByteBuffer.allocate(serverInNet.position() + write.readableBytes());
+                serverInNet.flip();
+                larger.put(serverInNet);
+                serverInNet = larger;
+            }
+            serverInNet.put(write.toByteBuffer());
+        }
+
+        serverInNet.flip();
+        try {
+            while (serverInNet.hasRemaining()) {
+                SSLEngineResult result = serverEngine.unwrap(serverInNet, serverApp);
+                serverApp.clear();
+                runDelegatedTasks();
+                if (result.bytesConsumed() == 0 || result.getStatus() != SSLEngineResult.Status.OK) {
+                    break;
+                }
+                progress = true;
+                if (serverEngine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                    break;
+                }
+            }
+        } finally {
+            serverInNet.compact();
+        }
+
+        while (serverEngine.getHandshakeStatus() == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+            serverOutNet.clear();
+            SSLEngineResult result = serverEngine.wrap(EMPTY, serverOutNet);
+            runDelegatedTasks();
+            serverOutNet.flip();
+            if (serverOutNet.hasRemaining()) {
+                Channels.fireMessageReceived(channel, ChannelBuffers.copiedBuffer(serverOutNet));
+                progress = true;
+            }
+            if (result.getStatus() != SSLEngineResult.Status.OK) {
+                break;
+            }
+        }
+        return progress;
+    }
+
+    private void runDelegatedTasks() {
+        Runnable task;
+        while ((task = serverEngine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    private class StubChannel extends AbstractChannel {
+        private final ChannelConfig config = new DefaultChannelConfig();
+
+        StubChannel(ChannelPipeline pipeline, ChannelSink sink) {
+            super(null, null, pipeline, sink);
+        }
+
+        public ChannelConfig getConfig() {
+            return config;
+        }
+
+        public boolean isBound() {
+            return isOpen();
+        }
+
+        public boolean isConnected() {
+            return isOpen();
+        }
+
+        public SocketAddress getLocalAddress() {
+            return localAddress;
+        }
+
+        public SocketAddress getRemoteAddress() {
+            return remoteAddress;
+        }
+
+        @Override
+        protected boolean setClosed() {
+            return super.setClosed();
+        }
+    }
+
+    private class StubChannelSink extends AbstractChannelSink {
+        public void eventSunk(ChannelPipeline pipeline, ChannelEvent e) throws Exception {
+            if (e instanceof MessageEvent) {
+                ChannelBuffer message = (ChannelBuffer) ((MessageEvent) e).getMessage();
+                clientBytesWritten += message.readableBytes();
+                if (captureClientWrites) {
+                    clientWrites.add(message);
+                }
+            } else if (e instanceof ChannelStateEvent) {
+                ChannelStateEvent event = (ChannelStateEvent) e;
+                if (event.getState() == ChannelState.OPEN && Boolean.FALSE.equals(event.getValue())) {
+                    if (channel.setClosed()) {
+                        Channels.fireChannelClosed(channel);
+                    }
+                }
+            }
+            e.getFuture().setSuccess();
+        }
+    }
+}
@@ -0,0 +1,27 @@
+/*
+ * Copyright (c) 2013, Found AS.
+ * See LICENSE for details.
+ */
+
+package no.found.elasticsearch.transport.netty.benchmark;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Counts the plaintext bytes a benchmark has moved. As the benchmarks report per microsecond, the
+ * counter reads as MB/s.
+ */
+@State(Scope.Thread)
+@AuxCounters
+public class ThroughputCounters {
+    public long bytes;
+
+    @Setup(Level.Iteration)
+    public void reset() {
+        bytes = 0;
+    }
+}
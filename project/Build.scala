@@ -123,6 +123,31 @@ object Build extends Build {
       publishTo := None
     )
 
+  val jmhVersion = "1.11.3"
+
+  // JMH benchmarks of the SSL handler, run with `benchmark/run` followed by the usual JMH arguments.
+  lazy val benchmark = Project("benchmark", file("./benchmark"))
+    // the benchmarks use the test keystore for their in-memory server.
+    .dependsOn(root % "compile->compile;compile->test")
+    .settings(Project.defaultSettings : _*)
+    .settings(
+      organizationName := foundOrganizationName,
+
+      libraryDependencies ++= Seq(
+        "org.elasticsearch" % "elasticsearch" % elasticsearchVersion,
+        "org.openjdk.jmh" % "jmh-core" % jmhVersion,
+        "org.openjdk.jmh" % "jmh-generator-annprocess" % jmhVersion
+      ),
+
+      mainClass in (Compile, run) := Some("org.openjdk.jmh.Main"),
+      // JMH forks its benchmark JVMs with the class path of the JVM it runs in.
+      fork in run := true,
+
+      publish := (),
+      publishLocal := (),
+      publishTo := None
+    )
+
   // configure prompt to show current project
   override lazy val settings = super.settings :+ {
     shellPrompt := { s => Project.extract(s).currentProject.id + " > " }
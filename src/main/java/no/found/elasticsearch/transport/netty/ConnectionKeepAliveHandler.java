@@ -3,41 +3,66 @@ package no.found.elasticsearch.transport.netty;
 import org.elasticsearch.common.netty.buffer.ChannelBuffer;
 import org.elasticsearch.common.netty.buffer.ChannelBuffers;
 import org.elasticsearch.common.netty.channel.*;
+import org.elasticsearch.common.netty.util.Timeout;
 import org.elasticsearch.common.unit.TimeValue;
 
-import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ConnectionKeepAliveHandler extends SimpleChannelHandler implements LifeCycleAwareChannelHandler {
-    private final ScheduledExecutorService scheduler;
+    private final ConnectionKeepAliveManager keepAliveManager;
     private final TimeValue keepAliveInterval;
     ChannelBuffer keepAliveBuffer = ChannelBuffers.copiedBuffer(new byte[]{'F', 'K', 0, 0, 0, 0});
-    private ScheduledFuture<?> currentScheduled;
+    private final AtomicBoolean registered = new AtomicBoolean();
+    private volatile Timeout timeout;
 
-    public ConnectionKeepAliveHandler(ScheduledExecutorService scheduler, TimeValue keepAliveInterval) {
-        this.scheduler = scheduler;
+    public ConnectionKeepAliveHandler(ConnectionKeepAliveManager keepAliveManager, TimeValue keepAliveInterval) {
+        this.keepAliveManager = keepAliveManager;
         this.keepAliveInterval = keepAliveInterval;
     }
 
+    public TimeValue getKeepAliveInterval() {
+        return keepAliveInterval;
+    }
 
-    private void addTimeoutTask(ChannelHandlerContext ctx) {
-        cancelCurrentScheduled();
-        currentScheduled = scheduler.schedule(new KeepAliveRunnable(ctx), 2, TimeUnit.SECONDS);
+    Timeout getTimeout() {
+        return timeout;
     }
 
-    private void cancelCurrentScheduled() {
-        if(currentScheduled != null && !currentScheduled.isCancelled() && !currentScheduled.isDone()) {
-            currentScheduled.cancel(true);
-        }
+    void setTimeout(Timeout timeout) {
+        this.timeout = timeout;
     }
 
-    private long lastWrite;
+    boolean isRegistered() {
+        return registered.get();
+    }
+
+    /**
+     * The time of the last read or write, from the coarse clock of the manager.
+     */
+    private volatile long lastActivity;
 
     @Override
-    synchronized public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+    public void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
         super.writeRequested(ctx, e);
-        lastWrite = System.currentTimeMillis();
+        touch();
+    }
+
+    @Override
+    public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+        touch();
+        super.messageReceived(ctx, e);
+    }
+
+    private void touch() {
+        long now = keepAliveManager.currentTimeMillis();
+        // the clock only moves once per tick, so most messages find the time already up to date
+        if (lastActivity != now) {
+            lastActivity = now;
+        }
+    }
+
+    long getIdleMillis() {
+        return keepAliveManager.currentTimeMillis() - lastActivity;
     }
 
     @Override
@@ -45,9 +70,11 @@ public class ConnectionKeepAliveHandler extends SimpleChannelHandler implements
     }
 
     @Override
-    synchronized public void afterAdd(ChannelHandlerContext channelHandlerContext) throws Exception {
-        lastWrite = System.currentTimeMillis();
-        addTimeoutTask(channelHandlerContext);
+    public void afterAdd(ChannelHandlerContext channelHandlerContext) throws Exception {
+        if (registered.compareAndSet(false, true)) {
+            keepAliveManager.register(this, channelHandlerContext);
+            touch();
+        }
     }
 
     @Override
@@ -56,36 +83,29 @@ public class ConnectionKeepAliveHandler extends SimpleChannelHandler implements
 
     @Override
     public void afterRemove(ChannelHandlerContext channelHandlerContext) throws Exception {
-        cancelCurrentScheduled();
+        unregister();
     }
 
-    class KeepAliveRunnable implements Runnable {
-        private final ChannelHandlerContext ctx;
-
-        public KeepAliveRunnable(ChannelHandlerContext ctx) {
-            this.ctx = ctx;
-        }
+    @Override
+    public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        unregister();
+        super.channelClosed(ctx, e);
+    }
 
-        @Override
-        public void run() {
-            if (!ctx.getChannel().isConnected()) return;
-
-            ctx.getPipeline().execute(new Runnable() {
-                @Override
-                public void run() {
-                    send(ctx, new DownstreamMessageEvent(ctx.getChannel(), Channels.future(ctx.getChannel()), keepAliveBuffer, ctx.getChannel().getRemoteAddress()));
-                    addTimeoutTask(ctx);
-                }
-            });
+    private void unregister() {
+        if (registered.compareAndSet(true, false)) {
+            keepAliveManager.unregister(this);
         }
     }
 
-    synchronized private void send(ChannelHandlerContext ctx, DownstreamMessageEvent downstreamMessageEvent) {
-        long now = System.currentTimeMillis();
-
-        if(now - lastWrite > keepAliveInterval.millis()) {
-            lastWrite = now;
-            ctx.sendDownstream(downstreamMessageEvent);
+    /**
+     * Sends a keep-alive message, unless the channel has been read from or written to within the interval.
+     */
+    void sendKeepAlive(ChannelHandlerContext ctx) {
+        if(getIdleMillis() >= keepAliveInterval.millis()) {
+            touch();
+            keepAliveManager.keepAliveSent();
+            ctx.sendDownstream(new DownstreamMessageEvent(ctx.getChannel(), Channels.future(ctx.getChannel()), keepAliveBuffer, ctx.getChannel().getRemoteAddress()));
         }
     }
 }
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2013, Found AS.
+ * See LICENSE for details.
+ */
+
+package no.found.elasticsearch.transport.netty;
+
+import org.elasticsearch.common.netty.channel.ChannelHandlerContext;
+import org.elasticsearch.common.netty.util.HashedWheelTimer;
+import org.elasticsearch.common.netty.util.Timeout;
+import org.elasticsearch.common.netty.util.Timer;
+import org.elasticsearch.common.netty.util.TimerTask;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.util.concurrent.jsr166e.LongAdder;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends the keep-alive messages of all the {@link ConnectionKeepAliveHandler}s of a transport from a
+ * single {@link HashedWheelTimer}.
+ *
+ * Every tracked channel has a single timeout, set to expire when the channel will have been idle for the
+ * keep-alive interval. Reads and writes only move the channel's last activity time, so a busy channel costs
+ * one timeout per interval, and only channels that are idle when their timeout expires have anything sent
+ * to them.
+ *
+ * The activity times are read from a coarse clock that the timer advances once per tick, so the handlers
+ * don't have to look up the current time for every message.
+ */
+public class ConnectionKeepAliveManager {
+    private static ConnectionKeepAliveManager defaultManager;
+
+    private final Timer timer;
+    private final AtomicInteger channelCount = new AtomicInteger();
+    private final LongAdder keepAlivesSent = new LongAdder();
+    private final AtomicBoolean clockStarted = new AtomicBoolean();
+    private volatile long currentTimeMillis = System.currentTimeMillis();
+
+    /**
+     * Creates a manager with a timer that ticks every second, using threads from the given factory.
+     */
+    public ConnectionKeepAliveManager(ThreadFactory threadFactory) {
+        this(new HashedWheelTimer(threadFactory, 1, TimeUnit.SECONDS));
+    }
+
+    public ConnectionKeepAliveManager(Timer timer) {
+        this.timer = timer;
+    }
+
+    /**
+     * Returns a manager shared by the handlers that were not given one. Its timer thread is a daemon
+     * thread that is never stopped.
+     */
+    public static synchronized ConnectionKeepAliveManager getDefault() {
+        if (defaultManager == null) {
+            defaultManager = new ConnectionKeepAliveManager(EsExecutors.daemonThreadFactory("found_keep_alive"));
+        }
+        return defaultManager;
+    }
+
+    /**
+     * Returns the current time in milliseconds, as of the last tick of the timer.
+     */
+    public long currentTimeMillis() {
+        return currentTimeMillis;
+    }
+
+    /**
+     * Returns the number of channels currently tracked.
+     */
+    public int getChannelCount() {
+        return channelCount.get();
+    }
+
+    /**
+     * Returns the number of keep-alive messages sent.
+     */
+    public long getKeepAlivesSent() {
+        return keepAlivesSent.sum();
+    }
+
+    /**
+     * Stops the timer. Channels tracked by this manager no longer get keep-alive messages.
+     */
+    public void close() {
+        timer.stop();
+    }
+
+    void register(ConnectionKeepAliveHandler handler, ChannelHandlerContext ctx) {
+        if (clockStarted.compareAndSet(false, true)) {
+            tick();
+        }
+        channelCount.incrementAndGet();
+        schedule(handler, ctx, handler.getKeepAliveInterval().millis());
+    }
+
+    void keepAliveSent() {
+        keepAlivesSent.increment();
+    }
+
+    void unregister(ConnectionKeepAliveHandler handler) {
+        Timeout timeout = handler.getTimeout();
+        if (timeout != null) {
+            timeout.cancel();
+        }
+        channelCount.decrementAndGet();
+    }
+
+    private void tick() {
+        currentTimeMillis = System.currentTimeMillis();
+        try {
+            // a zero delay expires on the next tick of the wheel.
+            timer.newTimeout(new TimerTask() {
+                @Override
+                public void run(Timeout timeout) throws Exception {
+                    tick();
+                }
+            }, 0, TimeUnit.MILLISECONDS);
+        } catch (IllegalStateException e) {
+            // the timer has been stopped
+        }
+    }
+
+    private void schedule(final ConnectionKeepAliveHandler handler, final ChannelHandlerContext ctx, long delayMillis) {
+        try {
+            handler.setTimeout(timer.newTimeout(new TimerTask() {
+                @Override
+                public void run(Timeout timeout) throws Exception {
+                    expired(handler, ctx);
+                }
+            }, delayMillis, TimeUnit.MILLISECONDS));
+        } catch (IllegalStateException e) {
+            // the timer has been stopped
+        }
+    }
+
+    private void expired(final ConnectionKeepAliveHandler handler, final ChannelHandlerContext ctx) {
+        if (!handler.isRegistered() || !ctx.getChannel().isOpen()) {
+            return;
+        }
+
+        long interval = handler.getKeepAliveInterval().millis();
+        long idle = handler.getIdleMillis();
+        if (idle < interval) {
+            // active since the timeout was set, check again when the channel may have become idle.
+            schedule(handler, ctx, interval - idle);
+            return;
+        }
+
+        if (ctx.getChannel().isConnected()) {
+            ctx.getPipeline().execute(new Runnable() {
+                @Override
+                public void run() {
+                    handler.sendKeepAlive(ctx);
+                }
+            });
+        }
+        schedule(handler, ctx, interval);
+    }
+}
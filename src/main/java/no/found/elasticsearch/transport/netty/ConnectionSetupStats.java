@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2013, Found AS.
+ * See LICENSE for details.
+ */
+
+package no.found.elasticsearch.transport.netty;
+
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+
+import java.beans.ConstructorProperties;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency histograms of the phases of setting up a connection to Found Elasticsearch, per remote
+ * address and outcome.
+ *
+ * The phases are resolving the host, connecting, the SSL handshake and the authentication with the
+ * Found header. The histograms are only updated when connections are set up, so they can be left on.
+ */
+public class ConnectionSetupStats {
+    public enum Phase {
+        DNS, CONNECT, HANDSHAKE, AUTHENTICATION
+    }
+
+    private final ConcurrentMap<Key, LatencyHistogram> histograms = ConcurrentCollections.newConcurrentMap();
+
+    /**
+     * Records how long a phase took.
+     *
+     * @param address the host or address the phase was for.
+     * @param success whether the phase succeeded.
+     */
+    public void record(Phase phase, String address, boolean success, long durationNanos) {
+        Key key = new Key(phase, address, success);
+        LatencyHistogram histogram = histograms.get(key);
+        if (histogram == null) {
+            LatencyHistogram existing = histograms.putIfAbsent(key, histogram = new LatencyHistogram());
+            if (existing != null) {
+                histogram = existing;
+            }
+        }
+        histogram.record(durationNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Records how long a phase took, from the given start time.
+     */
+    public void recordSince(Phase phase, SocketAddress address, boolean success, long startNanos) {
+        record(phase, address(address), success, System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Returns the address as {@code host/ip:port}, so connections to different addresses of the same
+     * host are told apart.
+     */
+    public static String address(SocketAddress address) {
+        if (address instanceof InetSocketAddress) {
+            InetSocketAddress inetAddress = (InetSocketAddress) address;
+            if (inetAddress.getAddress() == null) {
+                return inetAddress.getHostString() + ":" + inetAddress.getPort();
+            }
+            return inetAddress.getHostString() + "/" + inetAddress.getAddress().getHostAddress() + ":" + inetAddress.getPort();
+        }
+        return String.valueOf(address);
+    }
+
+    /**
+     * Returns a snapshot of every histogram.
+     */
+    public List<PhaseLatency> getLatencies() {
+        List<PhaseLatency> latencies = new ArrayList<PhaseLatency>(histograms.size());
+        for (Map.Entry<Key, LatencyHistogram> entry : histograms.entrySet()) {
+            Key key = entry.getKey();
+            LatencyHistogram histogram = entry.getValue();
+            latencies.add(new PhaseLatency(key.phase.name(), key.address, key.success ? "success" : "failure",
+                histogram.getCount(), histogram.getMeanMillis(), histogram.getQuantileMillis(0.5),
+                histogram.getQuantileMillis(0.9), histogram.getQuantileMillis(0.99), histogram.getMaxMillis()));
+        }
+        return latencies;
+    }
+
+    /**
+     * Returns the histogram of a phase, or {@code null} if nothing has been recorded for it.
+     */
+    public LatencyHistogram getHistogram(Phase phase, String address, boolean success) {
+        return histograms.get(new Key(phase, address, success));
+    }
+
+    private static final class Key {
+        final Phase phase;
+        final String address;
+        final boolean success;
+
+        Key(Phase phase, String address, boolean success) {
+            this.phase = phase;
+            this.address = address;
+            this.success = success;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return phase == other.phase && success == other.success && address.equals(other.address);
+        }
+
+        @Override
+        public int hashCode() {
+            return (phase.hashCode() * 31 + address.hashCode()) * 31 + (success ? 1 : 0);
+        }
+    }
+
+    /**
+     * A snapshot of the latencies of a phase, for a remote address and outcome.
+     */
+    public static class PhaseLatency {
+        private final String phase;
+        private final String address;
+        private final String outcome;
+        private final long count;
+        private final double meanMillis;
+        private final double p50Millis;
+        private final double p90Millis;
+        private final double p99Millis;
+        private final double maxMillis;
+
+        @ConstructorProperties({"phase", "address", "outcome", "count", "meanMillis", "p50Millis", "p90Millis", "p99Millis", "maxMillis"})
+        public PhaseLatency(String phase, String address, String outcome, long count, double meanMillis, double p50Millis, double p90Millis, double p99Millis, double maxMillis) {
+            this.phase = phase;
+            this.address = address;
+            this.outcome = outcome;
+            this.count = count;
+            this.meanMillis = meanMillis;
+            this.p50Millis = p50Millis;
+            this.p90Millis = p90Millis;
+            this.p99Millis = p99Millis;
+            this.maxMillis = maxMillis;
+        }
+
+        public String getPhase() {
+            return phase;
+        }
+
+        public String getAddress() {
+            return address;
+        }
+
+        public String getOutcome() {
+            return outcome;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public double getMeanMillis() {
+            return meanMillis;
+        }
+
+        public double getP50Millis() {
+            return p50Millis;
+        }
+
+        public double getP90Millis() {
+            return p90Millis;
+        }
+
+        public double getP99Millis() {
+            return p99Millis;
+        }
+
+        public double getMaxMillis() {
+            return maxMillis;
+        }
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2013, Found AS.
+ * See LICENSE for details.
+ */
+
+package no.found.elasticsearch.transport.netty;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the addresses of the hosts we connect to resolved in the background.
+ *
+ * Looking up a host only reads the cache. The first lookup of a host returns {@code null} and has the
+ * host resolved on the executor, after which it's re-resolved every refresh interval, so the addresses
+ * follow the DNS records of load balancers without anyone waiting for DNS. A caller that can't do without
+ * an address can {@link #resolveAddress(String) resolve} a host that isn't cached yet itself, once.
+ */
+public class FoundAddressResolver {
+    private final ESLogger logger;
+    private final ScheduledExecutorService scheduler;
+    private final Executor executor;
+    private final TimeValue refreshInterval;
+
+    private final ConcurrentMap<String, InetAddress[]> resolved = ConcurrentCollections.newConcurrentMap();
+    private final Set<String> resolving = ConcurrentCollections.newConcurrentSet();
+
+    private volatile ScheduledFuture<?> refreshTask;
+    private volatile ConnectionSetupStats setupStats;
+
+    /**
+     * @param scheduler the scheduler that triggers the refreshes.
+     * @param executor the executor that resolves the hosts, as resolving may block for a long time.
+     * @param refreshInterval how often to re-resolve the hosts. 0 disables the refreshes.
+     */
+    public FoundAddressResolver(ESLogger logger, ScheduledExecutorService scheduler, Executor executor, TimeValue refreshInterval) {
+        this.logger = logger;
+        this.scheduler = scheduler;
+        this.executor = executor;
+        this.refreshInterval = refreshInterval;
+    }
+
+    public TimeValue getRefreshInterval() {
+        return refreshInterval;
+    }
+
+    /**
+     * Sets the stats that the time it takes to resolve a host is recorded in.
+     */
+    public void setSetupStats(ConnectionSetupStats setupStats) {
+        this.setupStats = setupStats;
+    }
+
+    /**
+     * Starts re-resolving the known hosts every refresh interval.
+     */
+    public synchronized void start() {
+        if (refreshTask != null || refreshInterval.millis() <= 0) {
+            return;
+        }
+        refreshTask = scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                for (String host : resolved.keySet()) {
+                    resolveAsync(host);
+                }
+            }
+        }, refreshInterval.millis(), refreshInterval.millis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the refreshes. The cached addresses can still be looked up.
+     */
+    public synchronized void close() {
+        if (refreshTask != null) {
+            refreshTask.cancel(false);
+            refreshTask = null;
+        }
+    }
+
+    /**
+     * Returns the latest resolved address of the host, or {@code null} if it has not been resolved yet.
+     */
+    public InetAddress getAddress(String host) {
+        InetAddress[] addresses = getAddresses(host);
+        return addresses == null ? null : addresses[0];
+    }
+
+    /**
+     * Returns all the latest resolved addresses of the host, or {@code null} if it has not been resolved yet.
+     */
+    public InetAddress[] getAddresses(String host) {
+        InetAddress[] addresses = resolved.get(host);
+        if (addresses == null) {
+            resolveAsync(host);
+            return null;
+        }
+        return addresses.clone();
+    }
+
+    /**
+     * Returns the latest resolved address of the host. If it has not been resolved yet, it's resolved on the
+     * calling thread, which blocks until it is.
+     *
+     * @return the address, or {@code null} if the host can't be resolved.
+     */
+    public InetAddress resolveAddress(String host) {
+        InetAddress[] addresses = resolved.get(host);
+        if (addresses == null) {
+            resolve(host);
+            addresses = resolved.get(host);
+        }
+        return addresses == null ? null : addresses[0];
+    }
+
+    private void resolveAsync(final String host) {
+        if (!resolving.add(host)) {
+            return;
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        resolve(host);
+                    } finally {
+                        resolving.remove(host);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            resolving.remove(host);
+            logger.debug("Unable to schedule the resolution of [{}]", e, host);
+        }
+    }
+
+    private void resolve(String host) {
+        long startNanos = System.nanoTime();
+        boolean success = false;
+        try {
+            InetAddress[] addresses = lookup(host);
+            if (addresses.length > 0) {
+                resolved.put(host, addresses);
+                success = true;
+            }
+        } catch (UnknownHostException e) {
+            // keep using the addresses we had, if any.
+            logger.debug("Unable to resolve [{}]", e, host);
+        } finally {
+            ConnectionSetupStats setupStats = this.setupStats;
+            if (setupStats != null) {
+                setupStats.record(ConnectionSetupStats.Phase.DNS, host, success, System.nanoTime() - startNanos);
+            }
+        }
+    }
+
+    /**
+     * Resolves the host. Blocks until it's resolved.
+     */
+    protected InetAddress[] lookup(String host) throws UnknownHostException {
+        return InetAddress.getAllByName(host);
+    }
+}
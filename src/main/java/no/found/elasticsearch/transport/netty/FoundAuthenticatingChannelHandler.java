@@ -6,20 +6,30 @@
 package no.found.elasticsearch.transport.netty;
 
 import no.found.elasticsearch.transport.netty.ssl.FoundSSLHandler;
+import org.elasticsearch.ElasticsearchException;
 import org.elasticsearch.cluster.ClusterName;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.netty.buffer.ChannelBuffer;
 import org.elasticsearch.common.netty.buffer.ChannelBuffers;
 import org.elasticsearch.common.netty.channel.*;
+import org.elasticsearch.common.settings.ImmutableSettings;
 import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
 
 import java.io.IOException;
 import java.net.ConnectException;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.UnresolvedAddressException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * A {@link ChannelHandler} that can work with both Found Elasticsearch and the
@@ -33,66 +43,213 @@ import java.util.concurrent.ScheduledExecutorService;
  * If the header response is "OK" (200 <= status code <= 299), the connection has
  * been established and the original Elasticsearch transport pipeline handlers are
  * added to the pipeline and this handler removes itself from the pipeline.
+ *
+ * If the header is delayed, it is not sent as soon as the connection is established,
+ * but together with the first message written within the delay, so both go out in
+ * a single write. If nothing is written within the delay, the header is sent on its own.
+ *
+ * If writes are gated, the writes requested before the header response has arrived
+ * are held back. They are written as one message if the connection is accepted, and
+ * failed right away if it is not.
+ *
+ * The {@link #getAuthenticationFuture() authentication future} of the handler completes once the
+ * connection has been accepted, so the connection can be established ahead of its first request.
+ *
+ * A connection that sends revision 2 of the header is answered with the {@link FoundServerCapabilities
+ * capabilities} of the proxy, and its keep-alive interval is adjusted to them. If the proxy answers
+ * revision 2 with an unsupported revision response, the following connections to the host send revision 1
+ * for a while, see {@link FoundHeaderNegotiation}.
  */
 public class FoundAuthenticatingChannelHandler extends SimpleChannelHandler {
+    private static final ConcurrentMap<Boolean, FoundSSLHandlerFactory> sharedSslHandlerFactories = ConcurrentCollections.newConcurrentMap();
+
     private final ESLogger logger;
-    private final ClusterName clusterName;
-    private final String[] hostSuffixes;
-    private final int[] sslPorts;
-    private final String apiKey;
-    private final TimeValue keepAliveInterval;
-    private final boolean unsafeAllowSelfSigned;
     private final ScheduledExecutorService scheduler;
+    private volatile FoundConnectionProfile profile;
+    private FoundTransportHeader header;
+    private String remoteHost;
+    private volatile FoundServerCapabilities serverCapabilities = FoundServerCapabilities.NONE;
+    private volatile boolean revisionUnsupported;
 
     ChannelBuffer buffered = ChannelBuffers.EMPTY_BUFFER;
+    boolean cumulating = false;
     boolean isFoundCluster = false;
     boolean headerSent = false;
     boolean handshakeComplete = false;
+    private ScheduledFuture<?> delayedHeader;
+    private volatile ChannelFuture authenticationFuture;
+    private volatile boolean rejected;
+    private long authenticationStartNanos;
+    private final AtomicBoolean handshakeRecorded = new AtomicBoolean();
+    final List<MessageEvent> pendingWrites = new ArrayList<MessageEvent>();
 
     public FoundAuthenticatingChannelHandler(ESLogger logger, ScheduledExecutorService scheduler, ClusterName clusterName, TimeValue keepAliveInterval, boolean unsafeAllowSelfSigned, String[] hostSuffixes, int[] sslPorts, String apiKey) {
-        this.logger = logger;
+        this(logger, scheduler, clusterName, keepAliveInterval, sharedSslHandlerFactory(unsafeAllowSelfSigned), hostSuffixes, sslPorts, apiKey);
+    }
+
+    public FoundAuthenticatingChannelHandler(ESLogger logger, ScheduledExecutorService scheduler, ClusterName clusterName, TimeValue keepAliveInterval, FoundSSLHandlerFactory sslHandlerFactory, String[] hostSuffixes, int[] sslPorts, String apiKey) {
+        this(logger, scheduler, FoundConnectionProfile.builder()
+            .hostSuffixes(hostSuffixes)
+            .sslPorts(sslPorts)
+            .header(new FoundTransportHeader(clusterName.value(), apiKey))
+            .sslHandlerFactory(sslHandlerFactory)
+            .keepAliveInterval(keepAliveInterval)
+            .build());
+    }
 
+    /**
+     * Returns the SSL handler factory shared by the handlers created without one. It is created once and
+     * never closed, so it runs the handshake tasks inline rather than on threads of its own.
+     */
+    private static FoundSSLHandlerFactory sharedSslHandlerFactory(boolean unsafeAllowSelfSigned) {
+        FoundSSLHandlerFactory factory = sharedSslHandlerFactories.get(unsafeAllowSelfSigned);
+        if (factory == null) {
+            FoundSSLHandlerFactory created = new FoundSSLHandlerFactory(ImmutableSettings.settingsBuilder()
+                .put("transport.found.ssl.unsafe_allow_self_signed", unsafeAllowSelfSigned)
+                .put("transport.found.ssl.handshake_executor.size", 0)
+                .build());
+            factory = sharedSslHandlerFactories.putIfAbsent(unsafeAllowSelfSigned, created);
+            if (factory == null) {
+                factory = created;
+            } else {
+                created.close();
+            }
+        }
+        return factory;
+    }
+
+    /**
+     * @param profile how to set up the connection. It may be shared by all the connections of a transport.
+     */
+    public FoundAuthenticatingChannelHandler(ESLogger logger, ScheduledExecutorService scheduler, FoundConnectionProfile profile) {
+        this.logger = logger;
         this.scheduler = scheduler;
-        this.clusterName = clusterName;
-        this.keepAliveInterval = keepAliveInterval;
-        this.unsafeAllowSelfSigned = unsafeAllowSelfSigned;
-        this.hostSuffixes = hostSuffixes;
-        this.sslPorts = sslPorts;
-        this.apiKey = apiKey;
+        this.profile = profile;
+        this.header = profile.getHeader();
+    }
+
+    public FoundConnectionProfile getProfile() {
+        return profile;
+    }
+
+    /**
+     * Replaces the profile of the connection, once the type of the connection is known. Must be called on the
+     * I/O thread of the channel, see {@link FoundConnectionProfile#applyTo(Channel)}.
+     */
+    void setProfile(FoundConnectionProfile profile) {
+        this.profile = profile;
+    }
+
+    /**
+     * Returns what Found Elasticsearch advertised when it accepted the connection, which is
+     * {@link FoundServerCapabilities#NONE nothing} until then or if it was accepted with revision 1.
+     */
+    public FoundServerCapabilities getServerCapabilities() {
+        return serverCapabilities;
+    }
+
+    /**
+     * Returns whether Found Elasticsearch rejected the connection because it does not know the revision of
+     * the header it was sent.
+     */
+    public boolean isRevisionUnsupported() {
+        return revisionUnsupported;
+    }
+
+    /**
+     * Returns a future that succeeds once Found Elasticsearch has accepted the connection, or right away
+     * if the connection is not to Found Elasticsearch. It fails if the connection is rejected or closed
+     * before that. Returns {@code null} until the connection has been requested.
+     */
+    public ChannelFuture getAuthenticationFuture() {
+        return authenticationFuture;
+    }
+
+    /**
+     * Returns whether Found Elasticsearch rejected the connection for any other reason than the revision
+     * of the header, so connecting again the same way is bound to be rejected as well.
+     */
+    public boolean isRejected() {
+        return rejected;
     }
 
     /**
      * Detects if we're connecting to a Found Elasticsearch cluster (using pre-configured
      * host suffixes) and adds a SSL handler at the beginning of the pipeline if we're connecting
-     * to a SSL-endpoint (using a list of pre-configured ports).
+     * to a SSL-endpoint (using a list of pre-configured ports). Connections to a
+     * {@link FoundRoutedAddress} send a header that routes them to its node.
      */
     @Override
     public void connectRequested(final ChannelHandlerContext ctx, final ChannelStateEvent e) throws Exception {
+        authenticationFuture = Channels.future(ctx.getChannel());
+        final ConnectionSetupStats setupStats = profile.getSetupStats();
+        if(setupStats != null) {
+            final SocketAddress remoteAddress = (SocketAddress) e.getValue();
+            final long connectStartNanos = System.nanoTime();
+            e.getFuture().addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    setupStats.recordSince(ConnectionSetupStats.Phase.CONNECT, remoteAddress, future.isSuccess(), connectStartNanos);
+                }
+            });
+        }
         if(e.getValue() instanceof InetSocketAddress) {
             InetSocketAddress inetSocketAddress = (InetSocketAddress)e.getValue();
 
-            for(String suffix: hostSuffixes) isFoundCluster = isFoundCluster || inetSocketAddress.getHostString().endsWith(suffix);
+            isFoundCluster = profile.isFoundHost(inetSocketAddress.getHostString());
 
             if(isFoundCluster) {
-                for(int sslPort: sslPorts) {
-                    if(inetSocketAddress.getPort() == sslPort) {
-                        logger.debug("Enabling SSL on transport layer with unsafeAllowSelfSigned=[{}].", unsafeAllowSelfSigned);
-                        FoundSSLHandler handler = FoundSSLUtils.getSSLHandler(unsafeAllowSelfSigned, inetSocketAddress);
-                        ctx.getPipeline().addFirst("ssl", handler);
-                        break;
+                remoteHost = inetSocketAddress.getHostString();
+                FoundHeaderNegotiation headerNegotiation = profile.getHeaderNegotiation();
+                if(headerNegotiation != null) {
+                    header = header.withRevision(headerNegotiation.revisionFor(remoteHost));
+                }
+                if(inetSocketAddress instanceof FoundRoutedAddress) {
+                    String nodeId = ((FoundRoutedAddress) inetSocketAddress).getNodeId();
+                    if(header.getRevision() < 2) {
+                        // revision 1 can't name the node, and the proxy would connect to any node of the cluster.
+                        ConnectException cause = new ConnectException("Routing to node [" + nodeId + "] requires revision 2 of the Found header");
+                        completeAuthentication(ctx, cause);
+                        e.getFuture().setFailure(cause);
+                        return;
                     }
+                    header = header.routedTo(nodeId);
+                }
+                if(profile.isSslPort(inetSocketAddress.getPort())) {
+                    FoundSSLHandlerFactory sslHandlerFactory = profile.getSslHandlerFactory();
+                    logger.debug("Enabling SSL on transport layer with unsafeAllowSelfSigned=[{}], wrapDirect=[{}], batchUnwrap=[{}].", sslHandlerFactory.isUnsafeAllowSelfSigned(), sslHandlerFactory.isWrapDirect(), sslHandlerFactory.isBatchUnwrap());
+                    FoundSSLHandler handler = sslHandlerFactory.newHandler(inetSocketAddress);
+                    ctx.getPipeline().addFirst("ssl", handler);
                 }
             } else {
+                completeAuthentication(ctx, null);
                 ctx.getPipeline().remove(this);
             }
+        } else {
+            completeAuthentication(ctx, null);
         }
         super.connectRequested(ctx, e);
     }
 
     @Override
-    public synchronized void channelConnected(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+    public synchronized void channelConnected(final ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        // the ssl handler ahead of us passes the event on right away, and starts the handshake with the first write.
+        FoundSSLHandler sslHandler = ctx.getPipeline().get(FoundSSLHandler.class);
+        ChannelFuture handshakeFuture = sslHandler == null ? null : sslHandler.getHandshakeFuture();
+        if(isFoundCluster && handshakeFuture != null && profile.getSetupStats() != null) {
+            handshakeFuture.addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    recordHandshake(ctx, future.isSuccess());
+                }
+            });
+        }
         if(isFoundCluster && !headerSent) {
-            sendHeader(ctx);
+            if(profile.isGateWrites() || profile.getHeaderDelay().millis() <= 0) {
+                sendHeader(ctx);
+            } else {
+                delayHeader(ctx);
+            }
         }
         super.channelConnected(ctx, e);
     }
@@ -100,44 +257,200 @@ public class FoundAuthenticatingChannelHandler extends SimpleChannelHandler {
     @Override
     public synchronized void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
         if(isFoundCluster && !headerSent) {
+            if(!profile.isGateWrites() && e.getMessage() instanceof ChannelBuffer) {
+                sendHeaderWith(ctx, e);
+                return;
+            }
             sendHeader(ctx);
         }
+        if(profile.isGateWrites() && isFoundCluster && !handshakeComplete) {
+            pendingWrites.add(e);
+            return;
+        }
         super.writeRequested(ctx, e);
     }
 
+    /**
+     * Writes the held back writes as a single message, which completes their futures once written.
+     */
+    private synchronized void flushPendingWrites(ChannelHandlerContext ctx) {
+        if (pendingWrites.isEmpty()) {
+            return;
+        }
+
+        final List<MessageEvent> writes = new ArrayList<MessageEvent>(pendingWrites);
+        pendingWrites.clear();
+
+        ChannelBuffer[] messages = new ChannelBuffer[writes.size()];
+        for (int i = 0; i < writes.size(); i++) {
+            Object message = writes.get(i).getMessage();
+            if (writes.size() == 1 || !(message instanceof ChannelBuffer)) {
+                // nothing to combine
+                for (MessageEvent write : writes) {
+                    ctx.sendDownstream(write);
+                }
+                return;
+            }
+            messages[i] = (ChannelBuffer) message;
+        }
+
+        ChannelFuture future = Channels.future(ctx.getChannel());
+        future.addListener(new ChannelFutureListener() {
+            @Override
+            public void operationComplete(ChannelFuture future) throws Exception {
+                for (MessageEvent write : writes) {
+                    if (future.isSuccess()) {
+                        write.getFuture().setSuccess();
+                    } else {
+                        write.getFuture().setFailure(future.getCause());
+                    }
+                }
+            }
+        });
+        ctx.sendDownstream(new DownstreamMessageEvent(ctx.getChannel(), future, ChannelBuffers.wrappedBuffer(messages), ctx.getChannel().getRemoteAddress()));
+    }
+
+    /**
+     * Records how long the SSL handshake took, unless it has already been recorded or there was none. Called
+     * when the handshake completes, or when the connection is closed before that.
+     */
+    private void recordHandshake(ChannelHandlerContext ctx, boolean success) {
+        ConnectionSetupStats setupStats = profile.getSetupStats();
+        if(setupStats == null || !isFoundCluster) {
+            return;
+        }
+        FoundSSLHandler sslHandler = ctx.getPipeline().get(FoundSSLHandler.class);
+        long handshakeStartNanos = sslHandler == null ? 0 : sslHandler.getHandshakeStartNanos();
+        if(handshakeStartNanos != 0 && handshakeRecorded.compareAndSet(false, true)) {
+            setupStats.recordSince(ConnectionSetupStats.Phase.HANDSHAKE, ctx.getChannel().getRemoteAddress(), success, handshakeStartNanos);
+        }
+    }
+
+    /**
+     * Completes the authentication future, unless it has already been completed.
+     *
+     * @param cause why the connection was not accepted, or {@code null} if it was.
+     */
+    private void completeAuthentication(ChannelHandlerContext ctx, Throwable cause) {
+        ChannelFuture future = authenticationFuture;
+        if (future == null || future.isDone()) {
+            return;
+        }
+        ConnectionSetupStats setupStats = profile.getSetupStats();
+        if (setupStats != null && headerSent) {
+            setupStats.recordSince(ConnectionSetupStats.Phase.AUTHENTICATION, ctx.getChannel().getRemoteAddress(), cause == null, authenticationStartNanos);
+        }
+        if (cause == null) {
+            future.setSuccess();
+        } else {
+            future.setFailure(cause);
+        }
+    }
+
+    /**
+     * Fails the held back writes.
+     */
+    private synchronized void failPendingWrites(Throwable cause) {
+        for (MessageEvent write : pendingWrites) {
+            write.getFuture().setFailure(cause);
+        }
+        pendingWrites.clear();
+    }
+
+    @Override
+    public void channelClosed(ChannelHandlerContext ctx, ChannelStateEvent e) throws Exception {
+        synchronized (this) {
+            cancelDelayedHeader();
+            recordHandshake(ctx, false);
+        }
+        failPendingWrites(new ClosedChannelException());
+        completeAuthentication(ctx, new ClosedChannelException());
+        super.channelClosed(ctx, e);
+    }
+
     private void sendHeader(ChannelHandlerContext ctx) throws IOException {
         headerSent = true;
+        authenticationStartNanos = System.nanoTime();
+        cancelDelayedHeader();
         logger.info("Authenticating with Found Elasticsearch at [{}] on connection [{}]", ctx.getChannel().getRemoteAddress(), ctx.getChannel().getLocalAddress());
-        ChannelBuffer message = new FoundTransportHeader(clusterName.value(), apiKey).getHeaderBuffer();
+        ChannelBuffer message = header.getHeaderBuffer();
 
         ctx.sendDownstream(new DownstreamMessageEvent(ctx.getChannel(), Channels.succeededFuture(ctx.getChannel()), message, ctx.getChannel().getRemoteAddress()));
     }
 
+    /**
+     * Sends the header and the given message as a single message, completing the future of the given message.
+     */
+    private void sendHeaderWith(ChannelHandlerContext ctx, MessageEvent e) throws IOException {
+        headerSent = true;
+        authenticationStartNanos = System.nanoTime();
+        cancelDelayedHeader();
+        logger.info("Authenticating with Found Elasticsearch at [{}] on connection [{}]", ctx.getChannel().getRemoteAddress(), ctx.getChannel().getLocalAddress());
+        ChannelBuffer message = ChannelBuffers.wrappedBuffer(header.getHeaderBuffer(), (ChannelBuffer) e.getMessage());
+
+        ctx.sendDownstream(new DownstreamMessageEvent(ctx.getChannel(), e.getFuture(), message, e.getRemoteAddress()));
+    }
+
+    /**
+     * Sends the header on its own if nothing has been written when the delay expires.
+     */
+    private void delayHeader(final ChannelHandlerContext ctx) {
+        delayedHeader = scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                ctx.getPipeline().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (FoundAuthenticatingChannelHandler.this) {
+                            if (headerSent || !ctx.getChannel().isConnected()) {
+                                return;
+                            }
+                            try {
+                                sendHeader(ctx);
+                            } catch (IOException e) {
+                                Channels.fireExceptionCaught(ctx, e);
+                            }
+                        }
+                    }
+                });
+            }
+        }, profile.getHeaderDelay().millis(), TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelDelayedHeader() {
+        if (delayedHeader != null) {
+            delayedHeader.cancel(false);
+            delayedHeader = null;
+        }
+    }
+
     @Override
     public void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
         if(handshakeComplete) {
             super.messageReceived(ctx, e);
         } else {
             if (e.getMessage() instanceof ChannelBuffer) {
-                ChannelBuffer newBuffer = (ChannelBuffer) e.getMessage();
-                buffered = ChannelBuffers.copiedBuffer(buffered, newBuffer);
+                cumulate((ChannelBuffer) e.getMessage());
 
                 if (buffered.readableBytes() < 8) {
                     return;
                 }
-                int payloadLength = buffered.getInt(0);
-                int revision = buffered.getInt(4);
+                int payloadLength = buffered.getInt(buffered.readerIndex());
+                int revision = buffered.getInt(buffered.readerIndex() + 4);
 
                 boolean handshakeSuccessful = false;
 
-                if (revision == 1 || revision == -1) {
+                if (revision == 1 || revision == 2 || revision == -1) {
                     if (buffered.readableBytes() < payloadLength + 4) {
                         return;
                     }
+                    int endIndex = buffered.readerIndex() + payloadLength + 4;
                     buffered.skipBytes(8);
 
                     if (revision == 1) {
                         handshakeSuccessful = handleRevision1Response(ctx, payloadLength);
+                    } else if (revision == 2) {
+                        handshakeSuccessful = handleRevision2Response(ctx, payloadLength, endIndex);
                     } else {
                         handshakeSuccessful = handleGenericResponse(ctx, payloadLength);
                     }
@@ -145,14 +458,31 @@ public class FoundAuthenticatingChannelHandler extends SimpleChannelHandler {
                     handshakeSuccessful = handleUnknownRevisionResponse(ctx);
                 }
 
+                if(revisionUnsupported) {
+                    downgradeRevision(ctx);
+                }
+
                 if(!handshakeSuccessful) {
+                    // a connection that was only rejected for its revision is retried with revision 1.
+                    rejected = !revisionUnsupported;
+                    ElasticsearchException cause = new ElasticsearchException("Found Elasticsearch did not accept the connection [" + ctx.getChannel().getLocalAddress() + "]");
+                    failPendingWrites(cause);
+                    completeAuthentication(ctx, cause);
                     ctx.getChannel().close();
+                    return;
                 }
 
-                if(keepAliveInterval.millis() > 0)
-                    ctx.getPipeline().addBefore(ctx.getName(), "found-connection-keep-alive", new ConnectionKeepAliveHandler(scheduler, keepAliveInterval));
+                TimeValue keepAliveInterval = serverCapabilities.adjustKeepAliveInterval(profile.getKeepAliveInterval());
+                if(keepAliveInterval.millis() > 0) {
+                    ConnectionKeepAliveManager keepAliveManager = profile.getKeepAliveManager();
+                    ctx.getPipeline().addBefore(ctx.getName(), "found-connection-keep-alive", new ConnectionKeepAliveHandler(keepAliveManager != null ? keepAliveManager : ConnectionKeepAliveManager.getDefault(), keepAliveInterval));
+                }
 
-                handshakeComplete = true;
+                synchronized (this) {
+                    handshakeComplete = true;
+                    flushPendingWrites(ctx);
+                }
+                completeAuthentication(ctx, null);
 
                 ChannelBuffer remaining = buffered.slice();
                 if (remaining.readableBytes() > 0)
@@ -163,8 +493,29 @@ public class FoundAuthenticatingChannelHandler extends SimpleChannelHandler {
         }
     }
 
+    /**
+     * Appends a received fragment to the buffered response. A fragment that arrives while nothing is
+     * buffered is used as-is, and is only copied into a growable buffer if more fragments are needed to
+     * complete the response, so every byte is copied at most once.
+     */
+    private void cumulate(ChannelBuffer fragment) {
+        if (!buffered.readable()) {
+            buffered = fragment;
+            cumulating = false;
+        } else {
+            if (!cumulating) {
+                ChannelBuffer cumulation = ChannelBuffers.dynamicBuffer(Math.max(256, buffered.readableBytes() + fragment.readableBytes()));
+                cumulation.writeBytes(buffered);
+                buffered = cumulation;
+                cumulating = true;
+            }
+            buffered.writeBytes(fragment);
+        }
+    }
+
     private boolean handleUnknownRevisionResponse(ChannelHandlerContext ctx) {
         logger.error("Unknown revision response received on connection [{}]", ctx.getChannel().getRemoteAddress(), ctx.getChannel().getLocalAddress());
+        authenticationFailed(FoundTransportMetrics.UNKNOWN_RESPONSE_CODE);
         return false;
     }
 
@@ -184,10 +535,42 @@ public class FoundAuthenticatingChannelHandler extends SimpleChannelHandler {
             return true;
         } else {
             logger.error("Unable to connect to Found Elasticsearch: [{}]: [{}] on connection [{}]", code, description, ctx.getChannel().getLocalAddress());
+            authenticationFailed(code);
+            checkRevisionUnsupported(code, description);
             return false;
         }
     }
 
+    private boolean handleRevision2Response(ChannelHandlerContext ctx, int payloadLength, int endIndex) throws Exception {
+        boolean accepted = handleRevision1Response(ctx, payloadLength);
+        if (accepted) {
+            FoundServerCapabilities capabilities = FoundServerCapabilities.read(buffered, endIndex);
+            logger.debug("Found Elasticsearch advertised [{}] on connection [{}]", capabilities, ctx.getChannel().getLocalAddress());
+            serverCapabilities = capabilities;
+            FoundHeaderNegotiation headerNegotiation = profile.getHeaderNegotiation();
+            if (headerNegotiation != null) {
+                headerNegotiation.accepted(remoteHost, capabilities);
+            }
+        }
+        // skip what a later revision of the proxy may have added
+        buffered.readerIndex(endIndex);
+        return accepted;
+    }
+
+    private void checkRevisionUnsupported(int code, String description) {
+        revisionUnsupported = header.getRevision() >= 2 && FoundHeaderNegotiation.isUnsupportedRevision(code, description);
+    }
+
+    /**
+     * Makes the following connections to the host send revision 1 of the header.
+     */
+    private void downgradeRevision(ChannelHandlerContext ctx) {
+        FoundHeaderNegotiation headerNegotiation = profile.getHeaderNegotiation();
+        if (headerNegotiation != null && headerNegotiation.revisionUnsupported(remoteHost)) {
+            logger.warn("Found Elasticsearch at [{}] does not know revision 2 of the header on connection [{}], falling back to revision 1", remoteHost, ctx.getChannel().getLocalAddress());
+        }
+    }
+
     private boolean handleGenericResponse(ChannelHandlerContext ctx, int payloadLength) throws Exception {
         int code = buffered.readInt();
 
@@ -198,10 +581,19 @@ public class FoundAuthenticatingChannelHandler extends SimpleChannelHandler {
         String description = new String(descBytes, StandardCharsets.UTF_8);
 
         logger.error("Unable to connect to Found Elasticsearch: [{}]: [{}] on connection [{}]", code, description, ctx.getChannel().getLocalAddress());
+        authenticationFailed(code);
+        checkRevisionUnsupported(code, description);
 
         return false;
     }
 
+    private void authenticationFailed(int code) {
+        FoundTransportMetrics metrics = profile.getMetrics();
+        if (metrics != null) {
+            metrics.authenticationFailed(code);
+        }
+    }
+
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, ExceptionEvent e) throws Exception {
         if (e.getCause() instanceof ClosedChannelException) {
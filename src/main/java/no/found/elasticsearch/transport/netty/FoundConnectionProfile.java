@@ -0,0 +1,410 @@
+/*
+ * Copyright (c) 2013, Found AS.
+ * See LICENSE for details.
+ */
+
+package no.found.elasticsearch.transport.netty;
+
+import no.found.elasticsearch.transport.netty.ssl.FoundSSLHandler;
+import org.elasticsearch.common.netty.bootstrap.ClientBootstrap;
+import org.elasticsearch.common.netty.channel.Channel;
+import org.elasticsearch.common.netty.channel.ChannelConfig;
+import org.elasticsearch.common.netty.channel.ChannelPipeline;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.BitSet;
+
+/**
+ * How the connections of a transport to Found Elasticsearch are set up.
+ *
+ * A profile is immutable and shared by the {@link FoundAuthenticatingChannelHandler}s of all the
+ * connections of a transport, so nothing has to be copied or computed per connection: the host
+ * suffixes and SSL ports are matched as they are, the header is encoded when the profile is built, and
+ * the SSL engines are created from the template of the SSL handler factory.
+ *
+ * The channels of the different types that are opened to a node may use profiles of their own, which
+ * are {@link #applyTo(Channel) applied} once the channels have been connected, as the type of a channel
+ * is not known when it's created. The socket buffers can't wait until then, so they are
+ * {@link #applyTo(ClientBootstrap) set} on a bootstrap of their own that connects the channels of the type.
+ *
+ * The {@link FoundHeaderNegotiation header negotiation} is the only state of a profile that changes: it
+ * is shared by the profiles of a transport, so every connection to a host sends the revision of the
+ * header the host accepts.
+ */
+public final class FoundConnectionProfile {
+    private final String[] hostSuffixes;
+    private final BitSet sslPorts;
+    private final FoundTransportHeader header;
+    private final FoundSSLHandlerFactory sslHandlerFactory;
+    private final TimeValue keepAliveInterval;
+    private final ConnectionKeepAliveManager keepAliveManager;
+    private final TimeValue headerDelay;
+    private final boolean gateWrites;
+    private final ConnectionSetupStats setupStats;
+    private final FoundTransportMetrics metrics;
+    private final int maxRecordSize;
+    private final ByteSizeValue sendBufferSize;
+    private final ByteSizeValue receiveBufferSize;
+    private final Boolean tcpNoDelay;
+    private final FoundHeaderNegotiation headerNegotiation;
+
+    private FoundConnectionProfile(Builder builder) {
+        if (builder.header == null || builder.sslHandlerFactory == null) {
+            throw new IllegalArgumentException("A connection profile requires a header and an SSL handler factory");
+        }
+        this.hostSuffixes = builder.hostSuffixes.clone();
+        this.sslPorts = (BitSet) builder.sslPorts.clone();
+        this.header = builder.header;
+        this.sslHandlerFactory = builder.sslHandlerFactory;
+        this.keepAliveInterval = builder.keepAliveInterval;
+        this.keepAliveManager = builder.keepAliveManager;
+        this.headerDelay = builder.headerDelay;
+        this.gateWrites = builder.gateWrites;
+        this.setupStats = builder.setupStats;
+        this.metrics = builder.metrics;
+        this.maxRecordSize = builder.maxRecordSize;
+        this.sendBufferSize = builder.sendBufferSize;
+        this.receiveBufferSize = builder.receiveBufferSize;
+        this.tcpNoDelay = builder.tcpNoDelay;
+        this.headerNegotiation = builder.headerNegotiation;
+
+        // encode the header once, up front
+        try {
+            header.getHeaderBuffer();
+        } catch (IOException ioe) {
+            throw new IllegalArgumentException("Unable to encode the Found header", ioe);
+        }
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Returns a builder that starts out with the settings of the given profile.
+     */
+    public static Builder builder(FoundConnectionProfile profile) {
+        Builder builder = new Builder();
+        builder.hostSuffixes = profile.hostSuffixes;
+        builder.sslPorts = profile.sslPorts;
+        builder.header = profile.header;
+        builder.sslHandlerFactory = profile.sslHandlerFactory;
+        builder.keepAliveInterval = profile.keepAliveInterval;
+        builder.keepAliveManager = profile.keepAliveManager;
+        builder.headerDelay = profile.headerDelay;
+        builder.gateWrites = profile.gateWrites;
+        builder.setupStats = profile.setupStats;
+        builder.metrics = profile.metrics;
+        builder.maxRecordSize = profile.maxRecordSize;
+        builder.sendBufferSize = profile.sendBufferSize;
+        builder.receiveBufferSize = profile.receiveBufferSize;
+        builder.tcpNoDelay = profile.tcpNoDelay;
+        builder.headerNegotiation = profile.headerNegotiation;
+        return builder;
+    }
+
+    /**
+     * Returns whether the host has one of the host suffixes of Found Elasticsearch.
+     */
+    public boolean isFoundHost(String host) {
+        for (String suffix : hostSuffixes) {
+            if (host.endsWith(suffix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether connections to Found Elasticsearch on the port use SSL.
+     */
+    public boolean isSslPort(int port) {
+        return port >= 0 && sslPorts.get(port);
+    }
+
+    public FoundTransportHeader getHeader() {
+        return header;
+    }
+
+    public FoundSSLHandlerFactory getSslHandlerFactory() {
+        return sslHandlerFactory;
+    }
+
+    public TimeValue getKeepAliveInterval() {
+        return keepAliveInterval;
+    }
+
+    /**
+     * Returns the manager that sends the keep-alive messages, or {@code null} if the
+     * {@link ConnectionKeepAliveManager#getDefault() default manager} is used.
+     */
+    public ConnectionKeepAliveManager getKeepAliveManager() {
+        return keepAliveManager;
+    }
+
+    /**
+     * Returns how long to wait for the first message to send the header with.
+     */
+    public TimeValue getHeaderDelay() {
+        return headerDelay;
+    }
+
+    /**
+     * Returns whether writes are held back until Found Elasticsearch has accepted the connection.
+     */
+    public boolean isGateWrites() {
+        return gateWrites;
+    }
+
+    /**
+     * Returns the stats that the setup of connections is recorded in, or {@code null}.
+     */
+    public ConnectionSetupStats getSetupStats() {
+        return setupStats;
+    }
+
+    /**
+     * Returns the metrics that connections not accepted by Found Elasticsearch are counted in, or {@code null}.
+     */
+    public FoundTransportMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns the largest amount of plaintext in an SSL record, or 0 if records are not limited.
+     */
+    public int getMaxRecordSize() {
+        return maxRecordSize;
+    }
+
+    /**
+     * Returns the size of the socket send buffer, or {@code null} if the transport's setting is used.
+     */
+    public ByteSizeValue getSendBufferSize() {
+        return sendBufferSize;
+    }
+
+    /**
+     * Returns the size of the socket receive buffer, or {@code null} if the transport's setting is used.
+     */
+    public ByteSizeValue getReceiveBufferSize() {
+        return receiveBufferSize;
+    }
+
+    /**
+     * Returns whether Nagle's algorithm is disabled, or {@code null} if the transport's setting is used.
+     */
+    public Boolean getTcpNoDelay() {
+        return tcpNoDelay;
+    }
+
+    /**
+     * Returns the revisions of the header the hosts accept, or {@code null} if the revision of the header is always used.
+     */
+    public FoundHeaderNegotiation getHeaderNegotiation() {
+        return headerNegotiation;
+    }
+
+    /**
+     * Returns the keep-alive interval for connections to the host, adjusted to what the host advertised.
+     */
+    public TimeValue getKeepAliveInterval(String host) {
+        FoundServerCapabilities capabilities = headerNegotiation != null && host != null ? headerNegotiation.getCapabilities(host) : null;
+        return capabilities != null ? capabilities.adjustKeepAliveInterval(keepAliveInterval) : keepAliveInterval;
+    }
+
+    /**
+     * Returns whether the profile sets the socket buffers, which have to be set before a channel connects.
+     */
+    public boolean hasSocketBufferSizes() {
+        return sendBufferSize != null || receiveBufferSize != null;
+    }
+
+    /**
+     * Sets the socket buffers of the profile as options of the bootstrap, so they are set on the channels
+     * before they connect. The receive buffer decides the window scale, which is only negotiated when the
+     * connection is established.
+     */
+    public void applyTo(ClientBootstrap bootstrap) {
+        if (sendBufferSize != null) {
+            bootstrap.setOption("sendBufferSize", (int) sendBufferSize.bytes());
+        }
+        if (receiveBufferSize != null) {
+            bootstrap.setOption("receiveBufferSize", (int) receiveBufferSize.bytes());
+        }
+    }
+
+    /**
+     * Applies the profile to a connected channel. Nagle's algorithm is changed right away, the
+     * handlers of the channel are updated on its I/O thread. The socket buffers are left as they are,
+     * see {@link #applyTo(ClientBootstrap)}.
+     *
+     * A channel that is still being authenticated sets up its keep-alive according to the profile once
+     * it has been accepted, a channel that has already been accepted gets its keep-alive replaced.
+     */
+    public void applyTo(final Channel channel) {
+        ChannelConfig config = channel.getConfig();
+        if (tcpNoDelay != null) {
+            config.setOption("tcpNoDelay", tcpNoDelay);
+        }
+
+        final ChannelPipeline pipeline = channel.getPipeline();
+        pipeline.execute(new Runnable() {
+            @Override
+            public void run() {
+                FoundSSLHandler sslHandler = pipeline.get(FoundSSLHandler.class);
+                if (sslHandler != null) {
+                    sslHandler.setMaxRecordSize(maxRecordSize);
+                }
+
+                FoundAuthenticatingChannelHandler authenticatingHandler = pipeline.get(FoundAuthenticatingChannelHandler.class);
+                if (authenticatingHandler != null) {
+                    authenticatingHandler.setProfile(FoundConnectionProfile.this);
+                    return;
+                }
+
+                TimeValue keepAliveInterval = getKeepAliveInterval(channel.getRemoteAddress() instanceof InetSocketAddress ?
+                    ((InetSocketAddress) channel.getRemoteAddress()).getHostString() : null);
+                ConnectionKeepAliveHandler keepAliveHandler = pipeline.get(ConnectionKeepAliveHandler.class);
+                if (keepAliveHandler != null && !keepAliveHandler.getKeepAliveInterval().equals(keepAliveInterval)) {
+                    if (keepAliveInterval.millis() > 0) {
+                        pipeline.replace(keepAliveHandler, "found-connection-keep-alive", new ConnectionKeepAliveHandler(
+                            keepAliveManager != null ? keepAliveManager : ConnectionKeepAliveManager.getDefault(), keepAliveInterval));
+                    } else {
+                        pipeline.remove(keepAliveHandler);
+                    }
+                }
+            }
+        });
+    }
+
+    public static class Builder {
+        private String[] hostSuffixes = new String[0];
+        private BitSet sslPorts = new BitSet();
+        private FoundTransportHeader header;
+        private FoundSSLHandlerFactory sslHandlerFactory;
+        private TimeValue keepAliveInterval = TimeValue.timeValueMillis(0);
+        private ConnectionKeepAliveManager keepAliveManager;
+        private TimeValue headerDelay = TimeValue.timeValueMillis(0);
+        private boolean gateWrites = false;
+        private ConnectionSetupStats setupStats;
+        private FoundTransportMetrics metrics;
+        private int maxRecordSize = 0;
+        private ByteSizeValue sendBufferSize;
+        private ByteSizeValue receiveBufferSize;
+        private Boolean tcpNoDelay;
+        private FoundHeaderNegotiation headerNegotiation;
+
+        private Builder() {
+        }
+
+        public Builder hostSuffixes(String... hostSuffixes) {
+            this.hostSuffixes = hostSuffixes;
+            return this;
+        }
+
+        public Builder sslPorts(int... sslPorts) {
+            this.sslPorts = new BitSet();
+            for (int port : sslPorts) {
+                if (port >= 0) {
+                    this.sslPorts.set(port);
+                }
+            }
+            return this;
+        }
+
+        public Builder header(FoundTransportHeader header) {
+            this.header = header;
+            return this;
+        }
+
+        public Builder sslHandlerFactory(FoundSSLHandlerFactory sslHandlerFactory) {
+            this.sslHandlerFactory = sslHandlerFactory;
+            return this;
+        }
+
+        /**
+         * How long a connection may go without reads or writes before a keep-alive message is sent. 0 disables them.
+         */
+        public Builder keepAliveInterval(TimeValue keepAliveInterval) {
+            this.keepAliveInterval = keepAliveInterval;
+            return this;
+        }
+
+        public Builder keepAliveManager(ConnectionKeepAliveManager keepAliveManager) {
+            this.keepAliveManager = keepAliveManager;
+            return this;
+        }
+
+        /**
+         * How long to wait for the first message to send the header with. 0 sends the header as soon as the
+         * connection is established. The header is never delayed if writes are gated.
+         */
+        public Builder headerDelay(TimeValue headerDelay) {
+            this.headerDelay = headerDelay;
+            return this;
+        }
+
+        public Builder gateWrites(boolean gateWrites) {
+            this.gateWrites = gateWrites;
+            return this;
+        }
+
+        public Builder setupStats(ConnectionSetupStats setupStats) {
+            this.setupStats = setupStats;
+            return this;
+        }
+
+        public Builder metrics(FoundTransportMetrics metrics) {
+            this.metrics = metrics;
+            return this;
+        }
+
+        /**
+         * The largest amount of plaintext in an SSL record. 0 uses the largest records the engine supports.
+         */
+        public Builder maxRecordSize(int maxRecordSize) {
+            this.maxRecordSize = maxRecordSize;
+            return this;
+        }
+
+        /**
+         * The size of the socket send buffer. {@code null} leaves it as the transport sets it.
+         */
+        public Builder sendBufferSize(ByteSizeValue sendBufferSize) {
+            this.sendBufferSize = sendBufferSize;
+            return this;
+        }
+
+        /**
+         * The size of the socket receive buffer. {@code null} leaves it as the transport sets it.
+         */
+        public Builder receiveBufferSize(ByteSizeValue receiveBufferSize) {
+            this.receiveBufferSize = receiveBufferSize;
+            return this;
+        }
+
+        /**
+         * Whether to disable Nagle's algorithm. {@code null} leaves it as the transport sets it.
+         */
+        public Builder tcpNoDelay(Boolean tcpNoDelay) {
+            this.tcpNoDelay = tcpNoDelay;
+            return this;
+        }
+
+        /**
+         * The revisions of the header the hosts accept. {@code null} always sends the revision of the header.
+         */
+        public Builder headerNegotiation(FoundHeaderNegotiation headerNegotiation) {
+            this.headerNegotiation = headerNegotiation;
+            return this;
+        }
+
+        public FoundConnectionProfile build() {
+            return new FoundConnectionProfile(this);
+        }
+    }
+}
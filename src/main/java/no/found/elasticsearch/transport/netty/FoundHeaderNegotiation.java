@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2013, Found AS.
+ * See LICENSE for details.
+ */
+
+package no.found.elasticsearch.transport.netty;
+
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Which revision of the header to send to each Found host, and what the hosts advertised when they
+ * accepted a connection.
+ *
+ * Connections start out with the preferred revision. A host that answers revision 2 with an
+ * {@link #isUnsupportedRevision(int, String) unsupported revision} response is sent revision 1 until the
+ * re-probe interval has passed, and is then tried with revision 2 again. Other rejections, such as an
+ * invalid API-key, say nothing about the revision and leave it as it is.
+ *
+ * A host is probed while it is sent revision 2 and hasn't accepted it yet. See {@link NegotiatingClientBootstrap}
+ * for how the connections that probe a host are retried with revision 1.
+ */
+public class FoundHeaderNegotiation {
+    /** The code of the response of a proxy that does not know the revision of the header it was sent. */
+    public static final int UNSUPPORTED_REVISION_CODE = 400;
+
+    private final int preferredRevision;
+    private final long reprobeIntervalNanos;
+    private final ConcurrentMap<String, FoundServerCapabilities> capabilities = ConcurrentCollections.newConcurrentMap();
+    // the hosts that are sent revision 1, and when to try revision 2 with them again.
+    private final ConcurrentMap<String, Long> downgrades = ConcurrentCollections.newConcurrentMap();
+
+    public FoundHeaderNegotiation(int preferredRevision) {
+        this(preferredRevision, TimeValue.timeValueMinutes(10));
+    }
+
+    /**
+     * @param reprobeInterval how long a host that did not know revision 2 is sent revision 1.
+     */
+    public FoundHeaderNegotiation(int preferredRevision, TimeValue reprobeInterval) {
+        if (preferredRevision != 1 && preferredRevision != 2) {
+            throw new IllegalArgumentException("Unsupported revision of the Found header [" + preferredRevision + "]");
+        }
+        this.preferredRevision = preferredRevision;
+        this.reprobeIntervalNanos = reprobeInterval.nanos();
+    }
+
+    public int getPreferredRevision() {
+        return preferredRevision;
+    }
+
+    /**
+     * Returns whether a response with the given code and description says that the proxy does not know the
+     * revision of the header it was sent.
+     */
+    public static boolean isUnsupportedRevision(int code, String description) {
+        return code == UNSUPPORTED_REVISION_CODE && description.toLowerCase(Locale.ROOT).startsWith("unsupported revision");
+    }
+
+    /**
+     * Returns the revision of the header to send to the host.
+     */
+    public int revisionFor(String host) {
+        if (preferredRevision < 2) {
+            return preferredRevision;
+        }
+        Long reprobeAt = downgrades.get(host);
+        if (reprobeAt == null) {
+            return preferredRevision;
+        }
+        if (System.nanoTime() - reprobeAt < 0) {
+            return 1;
+        }
+        downgrades.remove(host, reprobeAt);
+        return preferredRevision;
+    }
+
+    /**
+     * Returns whether the next connection to the host is sent revision 2 without knowing if the host accepts it.
+     */
+    public boolean isProbing(String host) {
+        return revisionFor(host) >= 2 && !capabilities.containsKey(host);
+    }
+
+    /**
+     * Records what the host advertised when it accepted a connection.
+     */
+    void accepted(String host, FoundServerCapabilities hostCapabilities) {
+        capabilities.put(host, hostCapabilities);
+        downgrades.remove(host);
+    }
+
+    /**
+     * Records that the host did not know revision 2 of the header.
+     *
+     * @return {@code true} if the host was sent revision 2 until now.
+     */
+    boolean revisionUnsupported(String host) {
+        capabilities.remove(host);
+        return downgrades.put(host, System.nanoTime() + reprobeIntervalNanos) == null;
+    }
+
+    /**
+     * Returns what the host advertised when it last accepted a connection with revision 2, or {@code null}
+     * if it hasn't yet or has been sent revision 1 since.
+     */
+    public FoundServerCapabilities getCapabilities(String host) {
+        return capabilities.get(host);
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2013, Found AS.
+ * See LICENSE for details.
+ */
+
+package no.found.elasticsearch.transport.netty;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+/**
+ * The address of the Found proxy, for connections that the proxy routes to a specific node of the cluster.
+ *
+ * Connections to a routed address are set up like any other connection to the proxy, except that the
+ * header tells the proxy which node to route them to. This lets a sniffing client keep its own connections
+ * to every node, even though the addresses the nodes publish can't be reached from outside of Found.
+ *
+ * Like any other socket address, a routed address is equal to the other addresses of the same host and
+ * port, whatever node they are routed to. The connections of the transport are kept per node, not per address.
+ */
+public class FoundRoutedAddress extends InetSocketAddress {
+    private static final long serialVersionUID = -8300817260031976185L;
+
+    private final String nodeId;
+
+    /**
+     * @param proxyAddress a resolved address of the proxy, which keeps the host name of the proxy.
+     * @param nodeId the id of the node the proxy should route the connections to.
+     */
+    public FoundRoutedAddress(InetAddress proxyAddress, int port, String nodeId) {
+        super(proxyAddress, port);
+        this.nodeId = nodeId;
+    }
+
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * Returns the given address with its host resolved to another address, routed to the same node if it's routed.
+     */
+    public static InetSocketAddress withAddress(InetSocketAddress address, InetAddress newAddress) {
+        if (address instanceof FoundRoutedAddress) {
+            return new FoundRoutedAddress(newAddress, address.getPort(), ((FoundRoutedAddress) address).getNodeId());
+        }
+        return new InetSocketAddress(newAddress, address.getPort());
+    }
+
+    @Override
+    public String toString() {
+        return super.toString() + "[" + nodeId + "]";
+    }
+}
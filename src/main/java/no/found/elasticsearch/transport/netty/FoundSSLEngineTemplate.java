@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2013, Found AS.
+ * See LICENSE for details.
+ */
+
+package no.found.elasticsearch.transport.netty;
+
+import org.elasticsearch.common.collect.ImmutableList;
+import org.elasticsearch.common.collect.Sets;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The parameters applied to every client {@link SSLEngine} created for connections to Found Elasticsearch.
+ *
+ * The enabled cipher suites and protocols are computed once, by intersecting the preferred ones with
+ * those supported by the {@link SSLContext}, while keeping the preferred order. Creating an engine then
+ * only has to apply the precomputed {@link SSLParameters}.
+ */
+public final class FoundSSLEngineTemplate {
+    /**
+     * The default cipher suites, in order of preference. The TLS 1.3 suites come first, followed by the
+     * AES-GCM suites as they are much cheaper per byte than the CBC suites on CPUs with AES instructions.
+     */
+    public static final List<String> DEFAULT_CIPHER_SUITES = ImmutableList.of(
+            "TLS_AES_128_GCM_SHA256",
+            "TLS_AES_256_GCM_SHA384",
+            "TLS_CHACHA20_POLY1305_SHA256",
+            "TLS_ECDHE_ECDSA_WITH_AES_128_GCM_SHA256",
+            "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256",
+            "TLS_ECDHE_ECDSA_WITH_AES_256_GCM_SHA384",
+            "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384",
+            "TLS_DHE_RSA_WITH_AES_128_GCM_SHA256",
+            "TLS_DHE_DSS_WITH_AES_128_GCM_SHA256",
+            "TLS_RSA_WITH_AES_128_GCM_SHA256",
+            "TLS_RSA_WITH_AES_256_GCM_SHA384",
+            "TLS_ECDHE_ECDSA_WITH_AES_128_CBC_SHA256",
+            "TLS_ECDHE_RSA_WITH_AES_128_CBC_SHA256",
+            "TLS_RSA_WITH_AES_128_CBC_SHA256",
+            "TLS_ECDH_ECDSA_WITH_AES_128_CBC_SHA256",
+            "TLS_ECDH_RSA_WITH_AES_128_CBC_SHA256",
+            "TLS_DHE_RSA_WITH_AES_128_CBC_SHA256",
+            "TLS_DHE_DSS_WITH_AES_128_CBC_SHA256",
+            "TLS_ECDHE_ECDSA_WITH_AES_128_CBC_SHA",
+            "TLS_ECDHE_RSA_WITH_AES_128_CBC_SHA",
+            "TLS_RSA_WITH_AES_128_CBC_SHA",
+            "TLS_ECDH_ECDSA_WITH_AES_128_CBC_SHA",
+            "TLS_ECDH_RSA_WITH_AES_128_CBC_SHA",
+            "TLS_DHE_RSA_WITH_AES_128_CBC_SHA",
+            "TLS_DHE_DSS_WITH_AES_128_CBC_SHA",
+            "TLS_ECDHE_ECDSA_WITH_RC4_128_SHA",
+            "TLS_ECDHE_RSA_WITH_RC4_128_SHA",
+            "SSL_RSA_WITH_RC4_128_SHA",
+            "TLS_ECDH_ECDSA_WITH_RC4_128_SHA",
+            "TLS_ECDH_RSA_WITH_RC4_128_SHA",
+            "TLS_ECDHE_ECDSA_WITH_3DES_EDE_CBC_SHA",
+            "TLS_ECDHE_RSA_WITH_3DES_EDE_CBC_SHA",
+            "SSL_RSA_WITH_3DES_EDE_CBC_SHA",
+            "TLS_ECDH_ECDSA_WITH_3DES_EDE_CBC_SHA",
+            "TLS_ECDH_RSA_WITH_3DES_EDE_CBC_SHA",
+            "SSL_DHE_RSA_WITH_3DES_EDE_CBC_SHA",
+            "SSL_DHE_DSS_WITH_3DES_EDE_CBC_SHA",
+            "SSL_RSA_WITH_RC4_128_MD5",
+            "TLS_EMPTY_RENEGOTIATION_INFO_SCSV");
+
+    private final SSLContext sslContext;
+    private final SSLParameters parameters;
+    private final String[] cipherSuites;
+    private final String[] protocols;
+
+    /**
+     * @param sslContext the context to create engines with.
+     * @param preferredCipherSuites the cipher suites to enable, in order of preference. Suites that are not
+     *                              supported by the context are left out. If none are supported, the default
+     *                              suites of the context are used.
+     * @param protocols the protocols to enable, or {@code null} to use the default protocols of the context.
+     * @param endpointIdentificationAlgorithm the endpoint identification algorithm, or {@code null} for none.
+     */
+    public FoundSSLEngineTemplate(SSLContext sslContext, List<String> preferredCipherSuites, String[] protocols, String endpointIdentificationAlgorithm) {
+        this.sslContext = sslContext;
+
+        SSLParameters supported = sslContext.getSupportedSSLParameters();
+        SSLParameters defaults = sslContext.getDefaultSSLParameters();
+
+        this.cipherSuites = intersect(preferredCipherSuites, supported.getCipherSuites(), defaults.getCipherSuites());
+        this.protocols = protocols == null ? defaults.getProtocols() : intersect(Arrays.asList(protocols), supported.getProtocols(), defaults.getProtocols());
+
+        parameters = new SSLParameters(cipherSuites.clone(), this.protocols.clone());
+        parameters.setEndpointIdentificationAlgorithm(endpointIdentificationAlgorithm);
+        parameters.setNeedClientAuth(false);
+    }
+
+    /**
+     * Returns the preferred values that are supported, in the preferred order, or the fallback if none are.
+     */
+    private static String[] intersect(List<String> preferred, String[] supported, String[] fallback) {
+        Set<String> supportedSet = Sets.newHashSet(supported);
+        List<String> usable = new ArrayList<String>(preferred.size());
+        for (String value : preferred) {
+            if (supportedSet.contains(value) && !usable.contains(value)) {
+                usable.add(value);
+            }
+        }
+        return usable.isEmpty() ? fallback : usable.toArray(new String[usable.size()]);
+    }
+
+    public SSLContext getSslContext() {
+        return sslContext;
+    }
+
+    /**
+     * Returns the enabled cipher suites, in order of preference.
+     */
+    public String[] getCipherSuites() {
+        return cipherSuites.clone();
+    }
+
+    public String[] getProtocols() {
+        return protocols.clone();
+    }
+
+    public String getEndpointIdentificationAlgorithm() {
+        return parameters.getEndpointIdentificationAlgorithm();
+    }
+
+    /**
+     * Creates a new client engine for a connection to the given address.
+     */
+    public SSLEngine createEngine(InetSocketAddress inetSocketAddress) {
+        SSLEngine engine = sslContext.createSSLEngine(inetSocketAddress.getHostString(), inetSocketAddress.getPort());
+        engine.setUseClientMode(true);
+        engine.setSSLParameters(parameters);
+        engine.setEnableSessionCreation(true);
+        return engine;
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2013, Found AS.
+ * See LICENSE for details.
+ */
+
+package no.found.elasticsearch.transport.netty;
+
+import no.found.elasticsearch.transport.netty.ssl.FoundSSLHandler;
+import no.found.elasticsearch.transport.netty.ssl.ImmediateExecutor;
+import no.found.elasticsearch.transport.netty.ssl.SslBufferPool;
+import no.found.elasticsearch.transport.netty.ssl.SslMetrics;
+import org.elasticsearch.ElasticsearchException;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.common.util.concurrent.EsRejectedExecutionException;
+import org.elasticsearch.common.util.concurrent.jsr166e.LongAdder;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import java.net.InetSocketAddress;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates the {@link FoundSSLHandler}s used for connections to Found Elasticsearch.
+ *
+ * One factory is created per transport, and holds the {@code transport.found.ssl.*} settings
+ * that are applied to every new handler. All handlers share the factory's {@link SSLContext}, so
+ * reconnects can resume the sessions of earlier connections with an abbreviated handshake. Unless
+ * self-signed certificates are allowed, that is the default context of the JVM.
+ */
+public class FoundSSLHandlerFactory {
+    private final boolean unsafeAllowSelfSigned;
+    private final boolean wrapDirect;
+    private final boolean batchUnwrap;
+    private final boolean dynamicRecordSizing;
+    private final int initialRecordSize;
+    private final TimeValue recordSizeIdleReset;
+    private final SslBufferPool bufferPool;
+    private final ExecutorService handshakeExecutor;
+    private final Executor delegatedTaskExecutor;
+    private final SSLContext sslContext;
+    private final FoundSSLEngineTemplate engineTemplate;
+    private volatile SslMetrics metrics;
+
+    private final LongAdder fullHandshakes = new LongAdder();
+    private final LongAdder resumedHandshakes = new LongAdder();
+    private final FoundSSLHandler.HandshakeListener handshakeListener = new FoundSSLHandler.HandshakeListener() {
+        @Override
+        public void handshakeCompleted(FoundSSLHandler handler) {
+            if (handler.isSessionResumed()) {
+                resumedHandshakes.increment();
+            } else {
+                fullHandshakes.increment();
+            }
+        }
+    };
+
+    public FoundSSLHandlerFactory(Settings settings) {
+        unsafeAllowSelfSigned = settings.getAsBoolean("transport.found.ssl.unsafe_allow_self_signed", false);
+        wrapDirect = settings.getAsBoolean("transport.found.ssl.wrap_direct", false);
+        batchUnwrap = settings.getAsBoolean("transport.found.ssl.batch_unwrap", false);
+        dynamicRecordSizing = settings.getAsBoolean("transport.found.ssl.dynamic_record_sizing", false);
+        initialRecordSize = (int) settings.getAsBytesSize("transport.found.ssl.initial_record_size", new ByteSizeValue(FoundSSLHandler.DEFAULT_INITIAL_RECORD_SIZE)).bytes();
+        recordSizeIdleReset = settings.getAsTime("transport.found.ssl.record_size_idle_reset", TimeValue.timeValueSeconds(1));
+
+        ByteSizeValue poolSize = settings.getAsBytesSize("transport.found.ssl.buffer_pool.size", new ByteSizeValue(18, ByteSizeUnit.MB));
+        // by default, one stripe per netty worker thread.
+        int poolStripes = settings.getAsInt("transport.found.ssl.buffer_pool.stripes", EsExecutors.boundedNumberOfProcessors(settings) * 2);
+        boolean poolDirect = settings.getAsBoolean("transport.found.ssl.buffer_pool.direct", false);
+        bufferPool = new SslBufferPool((int) Math.min(Integer.MAX_VALUE, poolSize.bytes()), poolStripes, poolDirect);
+
+        int handshakeThreads = settings.getAsInt("transport.found.ssl.handshake_executor.size", Math.min(4, EsExecutors.boundedNumberOfProcessors(settings)));
+        int handshakeQueueSize = settings.getAsInt("transport.found.ssl.handshake_executor.queue_size", 1000);
+        if (handshakeThreads > 0) {
+            handshakeExecutor = EsExecutors.newFixed(handshakeThreads, handshakeQueueSize, EsExecutors.daemonThreadFactory(settings, "found_ssl_handshake"));
+            delegatedTaskExecutor = new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    try {
+                        handshakeExecutor.execute(command);
+                    } catch (EsRejectedExecutionException e) {
+                        // the queue is full, or we're shutting down. the handshake fails rather than running
+                        // its tasks on the netty worker, where they would hold up the established channels.
+                        throw new RejectedExecutionException(e.getMessage(), e);
+                    }
+                }
+            };
+        } else {
+            handshakeExecutor = null;
+            delegatedTaskExecutor = ImmediateExecutor.INSTANCE;
+        }
+
+        try {
+            sslContext = FoundSSLUtils.createSslContext(unsafeAllowSelfSigned);
+        } catch (NoSuchAlgorithmException e) {
+            throw new ElasticsearchException("Unable to create the SSL context", e);
+        }
+        // the default context of the JVM is shared, so its session cache is only changed when asked to.
+        SSLSessionContext sessionContext = sslContext.getClientSessionContext();
+        if (unsafeAllowSelfSigned || settings.get("transport.found.ssl.session_cache.size") != null) {
+            sessionContext.setSessionCacheSize(settings.getAsInt("transport.found.ssl.session_cache.size", 1000));
+        }
+        if (unsafeAllowSelfSigned || settings.get("transport.found.ssl.session_cache.timeout") != null) {
+            TimeValue sessionTimeout = settings.getAsTime("transport.found.ssl.session_cache.timeout", TimeValue.timeValueHours(24));
+            sessionContext.setSessionTimeout((int) Math.min(Integer.MAX_VALUE, sessionTimeout.seconds()));
+        }
+
+        String[] cipherSuites = settings.getAsArray("transport.found.ssl.cipher_suites", null);
+        engineTemplate = new FoundSSLEngineTemplate(sslContext,
+            cipherSuites == null ? FoundSSLEngineTemplate.DEFAULT_CIPHER_SUITES : Arrays.asList(cipherSuites),
+            settings.getAsArray("transport.found.ssl.protocols", null),
+            "HTTPS");
+    }
+
+    public boolean isUnsafeAllowSelfSigned() {
+        return unsafeAllowSelfSigned;
+    }
+
+    public boolean isWrapDirect() {
+        return wrapDirect;
+    }
+
+    public boolean isBatchUnwrap() {
+        return batchUnwrap;
+    }
+
+    public boolean isDynamicRecordSizing() {
+        return dynamicRecordSizing;
+    }
+
+    /**
+     * Returns the buffer pool shared by all handlers created by this factory.
+     */
+    public SslBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * Returns the context that all handlers created by this factory share.
+     */
+    public SSLContext getSslContext() {
+        return sslContext;
+    }
+
+    /**
+     * Returns the template that all engines created by this factory are configured from.
+     */
+    public FoundSSLEngineTemplate getEngineTemplate() {
+        return engineTemplate;
+    }
+
+    /**
+     * Returns the number of completed handshakes that established a new session.
+     */
+    public long getFullHandshakes() {
+        return fullHandshakes.sum();
+    }
+
+    /**
+     * Returns the number of completed handshakes that resumed a cached session.
+     */
+    public long getResumedHandshakes() {
+        return resumedHandshakes.sum();
+    }
+
+    /**
+     * Returns the executor that runs the delegated tasks of the handshakes, or {@code null} if they
+     * run on the I/O threads.
+     */
+    public ExecutorService getHandshakeExecutor() {
+        return handshakeExecutor;
+    }
+
+    /**
+     * Sets the metrics that new handlers count the bytes and records they encrypt and decrypt in.
+     */
+    public void setMetrics(SslMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public SslMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Releases the resources held by this factory.
+     */
+    public void close() {
+        if (handshakeExecutor != null) {
+            handshakeExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Creates a new handler for a connection to the given address.
+     */
+    public FoundSSLHandler newHandler(InetSocketAddress inetSocketAddress) {
+        FoundSSLHandler handler = FoundSSLUtils.getSSLHandler(engineTemplate, inetSocketAddress, bufferPool, delegatedTaskExecutor);
+        handler.setHandshakeListener(handshakeListener);
+        handler.setWrapDirect(wrapDirect);
+        handler.setBatchUnwrap(batchUnwrap);
+        handler.setDynamicRecordSizing(dynamicRecordSizing);
+        handler.setInitialRecordSize(initialRecordSize);
+        handler.setRecordSizeIdleReset(recordSizeIdleReset.millis(), TimeUnit.MILLISECONDS);
+        handler.setMetrics(metrics);
+        return handler;
+    }
+}
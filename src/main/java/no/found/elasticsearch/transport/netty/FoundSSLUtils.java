@@ -6,15 +6,25 @@
 package no.found.elasticsearch.transport.netty;
 
 import no.found.elasticsearch.transport.netty.ssl.FoundSSLHandler;
-import org.elasticsearch.common.collect.Sets;
+import no.found.elasticsearch.transport.netty.ssl.ImmediateExecutor;
+import no.found.elasticsearch.transport.netty.ssl.SslBufferPool;
+import org.elasticsearch.common.net.InetAddresses;
 
+import javax.naming.InvalidNameException;
+import javax.naming.ldap.LdapName;
+import javax.naming.ldap.Rdn;
 import javax.net.ssl.*;
+import javax.security.auth.x500.X500Principal;
 import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
-import java.util.Set;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executor;
 
 /**
  * Collection of SSL-related utils.
@@ -23,86 +33,17 @@ public final class FoundSSLUtils {
     private FoundSSLUtils() {}
 
     public static FoundSSLHandler getSSLHandler(boolean unsafeAllowSelfSigned, InetSocketAddress inetSocketAddress) throws NoSuchAlgorithmException {
-        String hostString = inetSocketAddress.getHostString();
-
-        SSLEngine engine = createSslEngine(unsafeAllowSelfSigned, inetSocketAddress, hostString);
-
-        Set supported = Sets.newHashSet(engine.getSupportedCipherSuites());
-
-        Set preferred = Sets.newHashSet("TLS_ECDHE_ECDSA_WITH_AES_128_CBC_SHA256",
-                "TLS_ECDHE_RSA_WITH_AES_128_CBC_SHA256",
-                "TLS_ECDHE_ECDSA_WITH_AES_128_CBC_SHA256",
-                "TLS_ECDHE_RSA_WITH_AES_128_CBC_SHA256",
-                "TLS_RSA_WITH_AES_128_CBC_SHA256",
-                "TLS_ECDH_ECDSA_WITH_AES_128_CBC_SHA256",
-                "TLS_RSA_WITH_AES_128_CBC_SHA256",
-                "TLS_ECDH_RSA_WITH_AES_128_CBC_SHA256",
-                "TLS_ECDH_ECDSA_WITH_AES_128_CBC_SHA256",
-                "TLS_DHE_RSA_WITH_AES_128_CBC_SHA256",
-                "TLS_ECDH_RSA_WITH_AES_128_CBC_SHA256",
-                "TLS_DHE_DSS_WITH_AES_128_CBC_SHA256",
-                "TLS_DHE_RSA_WITH_AES_128_CBC_SHA256",
-                "TLS_ECDHE_ECDSA_WITH_AES_128_CBC_SHA",
-                "TLS_DHE_DSS_WITH_AES_128_CBC_SHA256",
-                "TLS_ECDHE_RSA_WITH_AES_128_CBC_SHA",
-                "TLS_ECDHE_ECDSA_WITH_AES_128_CBC_SHA",
-                "TLS_RSA_WITH_AES_128_CBC_SHA",
-                "TLS_ECDHE_RSA_WITH_AES_128_CBC_SHA",
-                "TLS_ECDH_ECDSA_WITH_AES_128_CBC_SHA",
-                "TLS_RSA_WITH_AES_128_CBC_SHA",
-                "TLS_ECDH_RSA_WITH_AES_128_CBC_SHA",
-                "TLS_ECDH_ECDSA_WITH_AES_128_CBC_SHA",
-                "TLS_DHE_RSA_WITH_AES_128_CBC_SHA",
-                "TLS_ECDH_RSA_WITH_AES_128_CBC_SHA",
-                "TLS_DHE_DSS_WITH_AES_128_CBC_SHA",
-                "TLS_DHE_RSA_WITH_AES_128_CBC_SHA",
-                "TLS_ECDHE_ECDSA_WITH_RC4_128_SHA",
-                "TLS_DHE_DSS_WITH_AES_128_CBC_SHA",
-                "TLS_ECDHE_RSA_WITH_RC4_128_SHA",
-                "TLS_ECDHE_ECDSA_WITH_RC4_128_SHA",
-                "SSL_RSA_WITH_RC4_128_SHA",
-                "TLS_ECDH_ECDSA_WITH_RC4_128_SHA",
-                "TLS_ECDH_RSA_WITH_RC4_128_SHA",
-                "TLS_ECDHE_ECDSA_WITH_3DES_EDE_CBC_SHA",
-                "TLS_ECDHE_RSA_WITH_3DES_EDE_CBC_SHA",
-                "SSL_RSA_WITH_3DES_EDE_CBC_SHA",
-                "TLS_ECDH_ECDSA_WITH_3DES_EDE_CBC_SHA",
-                "TLS_ECDH_RSA_WITH_3DES_EDE_CBC_SHA",
-                "TLS_ECDHE_RSA_WITH_RC4_128_SHA",
-                "SSL_RSA_WITH_RC4_128_SHA",
-                "SSL_DHE_RSA_WITH_3DES_EDE_CBC_SHA",
-                "SSL_DHE_DSS_WITH_3DES_EDE_CBC_SHA",
-                "TLS_ECDH_ECDSA_WITH_RC4_128_SHA",
-                "SSL_RSA_WITH_RC4_128_MD5",
-                "TLS_ECDH_RSA_WITH_RC4_128_SHA",
-                "TLS_EMPTY_RENEGOTIATION_INFO_SCSV",
-                "TLS_ECDHE_ECDSA_WITH_3DES_EDE_CBC_SHA",
-                "TLS_ECDHE_RSA_WITH_3DES_EDE_CBC_SHA",
-                "SSL_RSA_WITH_3DES_EDE_CBC_SHA",
-                "TLS_ECDH_ECDSA_WITH_3DES_EDE_CBC_SHA",
-                "TLS_ECDH_RSA_WITH_3DES_EDE_CBC_SHA",
-                "SSL_DHE_RSA_WITH_3DES_EDE_CBC_SHA",
-                "SSL_DHE_DSS_WITH_3DES_EDE_CBC_SHA",
-                "SSL_RSA_WITH_RC4_128_MD5",
-                "TLS_EMPTY_RENEGOTIATION_INFO_SCSV");
-
-        Set<String> usable = Sets.intersection(preferred, supported);
-
-        String[] usableArray = usable.toArray(new String[usable.size()]);
-
-        if(usableArray.length > 0) {
-            engine.setEnabledCipherSuites(usableArray);
-        }
-        engine.setUseClientMode(true);
-
-        SSLParameters sslParams = new SSLParameters();
-        sslParams.setEndpointIdentificationAlgorithm("HTTPS");
-        engine.setSSLParameters(sslParams);
+        return getSSLHandler(createEngineTemplate(createSslContext(unsafeAllowSelfSigned)), inetSocketAddress, FoundSSLHandler.getDefaultBufferPool(), ImmediateExecutor.INSTANCE);
+    }
 
-        engine.setEnableSessionCreation(true);
-        engine.setNeedClientAuth(false);
+    /**
+     * Creates a handler with an engine from the given template. Sessions are cached by the template's
+     * context, so handlers created from the same template can resume the sessions of earlier connections.
+     */
+    public static FoundSSLHandler getSSLHandler(FoundSSLEngineTemplate engineTemplate, InetSocketAddress inetSocketAddress, SslBufferPool bufferPool, Executor delegatedTaskExecutor) {
+        SSLEngine engine = engineTemplate.createEngine(inetSocketAddress);
 
-        FoundSSLHandler handler = new FoundSSLHandler(engine);
+        FoundSSLHandler handler = new FoundSSLHandler(engine, bufferPool, delegatedTaskExecutor);
         handler.setIssueHandshake(false);
         handler.setCloseOnSSLException(false);
         handler.setEnableRenegotiation(true);
@@ -110,47 +51,147 @@ public final class FoundSSLUtils {
         return handler;
     }
 
+    /**
+     * Creates a template with the default cipher suites and protocols, and host name verification.
+     */
+    public static FoundSSLEngineTemplate createEngineTemplate(SSLContext sslContext) {
+        return new FoundSSLEngineTemplate(sslContext, FoundSSLEngineTemplate.DEFAULT_CIPHER_SUITES, null, "HTTPS");
+    }
+
     public static SSLEngine createSslEngine(boolean unsafeAllowSelfSigned, InetSocketAddress inetSocketAddress, final String hostString) throws NoSuchAlgorithmException {
-        if(unsafeAllowSelfSigned) {
-            final TrustManager[] trustAllCerts = new TrustManager[] { new X509TrustManager() {
-                @Override
-                public void checkClientTrusted( final X509Certificate[] chain, final String authType ) {
+        return createSslContext(unsafeAllowSelfSigned).createSSLEngine(hostString, inetSocketAddress.getPort());
+    }
 
-                }
-                @Override
-                public void checkServerTrusted( final X509Certificate[] chain, final String authType ) throws CertificateException {
+    /**
+     * Returns the {@link SSLContext} to connect with. This is the default context of the JVM, which uses the
+     * key and trust stores configured through the {@code javax.net.ssl.*} system properties and is shared
+     * with the rest of the JVM, session cache included. If {@code unsafeAllowSelfSigned} is set, a new context
+     * is created instead, which trusts any certificate chain whose server certificate matches the host of
+     * the engine.
+     */
+    public static SSLContext createSslContext(boolean unsafeAllowSelfSigned) throws NoSuchAlgorithmException {
+        if(!unsafeAllowSelfSigned) {
+            return SSLContext.getDefault();
+        }
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        try {
+            sslContext.init(null, new TrustManager[] { new UnsafeHostnameTrustManager() }, new java.security.SecureRandom());
+        } catch (KeyManagementException e) {
+            throw new IllegalStateException("Unable to initialize the SSL context", e);
+        }
+        return sslContext;
+    }
 
-                    for(X509Certificate cert: chain) {
-                        String dn = cert.getSubjectX500Principal().getName();
+    /**
+     * Trusts any certificate chain whose server certificate matches the host the engine is connecting to.
+     * This is unsafe and allows for MITM-attacks.
+     *
+     * The JVM leaves the endpoint identification to an extended trust manager, so the host is matched here
+     * the way {@code HTTPS} endpoint identification does it: against the DNS names or IP addresses of the
+     * subject alternative names, or against the most specific common name of the subject if there are no
+     * DNS names. A wildcard only stands for the leftmost label of a host name.
+     */
+    static class UnsafeHostnameTrustManager extends X509ExtendedTrustManager {
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine) throws CertificateException {
+            checkHostname(chain, engine.getPeerHost());
+        }
 
-                        if(dn.contains("CN="+hostString)) return;
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket) throws CertificateException {
+            // the host the socket was opened to, as the address of the socket would have to be looked up.
+            SSLSession session = socket instanceof SSLSocket ? ((SSLSocket) socket).getHandshakeSession() : null;
+            checkHostname(chain, session == null ? null : session.getPeerHost());
+        }
 
-                        String[] hostParts = hostString.split("\\.", 2);
-                        if(hostParts.length > 1) {
-                            String lastHostPart = hostParts[1];
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+            throw new CertificateException("The host name is required to verify the certificate chain");
+        }
 
-                            if(dn.contains("CN=*."+lastHostPart)) return;
-                        }
-                    }
+        private void checkHostname(X509Certificate[] chain, String hostString) throws CertificateException {
+            if(chain == null || chain.length == 0 || hostString == null) {
+                throw new CertificateException("The host name and certificate are required to verify the certificate chain");
+            }
+            if(!matchesHost(chain[0], hostString)) {
+                throw new CertificateException("No name matching [" + hostString + "] found");
+            }
+        }
 
-                    throw new CertificateException("No name matching [" + hostString + "] found");
-                }
-                @Override
-                public X509Certificate[] getAcceptedIssuers() {
-                    return new X509Certificate[0];
+        static boolean matchesHost(X509Certificate certificate, String hostString) throws CertificateException {
+            String host = hostString.toLowerCase(Locale.ROOT);
+            if(host.endsWith(".")) {
+                host = host.substring(0, host.length() - 1);
+            }
+            boolean ipAddress = InetAddresses.isInetAddress(host);
+
+            boolean hasDnsNames = false;
+            Collection<List<?>> alternativeNames = certificate.getSubjectAlternativeNames();
+            if(alternativeNames != null) {
+                for(List<?> alternativeName : alternativeNames) {
+                    int type = (Integer) alternativeName.get(0);
+                    if(type == 2) {
+                        hasDnsNames = true;
+                        if(!ipAddress && matchesName(host, (String) alternativeName.get(1))) return true;
+                    } else if(type == 7 && ipAddress) {
+                        String address = (String) alternativeName.get(1);
+                        if(InetAddresses.isInetAddress(address) && InetAddresses.forString(address).equals(InetAddresses.forString(host))) return true;
+                    }
                 }
-            } };
+            }
+            if(ipAddress || hasDnsNames) {
+                return false;
+            }
+
+            String commonName = commonName(certificate);
+            return commonName != null && matchesName(host, commonName);
+        }
+
+        private static boolean matchesName(String host, String name) {
+            name = name.toLowerCase(Locale.ROOT);
+            if(name.endsWith(".")) {
+                name = name.substring(0, name.length() - 1);
+            }
+            if(!name.startsWith("*.")) {
+                return host.equals(name);
+            }
+            int firstDot = host.indexOf('.');
+            return firstDot > 0 && host.substring(firstDot).equals(name.substring(1));
+        }
 
-            // Install the all-trusting trust manager
-            SSLContext sslContext = SSLContext.getInstance( "SSL" );
+        private static String commonName(X509Certificate certificate) throws CertificateException {
             try {
-                sslContext.init( null, trustAllCerts, new java.security.SecureRandom() );
-            } catch (KeyManagementException e) {
-                e.printStackTrace();
+                String commonName = null;
+                // the RDNs are listed from the least specific, so the last common name is the most specific.
+                for(Rdn rdn : new LdapName(certificate.getSubjectX500Principal().getName(X500Principal.RFC2253)).getRdns()) {
+                    if("CN".equalsIgnoreCase(rdn.getType())) {
+                        commonName = rdn.getValue().toString();
+                    }
+                }
+                return commonName;
+            } catch (InvalidNameException e) {
+                throw new CertificateException("Unable to parse the subject of the certificate", e);
             }
-            return sslContext.createSSLEngine(hostString, inetSocketAddress.getPort());
-        } else {
-            return SSLContext.getDefault().createSSLEngine(hostString, inetSocketAddress.getPort());
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine) {
+
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket) {
+
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType) {
+
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return new X509Certificate[0];
         }
     }
 }
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2013, Found AS.
+ * See LICENSE for details.
+ */
+
+package no.found.elasticsearch.transport.netty;
+
+import org.elasticsearch.common.netty.buffer.ChannelBuffer;
+import org.elasticsearch.common.unit.TimeValue;
+
+/**
+ * What Found Elasticsearch advertised when it accepted a connection with revision 2 of the header.
+ *
+ * A revision 2 response ends with the capabilities of the proxy, followed by a list of tunables as
+ * pairs of an int key and a long value. Tunables with keys that are not known here are skipped, so the
+ * proxy may add new ones. Connections accepted with revision 1 have {@link #NONE no capabilities}.
+ */
+public class FoundServerCapabilities {
+    /** The proxy can route a connection to the node named in the header. */
+    public static final int NODE_ROUTING = 1;
+    /** The proxy understands the keep-alive messages. */
+    public static final int KEEP_ALIVE = 1 << 1;
+
+    /** How long the proxy keeps a connection without reads or writes open, in milliseconds. */
+    public static final int IDLE_TIMEOUT = 1;
+    /** How often the proxy would like idle connections to send a keep-alive message, in milliseconds. */
+    public static final int KEEP_ALIVE_INTERVAL = 2;
+
+    public static final FoundServerCapabilities NONE = new FoundServerCapabilities(1, 0, -1, -1);
+
+    private final int revision;
+    private final int capabilities;
+    private final long idleTimeoutMillis;
+    private final long keepAliveIntervalMillis;
+
+    public FoundServerCapabilities(int revision, int capabilities, long idleTimeoutMillis, long keepAliveIntervalMillis) {
+        this.revision = revision;
+        this.capabilities = capabilities;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.keepAliveIntervalMillis = keepAliveIntervalMillis;
+    }
+
+    /**
+     * Reads the capabilities and tunables at the end of a revision 2 response, up to the given index.
+     */
+    static FoundServerCapabilities read(ChannelBuffer buffer, int endIndex) {
+        if (endIndex - buffer.readerIndex() < 8) {
+            return new FoundServerCapabilities(2, 0, -1, -1);
+        }
+        int capabilities = buffer.readInt();
+        int tunables = buffer.readInt();
+
+        long idleTimeoutMillis = -1;
+        long keepAliveIntervalMillis = -1;
+        for (int i = 0; i < tunables && endIndex - buffer.readerIndex() >= 12; i++) {
+            int key = buffer.readInt();
+            long value = buffer.readLong();
+            switch (key) {
+                case IDLE_TIMEOUT:
+                    idleTimeoutMillis = value;
+                    break;
+                case KEEP_ALIVE_INTERVAL:
+                    keepAliveIntervalMillis = value;
+                    break;
+                default:
+                    // added by a later revision of the proxy
+            }
+        }
+        return new FoundServerCapabilities(2, capabilities, idleTimeoutMillis, keepAliveIntervalMillis);
+    }
+
+    /**
+     * Returns the revision of the response the capabilities came with.
+     */
+    public int getRevision() {
+        return revision;
+    }
+
+    public boolean supports(int capability) {
+        return (capabilities & capability) == capability;
+    }
+
+    /**
+     * Returns the idle timeout of the proxy, or {@code null} if it did not advertise one.
+     */
+    public TimeValue getIdleTimeout() {
+        return idleTimeoutMillis > 0 ? TimeValue.timeValueMillis(idleTimeoutMillis) : null;
+    }
+
+    /**
+     * Returns the keep-alive interval preferred by the proxy, or {@code null} if it did not advertise one.
+     */
+    public TimeValue getKeepAliveInterval() {
+        return keepAliveIntervalMillis > 0 ? TimeValue.timeValueMillis(keepAliveIntervalMillis) : null;
+    }
+
+    /**
+     * Returns the keep-alive interval to use instead of the configured one: never longer than the interval
+     * preferred by the proxy, and short enough that an idle connection sends two keep-alive messages before
+     * the proxy would time it out. Disabled keep-alives stay disabled.
+     */
+    public TimeValue adjustKeepAliveInterval(TimeValue configured) {
+        long interval = configured.millis();
+        if (interval <= 0) {
+            return configured;
+        }
+        if (keepAliveIntervalMillis > 0) {
+            interval = Math.min(interval, keepAliveIntervalMillis);
+        }
+        if (idleTimeoutMillis > 0) {
+            interval = Math.min(interval, Math.max(1, idleTimeoutMillis / 2));
+        }
+        return interval == configured.millis() ? configured : TimeValue.timeValueMillis(interval);
+    }
+
+    @Override
+    public String toString() {
+        return "revision [" + revision + "], capabilities [" + capabilities + "], idle timeout [" + getIdleTimeout() +
+            "], keep-alive interval [" + getKeepAliveInterval() + "]";
+    }
+}
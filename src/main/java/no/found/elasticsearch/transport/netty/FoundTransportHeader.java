@@ -8,36 +8,137 @@ package no.found.elasticsearch.transport.netty;
 import org.elasticsearch.Version;
 import org.elasticsearch.common.netty.buffer.ChannelBuffer;
 import org.elasticsearch.common.netty.buffer.ChannelBuffers;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
 
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * An utility class for generating the initial headers for auth.
+ *
+ * The header is encoded once, when the first buffer is requested. Every buffer returned afterwards is a
+ * read-only view of the same bytes.
+ *
+ * Revision 2 of the header adds the {@link FoundServerCapabilities capabilities} of the client after the
+ * API-key, and always ends with the id of the target node, which is empty if the connection isn't routed.
+ * A proxy that accepts revision 2 answers with its own capabilities and tunables. Only revision 2 can name
+ * the node that the proxy should route a connection to.
+ *
+ * The routed headers, and the header with the other revision, are kept by the header they were derived from,
+ * so they are only encoded once however many connections use them, until the node is
+ * {@link #forgetRoutedTo(String) forgotten}.
  */
 public class FoundTransportHeader {
     private final String clusterName;
     private final String apiKey;
+    private final String targetNode;
+    private final int revision;
+
+    private volatile byte[] headerBytes;
+
+    // the headers derived from this one, by the id of the node they route to, and with the other revision.
+    private final ConcurrentMap<String, FoundTransportHeader> routedHeaders = ConcurrentCollections.newConcurrentMap();
+    private volatile FoundTransportHeader otherRevision;
 
     private static final int revisionLength = 4;
-    private static final int revision = 1;
+
+    /** The capabilities the client advertises in a revision 2 header. */
+    public static final int CLIENT_CAPABILITIES = FoundServerCapabilities.NODE_ROUTING | FoundServerCapabilities.KEEP_ALIVE;
+    private static final int capabilitiesLength = 4;
 
     private static final int versionLength = 4;
     private static final int moduleVersionLength = 4;
 
     public FoundTransportHeader(String clusterName, String apiKey) {
+        this(clusterName, apiKey, null, 1);
+    }
+
+    /**
+     * @param targetNode the id of the node that the proxy should route the connection to, or {@code null}.
+     *                   Requires revision 2.
+     * @param revision the revision of the header, 1 or 2.
+     */
+    public FoundTransportHeader(String clusterName, String apiKey, String targetNode, int revision) {
+        if (revision != 1 && revision != 2) {
+            throw new IllegalArgumentException("Unsupported revision of the Found header [" + revision + "]");
+        }
+        if (targetNode != null && revision < 2) {
+            throw new IllegalArgumentException("Routing to node [" + targetNode + "] requires revision 2 of the Found header");
+        }
         this.clusterName = clusterName;
         this.apiKey = apiKey;
+        this.targetNode = targetNode;
+        this.revision = revision;
+    }
+
+    /**
+     * Returns a header for the same cluster and API-key, for connections routed to the given node.
+     */
+    public FoundTransportHeader routedTo(String targetNode) {
+        FoundTransportHeader routed = routedHeaders.get(targetNode);
+        if (routed == null) {
+            routed = new FoundTransportHeader(clusterName, apiKey, targetNode, revision);
+            FoundTransportHeader existing = routedHeaders.putIfAbsent(targetNode, routed);
+            if (existing != null) {
+                routed = existing;
+            }
+        }
+        return routed;
+    }
+
+    /**
+     * Forgets the header routed to the given node, with either revision.
+     */
+    public void forgetRoutedTo(String targetNode) {
+        routedHeaders.remove(targetNode);
+        FoundTransportHeader header = otherRevision;
+        if (header != null) {
+            header.routedHeaders.remove(targetNode);
+        }
     }
 
     /**
-     * Constructs and returns a new ChannelBuffer with the correct header for the given
-     * cluster and API-key.
+     * Returns this header, or the same header with the given revision.
+     */
+    public FoundTransportHeader withRevision(int revision) {
+        if (revision == this.revision) {
+            return this;
+        }
+        FoundTransportHeader header = otherRevision;
+        if (header == null || header.revision != revision) {
+            header = new FoundTransportHeader(clusterName, apiKey, targetNode, revision);
+            otherRevision = header;
+        }
+        return header;
+    }
+
+    public String getTargetNode() {
+        return targetNode;
+    }
+
+    public int getRevision() {
+        return revision;
+    }
+
+    /**
+     * Returns a new ChannelBuffer with the correct header for the given cluster and API-key.
      *
      * @return The ChannelBuffer containing the header.
      * @throws IOException
      */
     public ChannelBuffer getHeaderBuffer() throws IOException {
+        byte[] bytes = headerBytes;
+        if (bytes == null) {
+            ChannelBuffer header = encodeHeader();
+            bytes = new byte[header.readableBytes()];
+            header.readBytes(bytes);
+            headerBytes = bytes;
+        }
+        return ChannelBuffers.unmodifiableBuffer(ChannelBuffers.wrappedBuffer(bytes));
+    }
+
+    private ChannelBuffer encodeHeader() throws IOException {
         byte[] clusterNameBytes = clusterName.getBytes(StandardCharsets.UTF_8);
         int clusterNameLength = clusterNameBytes.length;
 
@@ -59,6 +160,18 @@ public class FoundTransportHeader {
                 apiKeyBytes
         );
 
+        if (revision >= 2) {
+            byte[] targetNodeBytes = targetNode != null ? targetNode.getBytes(StandardCharsets.UTF_8) : new byte[0];
+
+            headerPayload = ChannelBuffers.wrappedBuffer(
+                    headerPayload,
+                    ChannelBuffers.wrappedBuffer(getIntBytes(capabilitiesLength)),
+                    ChannelBuffers.wrappedBuffer(getIntBytes(CLIENT_CAPABILITIES)),
+                    ChannelBuffers.wrappedBuffer(getIntBytes(targetNodeBytes.length)),
+                    ChannelBuffers.wrappedBuffer(targetNodeBytes)
+            );
+        }
+
         return ChannelBuffers.wrappedBuffer(
                 ChannelBuffers.wrappedBuffer(getIntBytes(headerPayload.readableBytes())),
                 headerPayload
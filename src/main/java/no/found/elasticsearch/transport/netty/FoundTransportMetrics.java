@@ -0,0 +1,60 @@
+/*
+ * Copyright (c) 2013, Found AS.
+ * See LICENSE for details.
+ */
+
+package no.found.elasticsearch.transport.netty;
+
+import no.found.elasticsearch.transport.netty.ssl.SslMetrics;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.common.util.concurrent.jsr166e.LongAdder;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * The metrics of the data path of a transport, updated by the handlers of its connections.
+ *
+ * All counters are striped, so connections on different netty workers don't contend when updating them.
+ */
+public class FoundTransportMetrics {
+    /**
+     * The code that responses that could not be understood are counted under.
+     */
+    public static final int UNKNOWN_RESPONSE_CODE = -1;
+
+    private final SslMetrics sslMetrics = new SslMetrics();
+    private final ConcurrentMap<Integer, LongAdder> authenticationFailures = ConcurrentCollections.newConcurrentMap();
+
+    public SslMetrics getSslMetrics() {
+        return sslMetrics;
+    }
+
+    /**
+     * Counts a connection that Found Elasticsearch did not accept.
+     *
+     * @param code the status code of the response.
+     */
+    public void authenticationFailed(int code) {
+        LongAdder failures = authenticationFailures.get(code);
+        if (failures == null) {
+            LongAdder existing = authenticationFailures.putIfAbsent(code, failures = new LongAdder());
+            if (existing != null) {
+                failures = existing;
+            }
+        }
+        failures.increment();
+    }
+
+    /**
+     * Returns the number of connections that were not accepted, by the status code of the response.
+     */
+    public Map<Integer, Long> getAuthenticationFailures() {
+        Map<Integer, Long> failures = new TreeMap<Integer, Long>();
+        for (Map.Entry<Integer, LongAdder> entry : authenticationFailures.entrySet()) {
+            failures.put(entry.getKey(), entry.getValue().sum());
+        }
+        return failures;
+    }
+}
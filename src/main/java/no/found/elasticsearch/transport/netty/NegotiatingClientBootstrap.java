@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2013, Found AS.
+ * See LICENSE for details.
+ */
+
+package no.found.elasticsearch.transport.netty;
+
+import org.elasticsearch.common.netty.bootstrap.ClientBootstrap;
+import org.elasticsearch.common.netty.channel.Channel;
+import org.elasticsearch.common.netty.channel.ChannelFuture;
+import org.elasticsearch.common.netty.channel.ChannelFutureListener;
+import org.elasticsearch.common.netty.channel.DefaultChannelFuture;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+
+/**
+ * A client bootstrap that retries the connections that probe a Found host for revision 2 of the header.
+ *
+ * While a host hasn't accepted revision 2 yet, a connection to it only completes once Found Elasticsearch
+ * has answered its header, so nothing has been written on it when the answer is that the revision is not
+ * supported. The connection is then made again once, with revision 1, and the new channel takes its place.
+ * Connections to hosts that are known to accept revision 2 or are sent revision 1 are made as usual.
+ */
+public class NegotiatingClientBootstrap extends ClientBootstrap {
+    private final ClientBootstrap delegate;
+    private final FoundConnectionProfile profile;
+
+    /**
+     * @param delegate the bootstrap that makes the connections.
+     * @param profile the profile with the host suffixes and the header negotiation.
+     */
+    public NegotiatingClientBootstrap(ClientBootstrap delegate, FoundConnectionProfile profile) {
+        super(delegate.getFactory());
+        this.delegate = delegate;
+        this.profile = profile;
+    }
+
+    @Override
+    public ChannelFuture connect(SocketAddress remoteAddress, SocketAddress localAddress) {
+        FoundHeaderNegotiation negotiation = profile.getHeaderNegotiation();
+        if (negotiation == null || !(remoteAddress instanceof InetSocketAddress)) {
+            return delegate.connect(remoteAddress, localAddress);
+        }
+
+        String host = ((InetSocketAddress) remoteAddress).getHostString();
+        if (!profile.isFoundHost(host) || !negotiation.isProbing(host)) {
+            return delegate.connect(remoteAddress, localAddress);
+        }
+
+        ProbingConnectFuture future = new ProbingConnectFuture(remoteAddress, localAddress);
+        future.attempt(delegate.connect(remoteAddress, localAddress), false);
+        return future;
+    }
+
+    /**
+     * The future of a connection that probes a host. Its channel is the channel of the latest attempt.
+     */
+    private class ProbingConnectFuture extends DefaultChannelFuture {
+        private final SocketAddress remoteAddress;
+        private final SocketAddress localAddress;
+        private volatile ChannelFuture attempt;
+
+        ProbingConnectFuture(SocketAddress remoteAddress, SocketAddress localAddress) {
+            super(null, true);
+            this.remoteAddress = remoteAddress;
+            this.localAddress = localAddress;
+        }
+
+        @Override
+        public Channel getChannel() {
+            return attempt.getChannel();
+        }
+
+        void attempt(ChannelFuture connect, final boolean retry) {
+            attempt = connect;
+            connect.addListener(new ChannelFutureListener() {
+                @Override
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    if (!future.isSuccess()) {
+                        setFailure(future.getCause());
+                        return;
+                    }
+                    final FoundAuthenticatingChannelHandler handler = future.getChannel().getPipeline().get(FoundAuthenticatingChannelHandler.class);
+                    ChannelFuture authenticated = handler == null ? null : handler.getAuthenticationFuture();
+                    if (retry || authenticated == null) {
+                        setSuccess();
+                        return;
+                    }
+                    authenticated.addListener(new ChannelFutureListener() {
+                        @Override
+                        public void operationComplete(ChannelFuture future) throws Exception {
+                            if (future.isSuccess()) {
+                                setSuccess();
+                            } else if (handler.isRevisionUnsupported() && !isDone()) {
+                                attempt(delegate.connect(remoteAddress, localAddress), true);
+                            } else {
+                                setFailure(future.getCause());
+                            }
+                        }
+                    });
+                }
+            });
+        }
+
+        @Override
+        public boolean cancel() {
+            if (!super.cancel()) {
+                return false;
+            }
+            ChannelFuture current = attempt;
+            current.cancel();
+            Channel channel = current.getChannel();
+            if (channel != null && channel.isOpen()) {
+                channel.close();
+            }
+            return true;
+        }
+    }
+}
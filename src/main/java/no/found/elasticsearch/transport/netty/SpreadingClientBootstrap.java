@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2013, Found AS.
+ * See LICENSE for details.
+ */
+
+package no.found.elasticsearch.transport.netty;
+
+import org.elasticsearch.common.netty.bootstrap.ClientBootstrap;
+import org.elasticsearch.common.netty.channel.Channel;
+import org.elasticsearch.common.netty.channel.ChannelFactory;
+import org.elasticsearch.common.netty.channel.ChannelFuture;
+import org.elasticsearch.common.netty.channel.ChannelFutureListener;
+import org.elasticsearch.common.netty.channel.DefaultChannelFuture;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A client bootstrap that spreads the connections to a Found host across all of its resolved addresses.
+ *
+ * The load balancers in front of Found Elasticsearch resolve to several addresses. Every connection to a
+ * {@link FoundConnectionProfile#isFoundHost(String) Found host} starts with the next of its addresses in turn, so the channels of
+ * a node end up spread across the addresses instead of all going through the first one. If the connection
+ * hasn't been established within the attempt delay, the next address is tried in parallel, and the first
+ * connection to succeed wins while the others are closed. A failed attempt has the next address tried right
+ * away.
+ *
+ * Hosts that haven't been resolved yet, and hosts that are not Found hosts, are connected to as usual.
+ */
+public class SpreadingClientBootstrap extends ClientBootstrap {
+    private final FoundAddressResolver addressResolver;
+    private final ScheduledExecutorService scheduler;
+    private final FoundConnectionProfile profile;
+    private final TimeValue attemptDelay;
+
+    private final ConcurrentMap<String, AtomicInteger> nextAddress = ConcurrentCollections.newConcurrentMap();
+
+    /**
+     * @param scheduler the scheduler that starts the delayed attempts.
+     * @param profile the profile that tells the Found hosts from the others.
+     * @param attemptDelay how long to wait for an attempt before also trying the next address.
+     */
+    public SpreadingClientBootstrap(ChannelFactory channelFactory, FoundAddressResolver addressResolver, ScheduledExecutorService scheduler, FoundConnectionProfile profile, TimeValue attemptDelay) {
+        super(channelFactory);
+        this.addressResolver = addressResolver;
+        this.scheduler = scheduler;
+        this.profile = profile;
+        this.attemptDelay = attemptDelay;
+    }
+
+    @Override
+    public ChannelFuture connect(SocketAddress remoteAddress, SocketAddress localAddress) {
+        if (!(remoteAddress instanceof InetSocketAddress)) {
+            return super.connect(remoteAddress, localAddress);
+        }
+
+        InetSocketAddress inetAddress = (InetSocketAddress) remoteAddress;
+        String host = inetAddress.getHostString();
+        if (!profile.isFoundHost(host)) {
+            return super.connect(remoteAddress, localAddress);
+        }
+
+        InetAddress[] addresses = addressResolver.getAddresses(host);
+        if (addresses == null || addresses.length < 2) {
+            return super.connect(remoteAddress, localAddress);
+        }
+
+        AtomicInteger next = nextAddress.get(host);
+        if (next == null) {
+            AtomicInteger existing = nextAddress.putIfAbsent(host, next = new AtomicInteger());
+            if (existing != null) {
+                next = existing;
+            }
+        }
+        int first = (next.getAndIncrement() & Integer.MAX_VALUE) % addresses.length;
+
+        // the resolved addresses keep the host name, which the pipeline uses to decide how to connect.
+        InetSocketAddress[] targets = new InetSocketAddress[addresses.length];
+        for (int i = 0; i < addresses.length; i++) {
+            targets[i] = FoundRoutedAddress.withAddress(inetAddress, addresses[(first + i) % addresses.length]);
+        }
+
+        ParallelConnectFuture future = new ParallelConnectFuture(targets, localAddress);
+        future.startNextAttempt();
+        return future;
+    }
+
+    private ChannelFuture connectTo(SocketAddress remoteAddress, SocketAddress localAddress) {
+        return super.connect(remoteAddress, localAddress);
+    }
+
+    /**
+     * The future of a connection that is attempted to several addresses. Its channel is the channel of the
+     * first attempt until one of them succeeds.
+     */
+    private class ParallelConnectFuture extends DefaultChannelFuture implements ChannelFutureListener {
+        private final InetSocketAddress[] targets;
+        private final SocketAddress localAddress;
+        private final List<ChannelFuture> attempts = new ArrayList<ChannelFuture>();
+        private int failures;
+        private volatile Channel winner;
+
+        ParallelConnectFuture(InetSocketAddress[] targets, SocketAddress localAddress) {
+            super(null, true);
+            this.targets = targets;
+            this.localAddress = localAddress;
+        }
+
+        @Override
+        public Channel getChannel() {
+            Channel channel = winner;
+            if (channel != null) {
+                return channel;
+            }
+            synchronized (this) {
+                return attempts.isEmpty() ? null : attempts.get(0).getChannel();
+            }
+        }
+
+        synchronized void startNextAttempt() {
+            if (isDone() || winner != null || attempts.size() == targets.length) {
+                return;
+            }
+
+            ChannelFuture attempt = connectTo(targets[attempts.size()], localAddress);
+            attempts.add(attempt);
+            attempt.addListener(this);
+
+            if (attempts.size() < targets.length && !isDone()) {
+                try {
+                    scheduler.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            startNextAttempt();
+                        }
+                    }, attemptDelay.millis(), TimeUnit.MILLISECONDS);
+                } catch (RejectedExecutionException e) {
+                    // the scheduler is shutting down, failed attempts still move on to the next address.
+                }
+            }
+        }
+
+        @Override
+        public void operationComplete(ChannelFuture attempt) throws Exception {
+            synchronized (this) {
+                if (attempt.isSuccess()) {
+                    if (isDone()) {
+                        attempt.getChannel().close();
+                        return;
+                    }
+                    winner = attempt.getChannel();
+                    for (ChannelFuture other : attempts) {
+                        if (other != attempt) {
+                            abort(other);
+                        }
+                    }
+                } else {
+                    failures++;
+                    if (isDone()) {
+                        return;
+                    }
+                    if (failures < targets.length) {
+                        if (failures == attempts.size()) {
+                            // nothing left in flight, don't wait for the delay.
+                            startNextAttempt();
+                        }
+                        return;
+                    }
+                }
+            }
+
+            if (attempt.isSuccess()) {
+                setSuccess();
+            } else {
+                setFailure(attempt.getCause());
+            }
+        }
+
+        @Override
+        public boolean cancel() {
+            if (!super.cancel()) {
+                return false;
+            }
+            synchronized (this) {
+                for (ChannelFuture attempt : attempts) {
+                    abort(attempt);
+                }
+            }
+            return true;
+        }
+
+        private void abort(ChannelFuture attempt) {
+            attempt.cancel();
+            Channel channel = attempt.getChannel();
+            if (channel != null && channel.isOpen()) {
+                channel.close();
+            }
+        }
+    }
+}
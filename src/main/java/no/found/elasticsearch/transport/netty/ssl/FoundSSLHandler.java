@@ -16,7 +16,6 @@
 
 package no.found.elasticsearch.transport.netty.ssl;
 
-import no.found.elasticsearch.transport.netty.ssl.internal.NonReentrantLock;
 import org.elasticsearch.common.netty.buffer.ChannelBuffer;
 import org.elasticsearch.common.netty.buffer.ChannelBuffers;
 import org.elasticsearch.common.netty.channel.*;
@@ -33,17 +32,20 @@ import javax.net.ssl.SSLEngineResult;
 import javax.net.ssl.SSLEngineResult.HandshakeStatus;
 import javax.net.ssl.SSLEngineResult.Status;
 import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.DatagramChannel;
 import java.nio.channels.SocketChannel;
-import java.util.LinkedList;
+import java.util.Arrays;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Pattern;
 
 import static org.elasticsearch.common.netty.channel.Channels.*;
@@ -172,6 +174,24 @@ public class FoundSSLHandler extends FrameDecoder
 
     private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
 
+    /**
+     * The number of maximum-sized records that fit in a single outbound buffer when
+     * {@link #isWrapDirect() wrapping directly}.
+     */
+    private static final int WRAP_DIRECT_RECORDS_PER_BUFFER = 4;
+
+    /**
+     * The maximum number of pending writes that are passed to a single gathering
+     * {@link SSLEngine#wrap(ByteBuffer[], int, int, ByteBuffer)} call.
+     */
+    private static final int MAX_GATHERED_WRITES = 256;
+
+    /**
+     * The plaintext in the first records with {@link #isDynamicRecordSizing() dynamic record sizing}. Along
+     * with the overhead of a record it fits in a single TCP segment of a 1500 byte MTU.
+     */
+    public static final int DEFAULT_INITIAL_RECORD_SIZE = 1400;
+
     private static final Pattern IGNORABLE_CLASS_IN_STACK = Pattern.compile(
             "^.*(?:Socket|Datagram|Sctp|Udt)Channel.*$");
     private static final Pattern IGNORABLE_ERROR_MESSAGE = Pattern.compile(
@@ -199,7 +219,7 @@ public class FoundSSLHandler extends FrameDecoder
     private volatile boolean enableRenegotiation = true;
 
     final Object handshakeLock = new Object();
-    private boolean handshaking;
+    private volatile boolean handshaking;
     private volatile boolean handshaken;
     private volatile ChannelFuture handshakeFuture;
 
@@ -207,13 +227,44 @@ public class FoundSSLHandler extends FrameDecoder
     private final AtomicBoolean sentCloseNotify = new AtomicBoolean();
     int ignoreClosedChannelException;
     final Object ignoreClosedChannelExceptionLock = new Object();
-    private final Queue<PendingWrite> pendingUnencryptedWrites = new LinkedList<PendingWrite>();
-    private final NonReentrantLock pendingUnencryptedWritesLock = new NonReentrantLock();
+    private final Queue<PendingWrite> pendingUnencryptedWrites = new ConcurrentLinkedQueue<PendingWrite>();
+    private final AtomicInteger wrapWip = new AtomicInteger();
+    private PendingWrite[] gatheredWrites = new PendingWrite[16];
+    private ByteBuffer[] gatheredAppBufs = new ByteBuffer[16];
+    private int clampedIndex = -1;
+    private int clampedLimit;
     private final Queue<MessageEvent> pendingEncryptedWrites = new ConcurrentLinkedQueue<MessageEvent>();
-    private final NonReentrantLock pendingEncryptedWritesLock = new NonReentrantLock();
+    private final AtomicInteger flushWip = new AtomicInteger();
+    private volatile int applicationBufferSize;
+    private volatile int packetBufferSize;
 
     private volatile boolean issueHandshake;
 
+    private volatile boolean wrapDirect;
+    private ChannelBuffer outNetSlab;
+
+    private volatile boolean batchUnwrap;
+
+    private volatile int maxRecordSize;
+
+    private volatile boolean dynamicRecordSizing;
+    private volatile int initialRecordSize = DEFAULT_INITIAL_RECORD_SIZE;
+    private volatile long recordSizeIdleResetNanos = TimeUnit.SECONDS.toNanos(1);
+    private int dynamicRecordSize;
+    private int dynamicRecordLimit;
+    private long lastRecordNanos;
+
+    private final long creationTime = System.currentTimeMillis();
+    private volatile boolean sessionResumed;
+    private volatile boolean tls13;
+    private volatile HandshakeListener handshakeListener;
+    private SslMetrics metrics;
+    private volatile long handshakeStartNanos;
+
+    private final AtomicBoolean delegatedTasksPending = new AtomicBoolean();
+    private volatile ChannelBuffer pendingInbound;
+    private volatile boolean decodeDeferred;
+
     private final SSLEngineInboundCloseFuture sslEngineCloseFuture = new SSLEngineInboundCloseFuture();
 
     private boolean closeOnSSLException;
@@ -406,6 +457,7 @@ public class FoundSSLHandler extends FrameDecoder
             }
 
             handshaking = true;
+            handshakeStartNanos = System.nanoTime();
             try {
                 engine.beginHandshake();
                 runDelegatedTasks();
@@ -527,6 +579,156 @@ public class FoundSSLHandler extends FrameDecoder
         return issueHandshake;
     }
 
+    /**
+     * Enables or disables wrapping directly into the outbound {@link ChannelBuffer}. When enabled,
+     * {@link SSLEngine#wrap(ByteBuffer, ByteBuffer)} writes each record straight into a buffer
+     * obtained from the channel's buffer factory, instead of into a pooled buffer that then has
+     * to be copied.
+     */
+    public void setWrapDirect(boolean wrapDirect) {
+        this.wrapDirect = wrapDirect;
+    }
+
+    /**
+     * Returns {@code true} if records are wrapped directly into the outbound {@link ChannelBuffer}.
+     */
+    public boolean isWrapDirect() {
+        return wrapDirect;
+    }
+
+    /**
+     * Enables or disables batched unwrapping. When enabled, all complete records that are available
+     * when a read is decoded are unwrapped straight into a single {@link ChannelBuffer}, which is then
+     * sent upstream as one message, instead of one message per record.
+     */
+    public void setBatchUnwrap(boolean batchUnwrap) {
+        this.batchUnwrap = batchUnwrap;
+    }
+
+    /**
+     * Returns {@code true} if all complete records of a read are unwrapped into a single message.
+     */
+    public boolean isBatchUnwrap() {
+        return batchUnwrap;
+    }
+
+    /**
+     * Sets the largest amount of plaintext to encrypt into a single record. Smaller records can be
+     * decrypted by the peer as soon as they arrive, instead of when the rest of a full-sized record has.
+     * 0, the default, uses the largest records the engine supports.
+     */
+    public void setMaxRecordSize(int maxRecordSize) {
+        this.maxRecordSize = maxRecordSize;
+    }
+
+    /**
+     * Returns the largest amount of plaintext to encrypt into a single record, or 0 if records are not limited.
+     */
+    public int getMaxRecordSize() {
+        return maxRecordSize;
+    }
+
+    /**
+     * Enables or disables dynamic record sizing. When enabled, the first records of a connection, and the
+     * first records after it has been idle, are small enough to fit in a single TCP segment, so the peer
+     * can decrypt the start of a message as soon as the first segment arrives, even while the congestion
+     * window of a new connection is still small. The size of the records doubles every time a record is
+     * filled, until records are as large as the engine allows.
+     */
+    public void setDynamicRecordSizing(boolean dynamicRecordSizing) {
+        this.dynamicRecordSizing = dynamicRecordSizing;
+    }
+
+    /**
+     * Returns {@code true} if records start out small and grow as long as data keeps flowing.
+     */
+    public boolean isDynamicRecordSizing() {
+        return dynamicRecordSizing;
+    }
+
+    /**
+     * Sets the amount of plaintext in the first record with dynamic record sizing.
+     */
+    public void setInitialRecordSize(int initialRecordSize) {
+        this.initialRecordSize = initialRecordSize;
+    }
+
+    /**
+     * Sets how long a connection has to go without writing a record before dynamic record sizing starts
+     * over with small records.
+     */
+    public void setRecordSizeIdleReset(long idleReset, TimeUnit unit) {
+        this.recordSizeIdleResetNanos = unit.toNanos(idleReset);
+    }
+
+    /**
+     * Sets the listener that is notified every time a handshake has completed successfully.
+     */
+    public void setHandshakeListener(HandshakeListener handshakeListener) {
+        this.handshakeListener = handshakeListener;
+    }
+
+    /**
+     * Sets the metrics that the bytes and records encrypted and decrypted by this handler are counted in.
+     * Must be set before the handler is added to a pipeline.
+     */
+    public void setMetrics(SslMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    int getPendingUnencryptedWriteCount() {
+        return pendingUnencryptedWrites.size();
+    }
+
+    int getPendingEncryptedWriteCount() {
+        return pendingEncryptedWrites.size();
+    }
+
+    /**
+     * Returns {@code true} if the last completed handshake resumed a session that was established
+     * before this handler was created, i.e. was an abbreviated handshake.
+     */
+    public boolean isSessionResumed() {
+        return sessionResumed;
+    }
+
+    /**
+     * Returns the {@link System#nanoTime()} at which the current or last handshake was started, or 0 if no
+     * handshake has been started.
+     */
+    public long getHandshakeStartNanos() {
+        return handshakeStartNanos;
+    }
+
+    /**
+     * Returns the future of the current or last handshake, or {@code null} if the channel is not connected yet.
+     * A handshake that is not {@link #setIssueHandshake(boolean) issued} by the handler is started by the engine
+     * with the first write, and completes this future like any other.
+     */
+    public ChannelFuture getHandshakeFuture() {
+        return handshakeFuture;
+    }
+
+    /**
+     * Tracks the handshake that the engine starts by itself on the first wrap, if no handshake has been
+     * started by {@link #handshake()}, so it gets a start time and completes the handshake future.
+     */
+    private void beginImplicitHandshake(Channel channel) {
+        if (handshakeStartNanos != 0) {
+            return;
+        }
+        synchronized (handshakeLock) {
+            if (handshaken || handshaking || handshakeStartNanos != 0) {
+                return;
+            }
+            handshaking = true;
+            handshakeStartNanos = System.nanoTime();
+            if (handshakeFuture == null) {
+                handshakeFuture = future(channel);
+            }
+        }
+    }
+
     /**
      * Return the {@link ChannelFuture} that will get notified if the inbound of the {@link SSLEngine} will get closed.
      *
@@ -610,12 +812,7 @@ public class FoundSSLHandler extends FrameDecoder
             pendingWrite = new PendingWrite(evt.getFuture(), null);
         }
 
-        pendingUnencryptedWritesLock.lock();
-        try {
-            pendingUnencryptedWrites.add(pendingWrite);
-        } finally {
-            pendingUnencryptedWritesLock.unlock();
-        }
+        pendingUnencryptedWrites.add(pendingWrite);
 
         wrap(context, evt.getChannel());
     }
@@ -792,7 +989,16 @@ public class FoundSSLHandler extends FrameDecoder
      *                  Is thrown if the given {@link ChannelBuffer} has not at least 5 bytes to read.
      */
     private static int getEncryptedPacketLength(ChannelBuffer buffer) {
-        if (buffer.readableBytes() < 5) {
+        return getEncryptedPacketLength(buffer, buffer.readerIndex());
+    }
+
+    /**
+     * Return the length of the encrypted packet starting at the given offset of the {@link ChannelBuffer}.
+     *
+     * @see #getEncryptedPacketLength(ChannelBuffer)
+     */
+    private static int getEncryptedPacketLength(ChannelBuffer buffer, int offset) {
+        if (buffer.writerIndex() - offset < 5) {
             throw new IllegalArgumentException("buffer must have at least 5 readable bytes");
         }
 
@@ -800,7 +1006,7 @@ public class FoundSSLHandler extends FrameDecoder
 
         // SSLv3 or TLS - Check ContentType
         boolean tls;
-        switch (buffer.getUnsignedByte(buffer.readerIndex())) {
+        switch (buffer.getUnsignedByte(offset)) {
             case 20:  // change_cipher_spec
             case 21:  // alert
             case 22:  // handshake
@@ -814,10 +1020,10 @@ public class FoundSSLHandler extends FrameDecoder
 
         if (tls) {
             // SSLv3 or TLS - Check ProtocolVersion
-            int majorVersion = buffer.getUnsignedByte(buffer.readerIndex() + 1);
+            int majorVersion = buffer.getUnsignedByte(offset + 1);
             if (majorVersion == 3) {
                 // SSLv3 or TLS
-                packetLength = (getShort(buffer, buffer.readerIndex() + 3) & 0xFFFF) + 5;
+                packetLength = (getShort(buffer, offset + 3) & 0xFFFF) + 5;
                 if (packetLength <= 5) {
                     // Neither SSLv3 or TLSv1 (i.e. SSLv2 or bad data)
                     tls = false;
@@ -832,15 +1038,15 @@ public class FoundSSLHandler extends FrameDecoder
             // SSLv2 or bad data - Check the version
             boolean sslv2 = true;
             int headerLength = (buffer.getUnsignedByte(
-                    buffer.readerIndex()) & 0x80) != 0 ? 2 : 3;
+                    offset) & 0x80) != 0 ? 2 : 3;
             int majorVersion = buffer.getUnsignedByte(
-                    buffer.readerIndex() + headerLength + 1);
+                    offset + headerLength + 1);
             if (majorVersion == 2 || majorVersion == 3) {
                 // SSLv2
                 if (headerLength == 2) {
-                    packetLength = (getShort(buffer, buffer.readerIndex()) & 0x7FFF) + 2;
+                    packetLength = (getShort(buffer, offset) & 0x7FFF) + 2;
                 } else {
-                    packetLength = (getShort(buffer, buffer.readerIndex()) & 0x3FFF) + 3;
+                    packetLength = (getShort(buffer, offset) & 0x3FFF) + 3;
                 }
                 if (packetLength <= headerLength) {
                     sslv2 = false;
@@ -860,6 +1066,22 @@ public class FoundSSLHandler extends FrameDecoder
     protected Object decode(
             final ChannelHandlerContext ctx, Channel channel, ChannelBuffer buffer) throws Exception {
 
+        if (delegatedTasksPending.get()) {
+            // the records are decoded once the tasks are done, see resumeAfterDelegatedTasks(). The flag is
+            // set before checking again, so tasks that complete in between see it and resume the decoding.
+            decodeDeferred = true;
+            if (delegatedTasksPending.get()) {
+                return null;
+            }
+        }
+
+        if (batchUnwrap && packetLength == Integer.MIN_VALUE) {
+            ChannelBuffer frame = decodeBatch(ctx, channel, buffer);
+            if (frame != null) {
+                return frame;
+            }
+        }
+
         // Check if the packet length was parsed yet, if so we can skip the parsing
         if (packetLength == Integer.MIN_VALUE) {
             if (buffer.readableBytes() < 5) {
@@ -918,6 +1140,51 @@ public class FoundSSLHandler extends FrameDecoder
         }
     }
 
+    /**
+     * Unwraps all complete records in the buffer into a single frame. Returns {@code null} without
+     * consuming anything if there are fewer than two complete records, in which case the regular
+     * one record per call path of {@link #decode(ChannelHandlerContext, Channel, ChannelBuffer)} is used.
+     */
+    private ChannelBuffer decodeBatch(
+            final ChannelHandlerContext ctx, Channel channel, ChannelBuffer buffer) throws Exception {
+        final int batchOffset = buffer.readerIndex();
+        int batchEnd = batchOffset;
+        int records = 0;
+        while (buffer.writerIndex() - batchEnd >= 5) {
+            int packetLength = getEncryptedPacketLength(buffer, batchEnd);
+            if (packetLength == -1 || buffer.writerIndex() - batchEnd < packetLength) {
+                // bad data and partial records are left to the regular path
+                break;
+            }
+            batchEnd += packetLength;
+            records++;
+        }
+
+        if (records < 2) {
+            return null;
+        }
+
+        // The plaintext is never larger than the records it was decrypted from, so the frame only has to
+        // grow if the engine asks for more room than it will actually use.
+        ChannelBuffer frame = ChannelBuffers.dynamicBuffer(batchEnd - batchOffset, channel.getConfig().getBufferFactory());
+
+        // Advance the readerIndex past the whole batch before unwrapping for the same reason
+        // as explained in decode().
+        buffer.skipBytes(batchEnd - batchOffset);
+        for (int offset = batchOffset; offset < batchEnd;) {
+            int packetLength = getEncryptedPacketLength(buffer, offset);
+            unwrap(ctx, channel, buffer, offset, packetLength, frame);
+            offset += packetLength;
+
+            if (delegatedTasksPending.get()) {
+                // put back the records that have to wait for the delegated tasks
+                buffer.readerIndex(offset);
+                break;
+            }
+        }
+        return frame.readable() ? frame : null;
+    }
+
     /**
      * Reads a big-endian short integer from the buffer.  Please note that we do not use
      * {@link ChannelBuffer#getShort(int)} because it might be a little-endian buffer.
@@ -929,112 +1196,184 @@ public class FoundSSLHandler extends FrameDecoder
     private void wrap(ChannelHandlerContext context, Channel channel)
             throws SSLException {
 
+        // Only one thread at a time drains the queue of unencrypted writes. A thread that finds the
+        // queue already being drained leaves its write to the current owner, and the counter makes
+        // sure the owner runs the drain loop once more before giving up ownership.
+        if (wrapWip.getAndIncrement() != 0) {
+            return;
+        }
+
+        int missed = 1;
+        boolean needsUnwrap = false;
+        boolean released = false;
+        SSLException failure = null;
+        try {
+            for (;;) {
+                if (failure == null) {
+                    try {
+                        needsUnwrap |= wrapPendingWrites(context, channel);
+                    } catch (SSLException e) {
+                        failure = e;
+                    }
+                } else {
+                    failPendingUnencryptedWrites(new IllegalStateException("SSLEngine already closed"));
+                }
+
+                missed = wrapWip.addAndGet(-missed);
+                if (missed == 0) {
+                    released = true;
+                    break;
+                }
+            }
+        } finally {
+            if (!released) {
+                wrapWip.set(0);
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+
+        if (needsUnwrap) {
+            unwrap(context, channel, ChannelBuffers.EMPTY_BUFFER, 0, 0);
+        }
+    }
+
+    /**
+     * Encrypts the pending unencrypted writes. Must only be called by the owner of {@link #wrapWip}.
+     *
+     * @return {@code true} if the engine needs to unwrap before it can wrap any more data.
+     */
+    private boolean wrapPendingWrites(ChannelHandlerContext context, Channel channel)
+            throws SSLException {
+
+        beginImplicitHandshake(channel);
+
         ChannelBuffer msg;
-        ByteBuffer outNetBuf = bufferPool.acquireBuffer();
+        final boolean wrapDirect = this.wrapDirect;
+        ByteBuffer outNetBuf = wrapDirect ? null : bufferPool.acquireBuffer();
         boolean success = true;
         boolean offered = false;
         boolean needsUnwrap = false;
-        PendingWrite pendingWrite = null;
+        PendingWrite[] abandonedWrites = null;
 
         try {
             loop:
             for (;;) {
-                // Acquire a lock to make sure unencrypted data is polled
-                // in order and their encrypted counterpart is offered in
-                // order.
-                pendingUnencryptedWritesLock.lock();
+                if (delegatedTasksPending.get()) {
+                    // the writes are wrapped once the tasks are done, see resumeAfterDelegatedTasks().
+                    break;
+                }
+                PendingWrite pendingWrite = pendingUnencryptedWrites.peek();
+                if (pendingWrite == null) {
+                    if (wrapPostHandshakeMessage(channel)) {
+                        offered = true;
+                        continue;
+                    }
+                    break;
+                }
+
+                if (pendingWrite.outAppBuf == null) {
+                    // A write request with an empty buffer
+                    pendingUnencryptedWrites.remove();
+                    offerEncryptedWriteRequest(
+                            new DownstreamMessageEvent(
+                                    channel, pendingWrite.future,
+                                    ChannelBuffers.EMPTY_BUFFER,
+                                    channel.getRemoteAddress()));
+                    offered = true;
+                    continue;
+                }
+
+                final int gathered = gatherPendingWrites();
                 try {
-                    pendingWrite = pendingUnencryptedWrites.peek();
-                    if (pendingWrite == null) {
-                        break;
+                    SSLEngineResult result = null;
+                    int completed = 0;
+                    try {
+                        result = wrapGatheredWrites(gathered, wrapDirect ? reserveOutNetSlab(channel) : outNetBuf);
+                    } finally {
+                        restoreClampedWrite();
+                        // Writes are consumed in order, so the fully consumed ones are at the head of the queue.
+                        while (completed < gathered && !gatheredAppBufs[completed].hasRemaining()) {
+                            pendingUnencryptedWrites.remove();
+                            completed ++;
+                        }
+                        if (result == null && completed > 0) {
+                            // The engine failed after consuming these, they are notified below.
+                            abandonedWrites = Arrays.copyOf(gatheredWrites, completed);
+                        }
                     }
 
-                    ByteBuffer outAppBuf = pendingWrite.outAppBuf;
-                    if (outAppBuf == null) {
-                        // A write request with an empty buffer
-                        pendingUnencryptedWrites.remove();
-                        offerEncryptedWriteRequest(
-                                new DownstreamMessageEvent(
-                                        channel, pendingWrite.future,
-                                        ChannelBuffers.EMPTY_BUFFER,
-                                        channel.getRemoteAddress()));
+                    if (result.bytesProduced() > 0) {
+                        if (metrics != null) {
+                            metrics.wrapped(result.bytesConsumed(), result.bytesProduced());
+                        }
+                        if (dynamicRecordSizing && result.bytesConsumed() > 0) {
+                            recordWrapped(result.bytesConsumed());
+                        }
+                        if (wrapDirect) {
+                            msg = commitOutNetSlab(result.bytesProduced());
+                        } else {
+                            outNetBuf.flip();
+                            int remaining = outNetBuf.remaining();
+                            msg = ctx.getChannel().getConfig().getBufferFactory().getBuffer(remaining);
+
+                            // Transfer the bytes to the new ChannelBuffer using some safe method that will also
+                            // work with "non" heap buffers
+                            //
+                            // See https://github.com/netty/netty/issues/329
+                            msg.writeBytes(outNetBuf);
+                            outNetBuf.clear();
+                        }
+
+                        // Only the writes that were completely consumed by this record are notified once it
+                        // has been written, a partially consumed one is notified by the record that ends it.
+                        MessageEvent encryptedWrite = new DownstreamMessageEvent(
+                                channel, completionFuture(channel, completed), msg, channel.getRemoteAddress());
+                        offerEncryptedWriteRequest(encryptedWrite);
                         offered = true;
+                    } else if (result.getStatus() == Status.CLOSED) {
+                        // SSLEngine has been closed already.
+                        // Any further write attempts should be denied.
+                        success = false;
+                        break;
                     } else {
-                        synchronized (handshakeLock) {
-                            SSLEngineResult result = null;
-                            try {
-                                result = engine.wrap(outAppBuf, outNetBuf);
-                            } finally {
-                                if (!outAppBuf.hasRemaining()) {
-                                    pendingUnencryptedWrites.remove();
-                                }
-                            }
-
-                            if (result.bytesProduced() > 0) {
-                                outNetBuf.flip();
-                                int remaining = outNetBuf.remaining();
-                                msg = ctx.getChannel().getConfig().getBufferFactory().getBuffer(remaining);
-
-                                // Transfer the bytes to the new ChannelBuffer using some safe method that will also
-                                // work with "non" heap buffers
-                                //
-                                // See https://github.com/netty/netty/issues/329
-                                msg.writeBytes(outNetBuf);
-                                outNetBuf.clear();
-
-                                ChannelFuture future;
-                                if (pendingWrite.outAppBuf.hasRemaining()) {
-                                    // pendingWrite's future shouldn't be notified if
-                                    // only partial data is written.
-                                    future = succeededFuture(channel);
+                        final HandshakeStatus handshakeStatus = result.getHandshakeStatus();
+                        handleRenegotiation(handshakeStatus);
+                        switch (handshakeStatus) {
+                            case NEED_WRAP:
+                                if (completed < gathered) {
+                                    break;
                                 } else {
-                                    future = pendingWrite.future;
+                                    break loop;
+                                }
+                            case NEED_UNWRAP:
+                                needsUnwrap = true;
+                                break loop;
+                            case NEED_TASK:
+                                if (runDelegatedTasks()) {
+                                    break loop;
                                 }
-
-                                MessageEvent encryptedWrite = new DownstreamMessageEvent(
-                                        channel, future, msg, channel.getRemoteAddress());
-                                offerEncryptedWriteRequest(encryptedWrite);
-                                offered = true;
-                            } else if (result.getStatus() == Status.CLOSED) {
-                                // SSLEngine has been closed already.
-                                // Any further write attempts should be denied.
-                                success = false;
                                 break;
-                            } else {
-                                final HandshakeStatus handshakeStatus = result.getHandshakeStatus();
-                                handleRenegotiation(handshakeStatus);
-                                switch (handshakeStatus) {
-                                    case NEED_WRAP:
-                                        if (outAppBuf.hasRemaining()) {
-                                            break;
-                                        } else {
-                                            break loop;
-                                        }
-                                    case NEED_UNWRAP:
-                                        needsUnwrap = true;
-                                        break loop;
-                                    case NEED_TASK:
-                                        runDelegatedTasks();
-                                        break;
-                                    case FINISHED:
-                                    case NOT_HANDSHAKING:
-                                        if (handshakeStatus == HandshakeStatus.FINISHED) {
-                                            setHandshakeSuccess(channel);
-                                        }
-                                        if (result.getStatus() == Status.CLOSED) {
-                                            success = false;
-                                        }
-                                        break loop;
-                                    default:
-                                        throw new IllegalStateException(
-                                                "Unknown handshake status: " +
-                                                        handshakeStatus);
+                            case FINISHED:
+                            case NOT_HANDSHAKING:
+                                if (handshakeStatus == HandshakeStatus.FINISHED) {
+                                    setHandshakeSuccess(channel);
                                 }
-                            }
+                                if (result.getStatus() == Status.CLOSED) {
+                                    success = false;
+                                }
+                                break loop;
+                            default:
+                                throw new IllegalStateException(
+                                        "Unknown handshake status: " +
+                                                handshakeStatus);
                         }
                     }
                 } finally {
-                    pendingUnencryptedWritesLock.unlock();
+                    Arrays.fill(gatheredWrites, 0, gathered, null);
+                    Arrays.fill(gatheredAppBufs, 0, gathered, null);
                 }
             }
         } catch (SSLException e) {
@@ -1042,7 +1381,9 @@ public class FoundSSLHandler extends FrameDecoder
             setHandshakeFailure(channel, e);
             throw e;
         } finally {
-            bufferPool.releaseBuffer(outNetBuf);
+            if (outNetBuf != null) {
+                bufferPool.releaseBuffer(outNetBuf);
+            }
 
             if (offered) {
                 flushPendingEncryptedWrites(context);
@@ -1052,71 +1393,281 @@ public class FoundSSLHandler extends FrameDecoder
                 IllegalStateException cause =
                         new IllegalStateException("SSLEngine already closed");
 
-                // Check if we had a pendingWrite in process, if so we need to also notify as otherwise
-                // the ChannelFuture will never get notified
-                if (pendingWrite != null) {
-                    pendingWrite.future.setFailure(cause);
+                // Writes that were consumed by a failed wrap have already been removed from the
+                // queue, so we need to notify them here as otherwise the ChannelFuture will never
+                // get notified
+                if (abandonedWrites != null) {
+                    for (PendingWrite abandonedWrite : abandonedWrites) {
+                        abandonedWrite.future.setFailure(cause);
+                    }
                 }
 
                 // Mark all remaining pending writes as failure if anything
                 // wrong happened before the write requests are wrapped.
-                // Please note that we do not call setFailure while a lock is
-                // acquired, to avoid a potential dead lock.
-                for (;;) {
-                    pendingUnencryptedWritesLock.lock();
-                    try {
-                        pendingWrite = pendingUnencryptedWrites.poll();
-                        if (pendingWrite == null) {
-                            break;
-                        }
-                    } finally {
-                        pendingUnencryptedWritesLock.unlock();
-                    }
-
-                    pendingWrite.future.setFailure(cause);
-                }
+                failPendingUnencryptedWrites(cause);
             }
         }
 
-        if (needsUnwrap) {
-            unwrap(context, channel, ChannelBuffers.EMPTY_BUFFER, 0, 0);
+        return needsUnwrap;
+    }
+
+    /**
+     * Wraps the first {@code gathered} buffers of {@link #gatheredAppBufs}. Once the handshake has
+     * completed the engine is called without taking {@link #handshakeLock}, as the engine itself
+     * is thread-safe and the lock only has to order the wraps and unwraps of a handshake.
+     */
+    private SSLEngineResult wrapGatheredWrites(int gathered, ByteBuffer outNetBuf) throws SSLException {
+        if (handshaken && !handshaking) {
+            return engine.wrap(gatheredAppBufs, 0, gathered, outNetBuf);
+        }
+        synchronized (handshakeLock) {
+            return engine.wrap(gatheredAppBufs, 0, gathered, outNetBuf);
         }
     }
 
-    private void offerEncryptedWriteRequest(MessageEvent encryptedWrite) {
-        final boolean locked = pendingEncryptedWritesLock.tryLock();
-        try {
-            pendingEncryptedWrites.add(encryptedWrite);
-        } finally {
-            if (locked) {
-                pendingEncryptedWritesLock.unlock();
+    private void failPendingUnencryptedWrites(Throwable cause) {
+        for (;;) {
+            PendingWrite pendingWrite = pendingUnencryptedWrites.poll();
+            if (pendingWrite == null) {
+                break;
             }
+            pendingWrite.future.setFailure(cause);
         }
     }
 
-    private void flushPendingEncryptedWrites(ChannelHandlerContext ctx) {
-        while (!pendingEncryptedWrites.isEmpty()) {
-            // Avoid possible dead lock and data integrity issue
-            // which is caused by cross communication between more than one channel
-            // in the same VM.
-            if (!pendingEncryptedWritesLock.tryLock()) {
-                return;
+    /**
+     * Collects the pending writes at the head of the queue into {@link #gatheredWrites} and their
+     * buffers into {@link #gatheredAppBufs}, until there is enough plaintext for a maximum-sized
+     * record, a write with an empty buffer is reached or {@link #MAX_GATHERED_WRITES} have been
+     * collected. Must only be called by the owner of {@link #wrapWip}.
+     *
+     * If the size of records is limited, the limit of the last buffer is lowered so the engine does not
+     * consume more than a record's worth of plaintext. It is restored by {@link #restoreClampedWrite()}.
+     *
+     * @return the number of writes collected.
+     */
+    private int gatherPendingWrites() {
+        int maxRecordPlaintext = applicationBufferSize();
+        int maxRecordSize = this.maxRecordSize;
+        if (maxRecordSize > 0 && maxRecordSize < maxRecordPlaintext) {
+            maxRecordPlaintext = maxRecordSize;
+        }
+        dynamicRecordLimit = dynamicRecordLimit(maxRecordPlaintext);
+        if (dynamicRecordLimit > 0) {
+            maxRecordPlaintext = dynamicRecordLimit;
+        }
+        boolean limited = maxRecordPlaintext < applicationBufferSize();
+        int gathered = 0;
+        int plaintext = 0;
+
+        for (PendingWrite pendingWrite : pendingUnencryptedWrites) {
+            if (pendingWrite.outAppBuf == null || gathered == MAX_GATHERED_WRITES || plaintext >= maxRecordPlaintext) {
+                break;
             }
+            if (gathered == gatheredWrites.length) {
+                int size = Math.min(gathered * 2, MAX_GATHERED_WRITES);
+                gatheredWrites = Arrays.copyOf(gatheredWrites, size);
+                gatheredAppBufs = Arrays.copyOf(gatheredAppBufs, size);
+            }
+            gatheredWrites[gathered] = pendingWrite;
+            gatheredAppBufs[gathered] = pendingWrite.outAppBuf;
+            int remaining = pendingWrite.outAppBuf.remaining();
+            if (limited && plaintext + remaining > maxRecordPlaintext) {
+                clampedIndex = gathered;
+                clampedLimit = pendingWrite.outAppBuf.limit();
+                pendingWrite.outAppBuf.limit(pendingWrite.outAppBuf.position() + maxRecordPlaintext - plaintext);
+                gathered ++;
+                break;
+            }
+            plaintext += remaining;
+            gathered ++;
+        }
+        return gathered;
+    }
 
-            try {
+    /**
+     * Returns the size of the next record with dynamic record sizing, or 0 if it doesn't limit the record
+     * below {@code maxRecordPlaintext}. Must only be called by the owner of {@link #wrapWip}.
+     */
+    private int dynamicRecordLimit(int maxRecordPlaintext) {
+        // the handshake is wrapped in full, whatever the size of the records.
+        if (!dynamicRecordSizing || !handshaken || handshaking) {
+            return 0;
+        }
+        if (dynamicRecordSize == 0 || System.nanoTime() - lastRecordNanos > recordSizeIdleResetNanos) {
+            dynamicRecordSize = initialRecordSize;
+        }
+        return dynamicRecordSize < maxRecordPlaintext ? dynamicRecordSize : 0;
+    }
+
+    /**
+     * Notes when the last record was wrapped, and grows the size of the records with dynamic record
+     * sizing if the record was filled, as that means data is flowing. Must only be called by the owner
+     * of {@link #wrapWip}.
+     */
+    private void recordWrapped(int consumed) {
+        lastRecordNanos = System.nanoTime();
+        if (dynamicRecordLimit > 0 && consumed >= dynamicRecordLimit) {
+            dynamicRecordSize = Math.min(dynamicRecordSize * 2, applicationBufferSize());
+        }
+    }
+
+    /**
+     * Restores the limit of the buffer that was lowered by {@link #gatherPendingWrites()}, if any.
+     * Must only be called by the owner of {@link #wrapWip}.
+     */
+    private void restoreClampedWrite() {
+        if (clampedIndex >= 0) {
+            gatheredAppBufs[clampedIndex].limit(clampedLimit);
+            clampedIndex = -1;
+        }
+    }
+
+    /**
+     * Returns the future to attach to a record that completed the first {@code completed}
+     * gathered writes. Must only be called by the owner of {@link #wrapWip}.
+     */
+    private ChannelFuture completionFuture(Channel channel, int completed) {
+        switch (completed) {
+            case 0:
+                return succeededFuture(channel);
+            case 1:
+                return gatheredWrites[0].future;
+            default:
+                final ChannelFuture[] futures = new ChannelFuture[completed];
+                for (int i = 0; i < completed; i ++) {
+                    futures[i] = gatheredWrites[i].future;
+                }
+
+                ChannelFuture future = future(channel);
+                future.addListener(new ChannelFutureListener() {
+                    public void operationComplete(ChannelFuture future) throws Exception {
+                        for (ChannelFuture f : futures) {
+                            if (future.isSuccess()) {
+                                f.setSuccess();
+                            } else {
+                                f.setFailure(future.getCause());
+                            }
+                        }
+                    }
+                });
+                return future;
+        }
+    }
+
+    /**
+     * Returns a view of the writable region of the outbound slab that is large enough to hold a
+     * maximum-sized record, allocating a new slab from the channel's buffer factory if needed.
+     *
+     * The returned {@link ByteBuffer} shares its content with the slab, so the engine encrypts
+     * straight into the buffer that is eventually written to the channel.
+     */
+    private ByteBuffer reserveOutNetSlab(Channel channel) {
+        int packetBufferSize = packetBufferSize();
+        if (outNetSlab == null || outNetSlab.writableBytes() < packetBufferSize) {
+            outNetSlab = channel.getConfig().getBufferFactory().getBuffer(
+                    packetBufferSize * WRAP_DIRECT_RECORDS_PER_BUFFER);
+        }
+        return outNetSlab.toByteBuffer(outNetSlab.writerIndex(), packetBufferSize);
+    }
+
+    /**
+     * Marks {@code produced} bytes of the slab region returned by {@link #reserveOutNetSlab(Channel)}
+     * as written and returns them as a slice that can be sent downstream.
+     */
+    private ChannelBuffer commitOutNetSlab(int produced) {
+        int index = outNetSlab.writerIndex();
+        outNetSlab.writerIndex(index + produced);
+        return outNetSlab.slice(index, produced);
+    }
+
+    /**
+     * Returns the largest amount of plaintext in a record, using the value cached when the handshake
+     * completed to avoid asking the engine for its session on every wrap.
+     */
+    private int applicationBufferSize() {
+        int size = applicationBufferSize;
+        return size > 0 ? size : engine.getSession().getApplicationBufferSize();
+    }
+
+    /**
+     * Returns the largest size of a record, using the value cached when the handshake completed.
+     */
+    private int packetBufferSize() {
+        int size = packetBufferSize;
+        return size > 0 ? size : engine.getSession().getPacketBufferSize();
+    }
+
+    private void offerEncryptedWriteRequest(MessageEvent encryptedWrite) {
+        pendingEncryptedWrites.add(encryptedWrite);
+    }
+
+    private void flushPendingEncryptedWrites(ChannelHandlerContext ctx) {
+        // Avoid possible dead lock and data integrity issue which is caused by cross communication
+        // between more than one channel in the same VM: only one thread sends the encrypted writes
+        // downstream, and a thread that finds another one doing so leaves its writes to it.
+        if (flushWip.getAndIncrement() != 0) {
+            return;
+        }
+
+        int missed = 1;
+        try {
+            for (;;) {
                 MessageEvent e;
                 while ((e = pendingEncryptedWrites.poll()) != null) {
                     ctx.sendDownstream(e);
                 }
-            } finally {
-                pendingEncryptedWritesLock.unlock();
+
+                // Other threads might have added more elements at this point, so we loop again if they did.
+                missed = flushWip.addAndGet(-missed);
+                if (missed == 0) {
+                    break;
+                }
             }
+        } finally {
+            if (missed != 0) {
+                flushWip.set(0);
+            }
+        }
+    }
 
-            // Other thread might have added more elements at this point, so we loop again if the queue got unempty.
+    /**
+     * Wraps a TLS 1.3 post-handshake message, such as the answer to a KeyUpdate, and queues it with the encrypted
+     * writes. Only the thread that drains the pending writes calls this, so the message is written before the
+     * records that are encrypted with the keys it updates.
+     *
+     * @return whether a record was queued.
+     */
+    private boolean wrapPostHandshakeMessage(Channel channel) throws SSLException {
+        if (!tls13 || !handshaken || handshaking || engine.getHandshakeStatus() != HandshakeStatus.NEED_WRAP) {
+            return false;
+        }
+        ByteBuffer outNetBuf = bufferPool.acquireBuffer();
+        try {
+            SSLEngineResult result;
+            synchronized (handshakeLock) {
+                result = engine.wrap(EMPTY_BUFFER, outNetBuf);
+            }
+            if (result.bytesProduced() == 0) {
+                return false;
+            }
+            if (metrics != null) {
+                metrics.wrapped(0, result.bytesProduced());
+            }
+            outNetBuf.flip();
+            ChannelBuffer msg = ctx.getChannel().getConfig().getBufferFactory().getBuffer(outNetBuf.remaining());
+            msg.writeBytes(outNetBuf);
+            offerEncryptedWriteRequest(new DownstreamMessageEvent(
+                    channel, succeededFuture(channel), msg, channel.getRemoteAddress()));
+            return true;
+        } finally {
+            bufferPool.releaseBuffer(outNetBuf);
         }
     }
 
     private ChannelFuture wrapNonAppData(ChannelHandlerContext ctx, Channel channel) throws SSLException {
+        beginImplicitHandshake(channel);
+
         ChannelFuture future = null;
         ByteBuffer outNetBuf = bufferPool.acquireBuffer();
 
@@ -1124,10 +1675,17 @@ public class FoundSSLHandler extends FrameDecoder
         try {
             for (;;) {
                 synchronized (handshakeLock) {
+                    if (delegatedTasksPending.get()) {
+                        // resumeAfterDelegatedTasks() wraps what the engine has to send once the tasks are done.
+                        break;
+                    }
                     result = engine.wrap(EMPTY_BUFFER, outNetBuf);
                 }
 
                 if (result.bytesProduced() > 0) {
+                    if (metrics != null) {
+                        metrics.wrapped(0, result.bytesProduced());
+                    }
                     outNetBuf.flip();
                     ChannelBuffer msg =
                             ctx.getChannel().getConfig().getBufferFactory().getBuffer(outNetBuf.remaining());
@@ -1201,10 +1759,22 @@ public class FoundSSLHandler extends FrameDecoder
     private ChannelBuffer unwrap(
             ChannelHandlerContext ctx, Channel channel,
             ChannelBuffer buffer, int offset, int length) throws SSLException {
+        return unwrap(ctx, channel, buffer, offset, length, null);
+    }
+
+    /**
+     * Unwraps the given records. If {@code batchFrame} is not {@code null} the application data is written
+     * directly into it and it is returned, otherwise the data is unwrapped into a pooled buffer
+     * and copied into a new frame.
+     */
+    private ChannelBuffer unwrap(
+            ChannelHandlerContext ctx, Channel channel,
+            ChannelBuffer buffer, int offset, int length, ChannelBuffer batchFrame) throws SSLException {
         ByteBuffer inNetBuf = buffer.toByteBuffer(offset, length);
-        ByteBuffer outAppBuf = bufferPool.acquireBuffer();
+        ByteBuffer outAppBuf = batchFrame == null ? bufferPool.acquireBuffer() : null;
 
         try {
+            final boolean calledUnderHandshakeLock = Thread.holdsLock(handshakeLock);
             boolean needsWrap = false;
             loop:
             for (;;) {
@@ -1223,7 +1793,21 @@ public class FoundSSLHandler extends FrameDecoder
                 }
 
                 synchronized (handshakeLock) {
-                    result = engine.unwrap(inNetBuf, outAppBuf);
+                    if (delegatedTasksPending.get() && runDelegatedTasks(inNetBuf)) {
+                        // the engine is not called while its tasks run, what it has not consumed is unwrapped
+                        // once they are done.
+                        break loop;
+                    }
+                    if (batchFrame != null) {
+                        ByteBuffer dst = batchFrame.toByteBuffer(batchFrame.writerIndex(), batchFrame.writableBytes());
+                        result = engine.unwrap(inNetBuf, dst);
+                        batchFrame.writerIndex(batchFrame.writerIndex() + result.bytesProduced());
+                    } else {
+                        result = engine.unwrap(inNetBuf, outAppBuf);
+                    }
+                    if (metrics != null && result.bytesConsumed() > 0) {
+                        metrics.unwrapped(result.bytesConsumed(), result.bytesProduced());
+                    }
 
                     switch (result.getStatus()) {
                         case CLOSED:
@@ -1231,6 +1815,10 @@ public class FoundSSLHandler extends FrameDecoder
                             sslEngineCloseFuture.setClosed();
                             break;
                         case BUFFER_OVERFLOW:
+                            if (batchFrame != null) {
+                                batchFrame.ensureWritableBytes(engine.getSession().getApplicationBufferSize());
+                                continue loop;
+                            }
                             throw new SSLException("SSLEngine.unwrap() reported an impossible buffer overflow.");
                     }
 
@@ -1244,10 +1832,21 @@ public class FoundSSLHandler extends FrameDecoder
                                 break loop;
                             }
                         case NEED_WRAP:
+                            if (tls13 && handshaken && !handshaking && !calledUnderHandshakeLock &&
+                                    !inNetBuf.hasRemaining()) {
+                                // A post-handshake message is queued by wrap() like the application data, see
+                                // wrapPostHandshakeMessage(). If it was written from here, the records that a
+                                // writer thread encrypts with the updated keys could overtake it.
+                                needsWrap = true;
+                                break loop;
+                            }
                             wrapNonAppData(ctx, channel);
                             break;
                         case NEED_TASK:
-                            runDelegatedTasks();
+                            if (runDelegatedTasks(inNetBuf)) {
+                                // what the engine did not consume is unwrapped once the tasks are done
+                                break loop;
+                            }
                             break;
                         case FINISHED:
                             setHandshakeSuccess(channel);
@@ -1263,19 +1862,32 @@ public class FoundSSLHandler extends FrameDecoder
                 }
             }
             if (needsWrap) {
-                // wrap() acquires pendingUnencryptedWrites first and then
-                // handshakeLock.  If handshakeLock is already hold by the
-                // current thread, calling wrap() will lead to a dead lock
-                // i.e. pendingUnencryptedWrites -> handshakeLock vs.
-                //      handshakeLock -> pendingUnencryptedLock -> handshakeLock
-                //
-                // There is also the same issue between pendingEncryptedWrites
-                // and pendingUnencryptedWrites.
-                if (!Thread.holdsLock(handshakeLock) &&
-                        !pendingEncryptedWritesLock.isHeldByCurrentThread()) {
+                // wrap() sends the encrypted writes downstream, which must not
+                // happen while handshakeLock is held by the current thread as
+                // that could lead to a dead lock between channels. If this
+                // thread is already draining the writes, wrap() returns
+                // immediately and the drain loop picks up any new writes.
+                if (!Thread.holdsLock(handshakeLock)) {
                     wrap(ctx, channel);
                 }
             }
+            if (engine.isInboundDone() && !engine.isOutboundDone() && !Thread.holdsLock(handshakeLock)) {
+                // Unlike earlier versions, a TLS 1.3 engine does not answer the peer's close_notify with one of its
+                // own, as the peer only closed its half of the connection. We have no use for a connection we can't
+                // read responses from, so answer with our close_notify and close the channel once it's written.
+                if (sentCloseNotify.compareAndSet(false, true)) {
+                    engine.closeOutbound();
+                    ChannelFuture closeNotifyFuture = wrapNonAppData(ctx, channel);
+                    if (closeNotifyFuture != null) {
+                        closeNotifyFuture.addListener(ChannelFutureListener.CLOSE);
+                    } else {
+                        Channels.close(channel);
+                    }
+                }
+            }
+            if (batchFrame != null) {
+                return batchFrame;
+            }
             outAppBuf.flip();
 
             if (outAppBuf.hasRemaining()) {
@@ -1294,18 +1906,27 @@ public class FoundSSLHandler extends FrameDecoder
             setHandshakeFailure(channel, e);
             throw e;
         } finally {
-            bufferPool.releaseBuffer(outAppBuf);
+            if (outAppBuf != null) {
+                bufferPool.releaseBuffer(outAppBuf);
+            }
         }
     }
 
     private void handleRenegotiation(HandshakeStatus handshakeStatus) {
-        synchronized (handshakeLock) {
-            if (handshakeStatus == HandshakeStatus.NOT_HANDSHAKING ||
-                    handshakeStatus == HandshakeStatus.FINISHED) {
-                // Not handshaking
-                return;
-            }
+        if (handshakeStatus == HandshakeStatus.NOT_HANDSHAKING ||
+                handshakeStatus == HandshakeStatus.FINISHED) {
+            // Not handshaking
+            return;
+        }
 
+        if (tls13) {
+            // TLS 1.3 has no renegotiation. The engine only handshakes after the initial handshake to
+            // process post-handshake messages such as NewSessionTicket and KeyUpdate, which is handled
+            // by the regular wrap and unwrap loops.
+            return;
+        }
+
+        synchronized (handshakeLock) {
             if (!handshaken) {
                 // Not renegotiation
                 return;
@@ -1349,32 +1970,184 @@ public class FoundSSLHandler extends FrameDecoder
         }
     }
 
-    private void runDelegatedTasks() {
-        for (;;) {
-            final Runnable task;
-            synchronized (handshakeLock) {
-                task = engine.getDelegatedTask();
-            }
+    /**
+     * Runs the delegated tasks of the {@link SSLEngine}. With the {@link ImmediateExecutor} the tasks
+     * run in the calling thread. With any other executor they run there, and the handler stops
+     * calling the engine until they are done, after which the pending unwraps and wraps are resumed
+     * on the I/O thread of the channel. If the executor rejects the tasks, the handshake fails.
+     *
+     * @return {@code true} if delegated tasks are still running.
+     */
+    private boolean runDelegatedTasks() throws SSLException {
+        return runDelegatedTasks(null);
+    }
 
-            if (task == null) {
-                break;
+    /**
+     * Runs the delegated tasks of the {@link SSLEngine}, see {@link #runDelegatedTasks()}.
+     *
+     * @param unconsumed the records being unwrapped, or {@code null}. What the engine has not consumed of them
+     *                   is unwrapped once the tasks are done, if they don't run in the calling thread.
+     * @return {@code true} if delegated tasks are still running. The tasks are then only considered done once
+     *         they have been resumed on the I/O thread, so this never changes to {@code false} behind the caller.
+     */
+    private boolean runDelegatedTasks(ByteBuffer unconsumed) throws SSLException {
+        if (delegatedTaskExecutor == ImmediateExecutor.INSTANCE) {
+            for (;;) {
+                final Runnable task;
+                synchronized (handshakeLock) {
+                    task = engine.getDelegatedTask();
+                }
+
+                if (task == null) {
+                    return false;
+                }
+
+                synchronized (handshakeLock) {
+                    task.run();
+                }
             }
+        }
+
+        ChannelBuffer remaining = unconsumed != null && unconsumed.hasRemaining() ? ChannelBuffers.copiedBuffer(unconsumed) : null;
+        if (!delegatedTasksPending.compareAndSet(false, true)) {
+            // the running tasks resume the handshake, including what we didn't get to unwrap.
+            addPendingInbound(remaining);
+            return true;
+        }
+
+        final Runnable firstTask;
+        synchronized (handshakeLock) {
+            firstTask = engine.getDelegatedTask();
+        }
+        if (firstTask == null) {
+            delegatedTasksPending.set(false);
+            return false;
+        }
 
+        // kept before the tasks are handed over, so the resume can't miss it.
+        addPendingInbound(remaining);
+
+        final Thread caller = Thread.currentThread();
+        final AtomicBoolean ranByCaller = new AtomicBoolean();
+        try {
             delegatedTaskExecutor.execute(new Runnable() {
                 public void run() {
-                    synchronized (handshakeLock) {
-                        task.run();
+                    try {
+                        Runnable task = firstTask;
+                        do {
+                            task.run();
+                        } while ((task = engine.getDelegatedTask()) != null);
+                    } finally {
+                        if (Thread.currentThread() == caller) {
+                            ranByCaller.set(true);
+                        } else {
+                            // resumed even if a task failed, so the engine gets to report the failure.
+                            scheduleResumeAfterDelegatedTasks();
+                        }
                     }
                 }
             });
+        } catch (RejectedExecutionException e) {
+            // the engine can't go on without the tasks.
+            pendingInbound = null;
+            delegatedTasksPending.set(false);
+            throw new SSLException("Unable to run the delegated tasks of the handshake", e);
+        } finally {
+            if (ranByCaller.get()) {
+                // the executor ran the tasks right away, and the caller carries on with what it was unwrapping.
+                pendingInbound = null;
+                delegatedTasksPending.set(false);
+                if (decodeDeferred) {
+                    // records arrived on the I/O thread while the tasks were running in this one.
+                    scheduleResumeAfterDelegatedTasks();
+                }
+            }
+        }
+        return !ranByCaller.get();
+    }
+
+    private void addPendingInbound(ChannelBuffer inbound) {
+        if (inbound != null) {
+            ChannelBuffer pending = pendingInbound;
+            pendingInbound = pending == null ? inbound : ChannelBuffers.wrappedBuffer(pending, inbound);
+        }
+    }
+
+    private void scheduleResumeAfterDelegatedTasks() {
+        ctx.getPipeline().execute(new Runnable() {
+            public void run() {
+                resumeAfterDelegatedTasks();
+            }
+        });
+    }
+
+    /**
+     * Continues the handshake once the delegated tasks that were run by the executor are done. Runs
+     * on the I/O thread of the channel, so nothing is decoded in between: first what the engine did not
+     * consume when the tasks were started, then the records that arrived while they were running.
+     */
+    private void resumeAfterDelegatedTasks() {
+        final ChannelHandlerContext ctx = this.ctx;
+        final Channel channel = ctx.getChannel();
+        try {
+            decodeDeferred = false;
+            delegatedTasksPending.set(false);
+
+            ChannelBuffer inbound = pendingInbound;
+            if (inbound != null) {
+                pendingInbound = null;
+                ChannelBuffer frame = unwrap(ctx, channel, inbound, inbound.readerIndex(), inbound.readableBytes());
+                if (frame != null) {
+                    unfoldAndFireMessageReceived(ctx, channel.getRemoteAddress(), frame);
+                }
+            }
+
+            if (delegatedTasksPending.get()) {
+                // more tasks, which resume again once they are done
+                return;
+            }
+
+            if (engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP) {
+                wrapNonAppData(ctx, channel);
+            }
+
+            // decode the records that arrived while the tasks were running
+            ChannelBuffer cumulation = internalBuffer();
+            while (cumulation.readable() && !delegatedTasksPending.get()) {
+                int readerIndex = cumulation.readerIndex();
+                Object frame = decode(ctx, channel, cumulation);
+                if (frame != null) {
+                    unfoldAndFireMessageReceived(ctx, channel.getRemoteAddress(), frame);
+                }
+                if (cumulation.readerIndex() == readerIndex) {
+                    break;
+                }
+            }
+
+            wrap(ctx, channel);
+        } catch (Exception e) {
+            fireExceptionCaught(ctx, e);
+            if (closeOnSSLException) {
+                Channels.close(ctx, future(channel));
+            }
         }
     }
 
     private void setHandshakeSuccess(Channel channel) {
         synchronized (handshakeLock) {
+            if (handshaken && !handshaking) {
+                // a post-handshake message (TLS 1.3) has been processed, not a handshake.
+                return;
+            }
             handshaking = false;
             handshaken = true;
 
+            SSLSession session = engine.getSession();
+            applicationBufferSize = session.getApplicationBufferSize();
+            packetBufferSize = session.getPacketBufferSize();
+            sessionResumed = session.getCreationTime() < creationTime;
+            tls13 = "TLSv1.3".equals(session.getProtocol());
+
             if (handshakeFuture == null) {
                 handshakeFuture = future(channel);
             }
@@ -1382,6 +2155,11 @@ public class FoundSSLHandler extends FrameDecoder
         }
 
         handshakeFuture.setSuccess();
+
+        HandshakeListener handshakeListener = this.handshakeListener;
+        if (handshakeListener != null) {
+            handshakeListener.handshakeCompleted(this);
+        }
     }
 
     private void setHandshakeFailure(Channel channel, SSLException cause) {
@@ -1463,6 +2241,13 @@ public class FoundSSLHandler extends FrameDecoder
         }
     }
 
+    /**
+     * Listener that is notified when a handshake of a {@link FoundSSLHandler} has completed.
+     */
+    public interface HandshakeListener {
+        void handshakeCompleted(FoundSSLHandler handler);
+    }
+
     private static final class PendingWrite {
         final ChannelFuture future;
         final ByteBuffer outAppBuf;
@@ -1504,6 +2289,9 @@ public class FoundSSLHandler extends FrameDecoder
      */
     @Override
     public void afterRemove(ChannelHandlerContext ctx) throws Exception {
+        if (metrics != null) {
+            metrics.unregister(this);
+        }
 
         // there is no need for synchronization here as we do not receive downstream events anymore
         Throwable cause = null;
@@ -1539,6 +2327,16 @@ public class FoundSSLHandler extends FrameDecoder
      */
     @Override
     public void channelConnected(final ChannelHandlerContext ctx, final ChannelStateEvent e) throws Exception {
+        final SslMetrics metrics = this.metrics;
+        if (metrics != null) {
+            metrics.register(this);
+            ctx.getChannel().getCloseFuture().addListener(new ChannelFutureListener() {
+                public void operationComplete(ChannelFuture future) throws Exception {
+                    metrics.unregister(FoundSSLHandler.this);
+                }
+            });
+        }
+
         if (issueHandshake) {
             // issue and handshake and add a listener to it which will fire an exception event if
             // an exception was thrown while doing the handshake
@@ -1554,6 +2352,13 @@ public class FoundSSLHandler extends FrameDecoder
                 }
             });
         } else {
+            // the engine starts the handshake with the first write, which may be requested as soon as
+            // the event is passed on, so the future of the handshake is there before that.
+            synchronized (handshakeLock) {
+                if (handshakeFuture == null) {
+                    handshakeFuture = future(ctx.getChannel());
+                }
+            }
             super.channelConnected(ctx, e);
         }
     }
@@ -1569,35 +2374,47 @@ public class FoundSSLHandler extends FrameDecoder
         // See https://github.com/netty/netty/issues/989
         ctx.getPipeline().execute(new Runnable() {
             public void run() {
-                if (!pendingUnencryptedWritesLock.tryLock()) {
+                // If another thread is draining the writes it will get to the pending ones,
+                // which then fail as the channel is closed.
+                if (wrapWip.getAndIncrement() != 0) {
                     return;
                 }
 
                 Throwable cause = null;
+                int missed = 1;
                 try {
                     for (;;) {
-                        PendingWrite pw = pendingUnencryptedWrites.poll();
-                        if (pw == null) {
-                            break;
+                        for (;;) {
+                            PendingWrite pw = pendingUnencryptedWrites.poll();
+                            if (pw == null) {
+                                break;
+                            }
+                            if (cause == null) {
+                                cause = new ClosedChannelException();
+                            }
+                            pw.future.setFailure(cause);
                         }
-                        if (cause == null) {
-                            cause = new ClosedChannelException();
+
+                        for (;;) {
+                            MessageEvent ev = pendingEncryptedWrites.poll();
+                            if (ev == null) {
+                                break;
+                            }
+                            if (cause == null) {
+                                cause = new ClosedChannelException();
+                            }
+                            ev.getFuture().setFailure(cause);
                         }
-                        pw.future.setFailure(cause);
-                    }
 
-                    for (;;) {
-                        MessageEvent ev = pendingEncryptedWrites.poll();
-                        if (ev == null) {
+                        missed = wrapWip.addAndGet(-missed);
+                        if (missed == 0) {
                             break;
                         }
-                        if (cause == null) {
-                            cause = new ClosedChannelException();
-                        }
-                        ev.getFuture().setFailure(cause);
                     }
                 } finally {
-                    pendingUnencryptedWritesLock.unlock();
+                    if (missed != 0) {
+                        wrapWip.set(0);
+                    }
                 }
 
                 if (cause != null) {
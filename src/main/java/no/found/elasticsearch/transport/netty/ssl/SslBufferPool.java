@@ -33,6 +33,10 @@ import java.nio.ByteBuffer;
  * required buffer is much smaller than that, and therefore allocating a 17KiB
  * buffer for every 'wrap' and 'unwrap' operation wastes a lot of memory
  * bandwidth, resulting in the application performance degradation.
+ * <p>
+ * The pool is split into a number of stripes, each with its own lock, and a
+ * thread always uses the same stripe. With one stripe per I/O worker the
+ * workers do not contend with each other when acquiring and releasing buffers.
  */
 public class SslBufferPool {
 
@@ -40,9 +44,9 @@ public class SslBufferPool {
     private static final int MAX_PACKET_SIZE = 16665 + 2048;
     private static final int DEFAULT_POOL_SIZE = MAX_PACKET_SIZE * 1024;
 
-    private final ByteBuffer[] pool;
+    private final Stripe[] stripes;
     private final int maxBufferCount;
-    private int index;
+    private final boolean direct;
 
     /**
      * Creates a new buffer pool whose size is {@code 18113536}, which can
@@ -53,22 +57,46 @@ public class SslBufferPool {
     }
 
     /**
-     * Creates a new buffer pool.
+     * Creates a new buffer pool with a single stripe of heap buffers.
      *
      * @param maxPoolSize the maximum number of bytes that this pool can hold
      */
     public SslBufferPool(int maxPoolSize) {
+        this(maxPoolSize, 1, false);
+    }
+
+    /**
+     * Creates a new buffer pool.
+     *
+     * @param maxPoolSize the maximum number of bytes that this pool can hold,
+     *                    divided evenly between the stripes
+     * @param stripeCount the number of independently locked stripes
+     * @param direct      {@code true} to allocate direct buffers instead of heap buffers
+     */
+    public SslBufferPool(int maxPoolSize, int stripeCount, boolean direct) {
         if (maxPoolSize <= 0) {
             throw new IllegalArgumentException("maxPoolSize: " + maxPoolSize);
         }
+        if (stripeCount <= 0) {
+            throw new IllegalArgumentException("stripeCount: " + stripeCount);
+        }
 
         int maxBufferCount = maxPoolSize / MAX_PACKET_SIZE;
         if (maxPoolSize % MAX_PACKET_SIZE != 0) {
             maxBufferCount ++;
         }
 
-        pool = new ByteBuffer[maxBufferCount];
-        this.maxBufferCount = maxBufferCount;
+        int buffersPerStripe = maxBufferCount / stripeCount;
+        if (maxBufferCount % stripeCount != 0) {
+            buffersPerStripe ++;
+        }
+
+        stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new Stripe(buffersPerStripe);
+        }
+        this.maxBufferCount = buffersPerStripe * stripeCount;
+        this.direct = direct;
     }
 
     /**
@@ -79,6 +107,20 @@ public class SslBufferPool {
         return maxBufferCount * MAX_PACKET_SIZE;
     }
 
+    /**
+     * Returns the number of stripes in this pool.
+     */
+    public int getStripeCount() {
+        return stripes.length;
+    }
+
+    /**
+     * Returns {@code true} if this pool allocates direct buffers.
+     */
+    public boolean isDirect() {
+        return direct;
+    }
+
     /**
      * Returns the number of bytes which were allocated but have not been
      * acquired yet.  You can estimate how optimal the specified maximum pool
@@ -86,20 +128,82 @@ public class SslBufferPool {
      * pool is getting exhausted.  If it keeps returns a unnecessarily big
      * value, it means the pool is wasting the heap space.
      */
-    public synchronized int getUnacquiredPoolSize() {
-        return index * MAX_PACKET_SIZE;
+    public int getUnacquiredPoolSize() {
+        int unacquired = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                unacquired += stripe.index;
+            }
+        }
+        return unacquired * MAX_PACKET_SIZE;
+    }
+
+    /**
+     * Returns the number of times a buffer was acquired from the pool.
+     */
+    public long getHits() {
+        long hits = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                hits += stripe.hits;
+            }
+        }
+        return hits;
+    }
+
+    /**
+     * Returns the number of times the pool was empty and a new buffer had to be allocated.
+     */
+    public long getMisses() {
+        long misses = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                misses += stripe.misses;
+            }
+        }
+        return misses;
+    }
+
+    /**
+     * Returns the highest number of buffers that have been acquired and not yet released at the
+     * same time, summed over the stripes. A pool that holds at least this many buffers never
+     * has to allocate.
+     */
+    public int getHighWaterMark() {
+        int highWaterMark = 0;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                highWaterMark += stripe.highWaterMark;
+            }
+        }
+        return highWaterMark;
     }
 
     /**
      * Acquire a new {@link ByteBuffer} out of the {@link SslBufferPool}
      *
      */
-    public synchronized ByteBuffer acquireBuffer() {
-        if (index == 0) {
-            return ByteBuffer.allocate(MAX_PACKET_SIZE);
-        } else {
-            return (ByteBuffer) pool[-- index].clear();
+    public ByteBuffer acquireBuffer() {
+        Stripe stripe = stripe();
+        ByteBuffer buffer = null;
+        synchronized (stripe) {
+            stripe.acquired ++;
+            if (stripe.acquired > stripe.highWaterMark) {
+                stripe.highWaterMark = stripe.acquired;
+            }
+            if (stripe.index == 0) {
+                stripe.misses ++;
+            } else {
+                stripe.hits ++;
+                buffer = stripe.pool[-- stripe.index];
+                stripe.pool[stripe.index] = null;
+            }
+        }
+
+        if (buffer == null) {
+            return direct ? ByteBuffer.allocateDirect(MAX_PACKET_SIZE) : ByteBuffer.allocate(MAX_PACKET_SIZE);
         }
+        return (ByteBuffer) buffer.clear();
     }
 
     /**
@@ -114,9 +218,13 @@ public class SslBufferPool {
     /**
      * Release a previous acquired {@link ByteBuffer}
      */
-    public synchronized void releaseBuffer(ByteBuffer buffer) {
-        if (index < maxBufferCount) {
-            pool[index ++] = buffer;
+    public void releaseBuffer(ByteBuffer buffer) {
+        Stripe stripe = stripe();
+        synchronized (stripe) {
+            stripe.acquired --;
+            if (stripe.index < stripe.pool.length) {
+                stripe.pool[stripe.index ++] = buffer;
+            }
         }
     }
 
@@ -127,4 +235,27 @@ public class SslBufferPool {
     void release(ByteBuffer buffer) {
         releaseBuffer(buffer);
     }
+
+    @Override
+    public String toString() {
+        return "SslBufferPool(maxPoolSize: " + getMaxPoolSize() + ", stripes: " + stripes.length + ", direct: " + direct +
+            ", hits: " + getHits() + ", misses: " + getMisses() + ", highWaterMark: " + getHighWaterMark() + ")";
+    }
+
+    private Stripe stripe() {
+        return stripes[(int) (Thread.currentThread().getId() % stripes.length)];
+    }
+
+    private static final class Stripe {
+        final ByteBuffer[] pool;
+        int index;
+        int acquired;
+        int highWaterMark;
+        long hits;
+        long misses;
+
+        Stripe(int maxBufferCount) {
+            pool = new ByteBuffer[maxBufferCount];
+        }
+    }
 }
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2013, Found AS.
+ * See LICENSE for details.
+ */
+
+package no.found.elasticsearch.transport.netty.ssl;
+
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.common.util.concurrent.jsr166e.LongAdder;
+
+import java.util.Set;
+
+/**
+ * Counts the bytes and records that the {@link FoundSSLHandler}s of a transport encrypt and decrypt.
+ *
+ * The counters are striped, so the handlers of different connections don't contend when updating them.
+ * The number of writes waiting to be encrypted or written is not counted as it changes, but summed over
+ * the open handlers when it's read.
+ */
+public class SslMetrics {
+    private final LongAdder plaintextBytesWritten = new LongAdder();
+    private final LongAdder ciphertextBytesWritten = new LongAdder();
+    private final LongAdder plaintextBytesRead = new LongAdder();
+    private final LongAdder ciphertextBytesRead = new LongAdder();
+    private final LongAdder recordsWrapped = new LongAdder();
+    private final LongAdder recordsUnwrapped = new LongAdder();
+
+    private final Set<FoundSSLHandler> handlers = ConcurrentCollections.newConcurrentSet();
+
+    void wrapped(int plaintextBytes, int ciphertextBytes) {
+        plaintextBytesWritten.add(plaintextBytes);
+        ciphertextBytesWritten.add(ciphertextBytes);
+        recordsWrapped.increment();
+    }
+
+    void unwrapped(int ciphertextBytes, int plaintextBytes) {
+        ciphertextBytesRead.add(ciphertextBytes);
+        plaintextBytesRead.add(plaintextBytes);
+        recordsUnwrapped.increment();
+    }
+
+    void register(FoundSSLHandler handler) {
+        handlers.add(handler);
+    }
+
+    void unregister(FoundSSLHandler handler) {
+        handlers.remove(handler);
+    }
+
+    /**
+     * The application bytes that have been encrypted.
+     */
+    public long getPlaintextBytesWritten() {
+        return plaintextBytesWritten.sum();
+    }
+
+    /**
+     * The encrypted bytes that have been produced, including the handshakes.
+     */
+    public long getCiphertextBytesWritten() {
+        return ciphertextBytesWritten.sum();
+    }
+
+    /**
+     * The application bytes that have been decrypted.
+     */
+    public long getPlaintextBytesRead() {
+        return plaintextBytesRead.sum();
+    }
+
+    /**
+     * The encrypted bytes that have been consumed, including the handshakes.
+     */
+    public long getCiphertextBytesRead() {
+        return ciphertextBytesRead.sum();
+    }
+
+    public long getRecordsWrapped() {
+        return recordsWrapped.sum();
+    }
+
+    public long getRecordsUnwrapped() {
+        return recordsUnwrapped.sum();
+    }
+
+    /**
+     * The number of handlers whose channels are open.
+     */
+    public int getOpenHandlers() {
+        return handlers.size();
+    }
+
+    /**
+     * The writes that are waiting to be encrypted, over all open handlers.
+     */
+    public long getPendingUnencryptedWrites() {
+        long pending = 0;
+        for (FoundSSLHandler handler : handlers) {
+            pending += handler.getPendingUnencryptedWriteCount();
+        }
+        return pending;
+    }
+
+    /**
+     * The encrypted writes that are waiting to be written, over all open handlers.
+     */
+    public long getPendingEncryptedWrites() {
+        long pending = 0;
+        for (FoundSSLHandler handler : handlers) {
+            pending += handler.getPendingEncryptedWriteCount();
+        }
+        return pending;
+    }
+}
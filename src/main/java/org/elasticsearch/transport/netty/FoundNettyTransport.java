@@ -5,13 +5,27 @@
 
 package org.elasticsearch.transport.netty;
 
+import no.found.elasticsearch.transport.netty.ConnectionKeepAliveManager;
+import no.found.elasticsearch.transport.netty.ConnectionSetupStats;
+import no.found.elasticsearch.transport.netty.FoundAddressResolver;
 import no.found.elasticsearch.transport.netty.FoundAuthenticatingChannelHandler;
+import no.found.elasticsearch.transport.netty.FoundConnectionProfile;
+import no.found.elasticsearch.transport.netty.FoundHeaderNegotiation;
+import no.found.elasticsearch.transport.netty.FoundRoutedAddress;
+import no.found.elasticsearch.transport.netty.FoundSSLHandlerFactory;
+import no.found.elasticsearch.transport.netty.FoundServerCapabilities;
+import no.found.elasticsearch.transport.netty.FoundTransportHeader;
+import no.found.elasticsearch.transport.netty.FoundTransportMetrics;
+import no.found.elasticsearch.transport.netty.NegotiatingClientBootstrap;
+import no.found.elasticsearch.transport.netty.SpreadingClientBootstrap;
 import org.elasticsearch.ElasticsearchException;
 import org.elasticsearch.Version;
 import org.elasticsearch.cluster.ClusterName;
 import org.elasticsearch.cluster.node.DiscoveryNode;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.netty.bootstrap.ClientBootstrap;
+import org.elasticsearch.common.netty.channel.Channel;
+import org.elasticsearch.common.netty.channel.ChannelFuture;
 import org.elasticsearch.common.netty.channel.ChannelHandlerContext;
 import org.elasticsearch.common.netty.channel.ChannelPipeline;
 import org.elasticsearch.common.netty.channel.ChannelPipelineFactory;
@@ -19,15 +33,32 @@ import org.elasticsearch.common.netty.channel.ExceptionEvent;
 import org.elasticsearch.common.network.NetworkService;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.transport.InetSocketTransportAddress;
+import org.elasticsearch.common.unit.ByteSizeValue;
 import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.util.BigArrays;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
 import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.ConnectTransportException;
+import org.elasticsearch.transport.TransportRequestOptions;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.net.ssl.SSLException;
+import java.lang.management.ManagementFactory;
 import java.lang.reflect.Field;
-import java.util.Arrays;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
@@ -49,16 +80,142 @@ import java.util.concurrent.TimeUnit;
  *  a list of Strings under the root level key "api_keys". Defaults to
  *  {@code missing-api-key}</li>
  *
- *  <li>{@code transport.found.connection-keep-alive-interval}: The interval in which to send
- *  keep-alive messages. Defaults to {@code 20s}. Set to 0 to disable.</li>
+ *  <li>{@code transport.found.connection-keep-alive-interval}: How long a connection may go without
+ *  reads or writes before a keep-alive message is sent. Defaults to {@code 20s}. Set to 0 to disable.</li>
+ *
+ *  <li>{@code transport.found.header-revision}: The revision of the authentication header to send,
+ *  {@code 1} or {@code 2}. With revision 2, Found Elasticsearch advertises its idle timeout and preferred
+ *  keep-alive interval, and the keep-alive interval of the connections is shortened to fit them. Until a host
+ *  has accepted revision 2, connecting to it waits for its answer, and a connection that it answers with an
+ *  unsupported revision response is made again with revision 1. Defaults to {@code 1}.</li>
+ *
+ *  <li>{@code transport.found.header-reprobe-interval}: How long a host that does not know revision 2 of the
+ *  authentication header is sent revision 1, before revision 2 is tried again. Defaults to {@code 10m}.</li>
+ *
+ *  <li>{@code transport.found.header-coalesce-delay}: How long a new connection waits for its
+ *  first request, so the authentication header can be sent together with it in a single write.
+ *  If nothing is written within the delay, the header is sent on its own. Defaults to {@code 50ms}.
+ *  Set to 0 to send the header as soon as the connection is established.</li>
+ *
+ *  <li>{@code transport.found.dns-refresh-interval}: How often the addresses of the hosts we connect
+ *  to are resolved again in the background. New connections to a node use the latest resolved address
+ *  of its host. Defaults to {@code 60s}. Set to 0 to only resolve each host once.</li>
+ *
+ *  <li>{@code transport.found.spread-connections}: Whether to spread the connections to a Found host
+ *  across all of its resolved addresses, instead of connecting to the first one only. Each connection
+ *  starts with the next address in turn, and tries the following addresses in parallel if it hasn't
+ *  been established within the connect attempt delay. Defaults to {@code false}.</li>
+ *
+ *  <li>{@code transport.found.connect-attempt-delay}: How long a spread connection waits for an
+ *  address before also trying the next one. Defaults to {@code 250ms}.</li>
+ *
+ *  <li>{@code transport.found.warm-up-connections}: Whether connecting to a node waits until all of its
+ *  connections have been authenticated by Found Elasticsearch, so the first requests don't have to wait for
+ *  the SSL handshake and the authentication. Connections that are dropped are re-established in the
+ *  background, right away the first time and after {@code transport.found.warm-up-retry-interval} after
+ *  that. Connections that Found Elasticsearch rejects are not re-established. The authentication header is
+ *  then sent as soon as a connection is established, regardless of {@code transport.found.header-coalesce-delay}.
+ *  Defaults to {@code false}.</li>
+ *
+ *  <li>{@code transport.found.warm-up-timeout}: How long connecting to a node waits for its connections
+ *  to be authenticated. Connections that are still authenticating after that are used as usual.
+ *  Defaults to {@code 10s}.</li>
+ *
+ *  <li>{@code transport.found.warm-up-retry-interval}: How long to wait before re-establishing the connections
+ *  to a node again, once they have been re-established or failed to be. The wait doubles with every attempt,
+ *  until the connections have stayed up for longer than the longest wait. Defaults to {@code 1s}.</li>
+ *
+ *  <li>{@code transport.found.warm-up-max-retry-interval}: The longest wait before re-establishing the
+ *  connections to a node. Defaults to {@code 30s}.</li>
+ *
+ *  <li>{@code transport.found.gate-writes}: Whether to hold back requests until Found Elasticsearch
+ *  has accepted the connection, instead of writing them right after the authentication header.
+ *  Held back requests are written together once the connection is accepted, and failed right away
+ *  if it is rejected. Defaults to {@code false}.</li>
+ *
+ *  <li>{@code transport.found.jmx-enabled}: Whether to publish the statistics of the transport, such as
+ *  the latencies of setting up connections and the bytes and records encrypted and decrypted, as an MXBean named
+ *  {@code no.found.elasticsearch:type=FoundNettyTransport,name=<node name>}. Defaults to {@code true}.</li>
+ *
+ *  <li>{@code transport.found.channel-profile.<type>.*}: Settings for the connections of one of the
+ *  types of connections opened to a node, which are {@code recovery}, {@code bulk}, {@code reg}, {@code state}
+ *  and {@code ping}. {@code keep-alive-interval} overrides {@code transport.found.connection-keep-alive-interval},
+ *  {@code max-record-size} limits the plaintext in an SSL record so the node can decrypt it sooner,
+ *  {@code send-buffer-size} and {@code receive-buffer-size} set the socket buffers before the connections are
+ *  established, so the window scaling fits them, and {@code tcp-no-delay} sets
+ *  whether Nagle's algorithm is disabled. For instance, large socket buffers suit {@code bulk}, and small records
+ *  and a shorter keep-alive interval suit {@code ping} and {@code state}. Not set by default, so all types of
+ *  connections are set up the same way.</li>
  *
  *  <li>{@code transport.found.ssl.unsafe_allow_self_signed}: Whether to accept self-signed
  *  certificates when using SSL. This is unsafe and allows for MITM-attacks, but
  *  may be useful for testing. Defaults to {@code false}.</li>
+ *
+ *  <li>{@code transport.found.ssl.wrap_direct}: Whether to encrypt outgoing records directly
+ *  into the buffers that are written to the network, instead of encrypting into a pooled
+ *  buffer and copying the result. Defaults to {@code false}.</li>
+ *
+ *  <li>{@code transport.found.ssl.batch_unwrap}: Whether to decrypt all complete records
+ *  received in a single read into one buffer, which is then passed on as a single message.
+ *  Defaults to {@code false}.</li>
+ *
+ *  <li>{@code transport.found.ssl.dynamic_record_sizing}: Whether the first records of a connection, and
+ *  the first records after it has been idle, are small enough to fit in a single TCP segment, so Found
+ *  Elasticsearch can start decrypting a large request before all of its first full-sized record has arrived.
+ *  The records double in size every time one is filled, until they are as large as SSL allows. Defaults
+ *  to {@code false}.</li>
+ *
+ *  <li>{@code transport.found.ssl.initial_record_size}: The plaintext in the first records with dynamic
+ *  record sizing. Defaults to {@code 1400b}.</li>
+ *
+ *  <li>{@code transport.found.ssl.record_size_idle_reset}: How long a connection has to go without
+ *  writing before dynamic record sizing starts over with small records. Defaults to {@code 1s}.</li>
+ *
+ *  <li>{@code transport.found.ssl.buffer_pool.size}: The total size of the pool of buffers
+ *  used for encryption and decryption. Defaults to {@code 18mb}.</li>
+ *
+ *  <li>{@code transport.found.ssl.buffer_pool.stripes}: The number of independently locked
+ *  stripes the buffer pool is split into. Defaults to twice the number of processors, which
+ *  is the default number of netty workers.</li>
+ *
+ *  <li>{@code transport.found.ssl.buffer_pool.direct}: Whether the buffer pool allocates
+ *  direct (off-heap) buffers. Defaults to {@code false}.</li>
+ *
+ *  <li>{@code transport.found.ssl.handshake_executor.size}: The number of threads that run the
+ *  expensive parts of SSL handshakes, such as key exchange and certificate validation, instead
+ *  of the netty workers. Defaults to the number of processors, at most {@code 4}. A size of
+ *  {@code 0} runs them on the netty workers.</li>
+ *
+ *  <li>{@code transport.found.ssl.handshake_executor.queue_size}: The number of handshake tasks
+ *  that may wait for a handshake thread. The handshakes of tasks beyond this fail, and their
+ *  connections are closed. Defaults to {@code 1000}.</li>
+ *
+ *  <li>{@code transport.found.ssl.session_cache.size}: The number of SSL sessions that are kept
+ *  for resumption when reconnecting. The connections use the default SSL context of the JVM, so
+ *  this changes its client session cache, and it's left as the JVM configured it if this isn't set.
+ *  With {@code transport.found.ssl.unsafe_allow_self_signed} it defaults to {@code 1000}.</li>
+ *
+ *  <li>{@code transport.found.ssl.session_cache.timeout}: How long a cached SSL session may be
+ *  resumed. Like the size, it's left as the JVM configured it if this isn't set, except with
+ *  {@code transport.found.ssl.unsafe_allow_self_signed}, where it defaults to {@code 24h}.</li>
+ *
+ *  <li>{@code transport.found.ssl.cipher_suites}: A comma-separated list of the cipher suites to
+ *  enable, in order of preference. Suites that are not supported by the JVM are left out. Defaults
+ *  to a list that prefers AES-GCM suites.</li>
+ *
+ *  <li>{@code transport.found.ssl.protocols}: A comma-separated list of the protocols to enable.
+ *  Defaults to the protocols enabled by the JVM.</li>
  * </ul>
  *
  * <p><b>The transport is backwards-compatible with the default transport.</b></p>
  *
+ * <p>When {@code client.transport.sniff} is {@code true}, the nodes that are found by sniffing are connected
+ * to through the Found proxy at the first Found address that was connected to. Their connections send a header
+ * that names the node, so the proxy routes them to it, and each node gets its own connections. This requires
+ * a proxy that has accepted revision 2 of the header and advertised that it routes connections to nodes.
+ * Otherwise connecting to a sniffed node fails right away, and the requests are sent through the connections
+ * to the Found addresses.</p>
+ *
  * <p>Example configuration:</p>
  *
  * <pre>
@@ -93,14 +250,46 @@ import java.util.concurrent.TimeUnit;
  * }
  * </pre>
  */
-public class FoundNettyTransport extends NettyTransport {
+public class FoundNettyTransport extends NettyTransport implements FoundNettyTransportMXBean {
+    // the order in which NettyTransport connects the channels of the types.
+    private static final TransportRequestOptions.Type[] CONNECT_ORDER = {
+        TransportRequestOptions.Type.RECOVERY, TransportRequestOptions.Type.BULK, TransportRequestOptions.Type.REG,
+        TransportRequestOptions.Type.STATE, TransportRequestOptions.Type.PING
+    };
+
     private final String[] hostSuffixes;
-    private final int[] sslPorts;
     private final String apiKey;
-    private final boolean unsafeAllowSelfSigned;
-    private final TimeValue keepAliveInterval;
-    private final ClusterName clusterName;
+    private final FoundSSLHandlerFactory sslHandlerFactory;
+    private final ConnectionKeepAliveManager keepAliveManager;
+    private final FoundConnectionProfile profile;
+    // the profiles of the types of channels that have settings of their own.
+    private final Map<TransportRequestOptions.Type, FoundConnectionProfile> channelProfiles = new EnumMap<TransportRequestOptions.Type, FoundConnectionProfile>(TransportRequestOptions.Type.class);
+    // the bootstraps of the types of channels that have socket buffers of their own.
+    private final Map<TransportRequestOptions.Type, ClientBootstrap> channelBootstraps = new EnumMap<TransportRequestOptions.Type, ClientBootstrap>(TransportRequestOptions.Type.class);
+    // the bootstraps that connect the channels of the node that is being connected to by this thread, in order.
+    private final ThreadLocal<Iterator<ClientBootstrap>> channelBootstrapPlan = new ThreadLocal<Iterator<ClientBootstrap>>();
     private final ScheduledExecutorService scheduler;
+    private final FoundAddressResolver addressResolver;
+    private final Field nodeAddressField;
+    private final boolean spreadConnections;
+    private final TimeValue connectAttemptDelay;
+    private final boolean warmUpConnections;
+    private final TimeValue warmUpTimeout;
+    private final TimeValue warmUpRetryInterval;
+    private final TimeValue warmUpMaxRetryInterval;
+    private final boolean sniff;
+
+    // the address of the Found proxy that the connections to sniffed nodes are routed through.
+    private volatile InetSocketAddress proxyAddress;
+    private volatile boolean routingUnsupportedLogged;
+
+    // the nodes that have been connected to, and how their connections are re-established.
+    private final ConcurrentMap<DiscoveryNode, WarmNode> warmNodes = ConcurrentCollections.newConcurrentMap();
+
+    private final ConnectionSetupStats setupStats = new ConnectionSetupStats();
+    private final FoundTransportMetrics metrics = new FoundTransportMetrics();
+    private final boolean jmxEnabled;
+    private volatile ObjectName objectName;
 
     @Inject
     public FoundNettyTransport(Settings settings, ThreadPool threadPool, NetworkService networkService, ClusterName clusterName, BigArrays bigArrays, Version version) {
@@ -111,15 +300,13 @@ public class FoundNettyTransport extends NettyTransport {
                 "This is not recommended in combination with Found Elasticsearch Transport module.");
         }
 
-        if (settings.getAsBoolean("client.transport.sniff", false)) {
-            throw new ElasticsearchException("The transport client setting \"client.transport.sniff\" is [true], which is not supported by this transport.");
-        }
+        sniff = settings.getAsBoolean("client.transport.sniff", false);
 
         this.scheduler = threadPool.scheduler();
-        this.clusterName = clusterName;
 
-        keepAliveInterval = settings.getAsTime("transport.found.connection-keep-alive-interval", new TimeValue(20000, TimeUnit.MILLISECONDS));
-        unsafeAllowSelfSigned = settings.getAsBoolean("transport.found.ssl.unsafe_allow_self_signed", false);
+        keepAliveManager = new ConnectionKeepAliveManager(EsExecutors.daemonThreadFactory(settings, "found_keep_alive"));
+        sslHandlerFactory = new FoundSSLHandlerFactory(settings);
+        sslHandlerFactory.setMetrics(metrics.getSslMetrics());
         hostSuffixes = settings.getAsArray("transport.found.host-suffixes", new String[]{".found.io",".foundcluster.com", ".found.no"});
 
         List<Integer> ports = new LinkedList<Integer>();
@@ -130,12 +317,64 @@ public class FoundNettyTransport extends NettyTransport {
                 // ignore
             }
         }
-        sslPorts = new int[ports.size()];
+        int[] sslPorts = new int[ports.size()];
         for(int i=0; i<ports.size(); i++) {
             sslPorts[i] = ports.get(i);
         }
 
         this.apiKey = settings.get("transport.found.api-key", "missing-api-key");
+
+        addressResolver = new FoundAddressResolver(logger, scheduler, threadPool.executor(ThreadPool.Names.GENERIC),
+            settings.getAsTime("transport.found.dns-refresh-interval", TimeValue.timeValueSeconds(60)));
+        addressResolver.setSetupStats(setupStats);
+        jmxEnabled = settings.getAsBoolean("transport.found.jmx-enabled", true);
+
+        spreadConnections = settings.getAsBoolean("transport.found.spread-connections", false);
+        connectAttemptDelay = settings.getAsTime("transport.found.connect-attempt-delay", TimeValue.timeValueMillis(250));
+
+        warmUpConnections = settings.getAsBoolean("transport.found.warm-up-connections", false);
+        warmUpTimeout = settings.getAsTime("transport.found.warm-up-timeout", TimeValue.timeValueSeconds(10));
+        warmUpRetryInterval = settings.getAsTime("transport.found.warm-up-retry-interval", TimeValue.timeValueSeconds(1));
+        warmUpMaxRetryInterval = settings.getAsTime("transport.found.warm-up-max-retry-interval", TimeValue.timeValueSeconds(30));
+
+        int headerRevision = settings.getAsInt("transport.found.header-revision", 1);
+        profile = FoundConnectionProfile.builder()
+            .hostSuffixes(hostSuffixes)
+            .sslPorts(sslPorts)
+            .header(new FoundTransportHeader(clusterName.value(), apiKey, null, headerRevision))
+            .headerNegotiation(new FoundHeaderNegotiation(headerRevision, settings.getAsTime("transport.found.header-reprobe-interval", TimeValue.timeValueMinutes(10))))
+            .sslHandlerFactory(sslHandlerFactory)
+            .keepAliveInterval(settings.getAsTime("transport.found.connection-keep-alive-interval", new TimeValue(20000, TimeUnit.MILLISECONDS)))
+            .keepAliveManager(keepAliveManager)
+            // warmed up connections are not waiting for a request to send the header with.
+            .headerDelay(warmUpConnections ? TimeValue.timeValueMillis(0) : settings.getAsTime("transport.found.header-coalesce-delay", TimeValue.timeValueMillis(50)))
+            .gateWrites(settings.getAsBoolean("transport.found.gate-writes", false))
+            .setupStats(setupStats)
+            .metrics(metrics)
+            .build();
+
+        for (TransportRequestOptions.Type type : TransportRequestOptions.Type.values()) {
+            Settings channelSettings = settings.getByPrefix("transport.found.channel-profile." + type.name().toLowerCase(Locale.ROOT) + ".");
+            if (channelSettings.getAsMap().isEmpty()) {
+                continue;
+            }
+            channelProfiles.put(type, FoundConnectionProfile.builder(profile)
+                .keepAliveInterval(channelSettings.getAsTime("keep-alive-interval", profile.getKeepAliveInterval()))
+                .maxRecordSize((int) channelSettings.getAsBytesSize("max-record-size", new ByteSizeValue(0)).bytes())
+                .sendBufferSize(channelSettings.getAsBytesSize("send-buffer-size", null))
+                .receiveBufferSize(channelSettings.getAsBytesSize("receive-buffer-size", null))
+                .tcpNoDelay(channelSettings.getAsBoolean("tcp-no-delay", null))
+                .build());
+        }
+
+        Field addressField = null;
+        try {
+            addressField = DiscoveryNode.class.getDeclaredField("address");
+            addressField.setAccessible(true);
+        } catch (ReflectiveOperationException roe) {
+            logger.error("Unable to access the address of discovery nodes. Plugin upgrade likely required.", roe);
+        }
+        nodeAddressField = addressField;
     }
 
     @Override
@@ -149,63 +388,462 @@ public class FoundNettyTransport extends NettyTransport {
     @Override
     protected void doStart() throws ElasticsearchException {
         super.doStart();
+        addressResolver.start();
+        registerMBean();
 
-        try {
-            Field clientBootstrapField = getClass().getSuperclass().getDeclaredField("clientBootstrap");
-            clientBootstrapField.setAccessible(true);
-            ClientBootstrap clientBootstrap = (ClientBootstrap)clientBootstrapField.get(this);
+        final ClientBootstrap baseBootstrap = clientBootstrap;
+        final ClientBootstrap defaultBootstrap = configureClientBootstrap(baseBootstrap);
+        for (Map.Entry<TransportRequestOptions.Type, FoundConnectionProfile> entry : channelProfiles.entrySet()) {
+            if (!entry.getValue().hasSocketBufferSizes()) {
+                continue;
+            }
+            ClientBootstrap typeBootstrap = new ClientBootstrap(baseBootstrap.getFactory());
+            typeBootstrap.setOptions(baseBootstrap.getOptions());
+            typeBootstrap.setPipelineFactory(baseBootstrap.getPipelineFactory());
+            entry.getValue().applyTo(typeBootstrap);
+            channelBootstraps.put(entry.getKey(), configureClientBootstrap(typeBootstrap));
+        }
 
-            final ChannelPipelineFactory originalFactory = clientBootstrap.getPipelineFactory();
+        if (channelBootstraps.isEmpty()) {
+            clientBootstrap = defaultBootstrap;
+            return;
+        }
 
-            clientBootstrap.setPipelineFactory(new ChannelPipelineFactory() {
-                @Override
-                public ChannelPipeline getPipeline() throws Exception {
-                    ChannelPipeline pipeline =  originalFactory.getPipeline();
-                    pipeline.addFirst("found-authenticating-channel-handler", new FoundAuthenticatingChannelHandler(logger, scheduler, clusterName, keepAliveInterval, unsafeAllowSelfSigned, hostSuffixes, sslPorts, apiKey));
-                    return pipeline;
-                }
-            });
+        // connects with the bootstrap that connectToChannels planned for the connection, if any.
+        ClientBootstrap planningBootstrap = new ClientBootstrap(baseBootstrap.getFactory()) {
+            @Override
+            public ChannelFuture connect(SocketAddress remoteAddress, SocketAddress localAddress) {
+                Iterator<ClientBootstrap> plan = channelBootstrapPlan.get();
+                ClientBootstrap bootstrap = plan != null && plan.hasNext() ? plan.next() : null;
+                return (bootstrap != null ? bootstrap : defaultBootstrap).connect(remoteAddress, localAddress);
+            }
+        };
+        planningBootstrap.setOptions(baseBootstrap.getOptions());
+        planningBootstrap.setPipelineFactory(baseBootstrap.getPipelineFactory());
+        clientBootstrap = planningBootstrap;
+    }
 
-            clientBootstrapField.setAccessible(false);
-        } catch (ReflectiveOperationException roe) {
-            logger.error("Unable to update the transport pipeline. Plugin upgrade required.", roe);
+    /**
+     * Wraps the bootstrap in the bootstraps that spread the connections and negotiate the revision of the header,
+     * if they are enabled.
+     */
+    private ClientBootstrap configureClientBootstrap(ClientBootstrap bootstrap) {
+        if (spreadConnections) {
+            ClientBootstrap spreadingBootstrap = new SpreadingClientBootstrap(bootstrap.getFactory(), addressResolver, scheduler, profile, connectAttemptDelay);
+            spreadingBootstrap.setOptions(bootstrap.getOptions());
+            spreadingBootstrap.setPipelineFactory(bootstrap.getPipelineFactory());
+            bootstrap = spreadingBootstrap;
+        }
+
+        if (profile.getHeaderNegotiation().getPreferredRevision() >= 2) {
+            ClientBootstrap negotiatingBootstrap = new NegotiatingClientBootstrap(bootstrap, profile);
+            negotiatingBootstrap.setOptions(bootstrap.getOptions());
+            negotiatingBootstrap.setPipelineFactory(bootstrap.getPipelineFactory());
+            bootstrap = negotiatingBootstrap;
+        }
+        return bootstrap;
+    }
+
+    @Override
+    public ChannelPipelineFactory configureClientChannelPipelineFactory() {
+        final ChannelPipelineFactory originalFactory = super.configureClientChannelPipelineFactory();
+
+        return new ChannelPipelineFactory() {
+            @Override
+            public ChannelPipeline getPipeline() throws Exception {
+                ChannelPipeline pipeline = originalFactory.getPipeline();
+                pipeline.addFirst("found-authenticating-channel-handler", new FoundAuthenticatingChannelHandler(logger, scheduler, profile));
+                return pipeline;
+            }
+        };
+    }
+
+    @Override
+    protected void doStop() throws ElasticsearchException {
+        logger.debug("Stopping with SSL buffer pool statistics: [{}], full handshakes: [{}], resumed handshakes: [{}]",
+            sslHandlerFactory.getBufferPool(), sslHandlerFactory.getFullHandshakes(), sslHandlerFactory.getResumedHandshakes());
+        warmNodes.clear();
+        super.doStop();
+    }
+
+    @Override
+    protected void doClose() throws ElasticsearchException {
+        unregisterMBean();
+        super.doClose();
+        addressResolver.close();
+        keepAliveManager.close();
+        sslHandlerFactory.close();
+    }
+
+    @Override
+    public List<ConnectionSetupStats.PhaseLatency> getConnectionSetupLatencies() {
+        return setupStats.getLatencies();
+    }
+
+    public ConnectionSetupStats getSetupStats() {
+        return setupStats;
+    }
+
+    public FoundTransportMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Returns which revision of the header is sent to each Found host, and what the hosts advertised.
+     */
+    public FoundHeaderNegotiation getHeaderNegotiation() {
+        return profile.getHeaderNegotiation();
+    }
+
+    @Override
+    public long getPlaintextBytesWritten() {
+        return metrics.getSslMetrics().getPlaintextBytesWritten();
+    }
+
+    @Override
+    public long getCiphertextBytesWritten() {
+        return metrics.getSslMetrics().getCiphertextBytesWritten();
+    }
+
+    @Override
+    public long getPlaintextBytesRead() {
+        return metrics.getSslMetrics().getPlaintextBytesRead();
+    }
+
+    @Override
+    public long getCiphertextBytesRead() {
+        return metrics.getSslMetrics().getCiphertextBytesRead();
+    }
+
+    @Override
+    public long getRecordsWrapped() {
+        return metrics.getSslMetrics().getRecordsWrapped();
+    }
+
+    @Override
+    public long getRecordsUnwrapped() {
+        return metrics.getSslMetrics().getRecordsUnwrapped();
+    }
+
+    @Override
+    public long getBufferPoolHits() {
+        return sslHandlerFactory.getBufferPool().getHits();
+    }
+
+    @Override
+    public long getBufferPoolMisses() {
+        return sslHandlerFactory.getBufferPool().getMisses();
+    }
+
+    @Override
+    public long getPendingUnencryptedWrites() {
+        return metrics.getSslMetrics().getPendingUnencryptedWrites();
+    }
+
+    @Override
+    public long getPendingEncryptedWrites() {
+        return metrics.getSslMetrics().getPendingEncryptedWrites();
+    }
+
+    @Override
+    public long getKeepAlivesSent() {
+        return keepAliveManager.getKeepAlivesSent();
+    }
+
+    @Override
+    public Map<Integer, Long> getAuthenticationFailures() {
+        return metrics.getAuthenticationFailures();
+    }
+
+    private void registerMBean() {
+        if (!jmxEnabled || objectName != null) {
+            return;
+        }
+        try {
+            ObjectName name = new ObjectName("no.found.elasticsearch:type=FoundNettyTransport,name=" + ObjectName.quote(String.valueOf(nodeName())));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            objectName = name;
+        } catch (JMException e) {
+            logger.warn("Unable to publish the transport statistics through JMX", e);
+        }
+    }
+
+    private void unregisterMBean() {
+        ObjectName name = objectName;
+        if (name == null) {
+            return;
+        }
+        objectName = null;
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            logger.debug("Unable to unpublish the transport statistics from JMX", e);
         }
     }
 
     @Override
     public void connectToNode(DiscoveryNode node, boolean light) {
         // we hook into the connection here and use reflection in order to update the
-        // resolved address of the given node by resolving it again. the rationale behind
-        // this is that the ELB addresses may change and that Elasticsearch otherwise doesn't
-        // try to resolve it again.
+        // resolved address of the given node to the latest address of its host. the rationale
+        // behind this is that the ELB addresses may change and that Elasticsearch otherwise doesn't
+        // try to resolve it again. the hosts are resolved in the background, so this only waits
+        // for DNS the first time it connects to an address that hasn't been resolved at all.
+        //
+        // when sniffing, the nodes that are found have the addresses they publish within the cluster,
+        // which can't be reached from here. their addresses are replaced with the address of the Found
+        // proxy, which routes their connections to them.
+
+        if(nodeAddressField != null && node.address() instanceof InetSocketTransportAddress) {
+            InetSocketAddress oldAddress = ((InetSocketTransportAddress)node.address()).address();
+            InetSocketAddress newAddress = oldAddress;
 
-        if(node.address() instanceof InetSocketTransportAddress) {
-            InetSocketTransportAddress oldAddress = (InetSocketTransportAddress)node.address();
-            InetSocketTransportAddress newAddress = new InetSocketTransportAddress(oldAddress.address().getHostString(), oldAddress.address().getPort());
+            if(profile.isFoundHost(oldAddress.getHostString())) {
+                if(sniff && proxyAddress == null && !oldAddress.isUnresolved() && !(oldAddress instanceof FoundRoutedAddress)) {
+                    proxyAddress = oldAddress;
+                }
+            } else if(sniff && proxyAddress != null) {
+                InetSocketAddress proxy = proxyAddress;
+                FoundServerCapabilities capabilities = profile.getHeaderNegotiation().getCapabilities(proxy.getHostString());
+                if(capabilities == null || !capabilities.supports(FoundServerCapabilities.NODE_ROUTING)) {
+                    // the proxy would connect us to any node of the cluster.
+                    if(!routingUnsupportedLogged) {
+                        routingUnsupportedLogged = true;
+                        logger.warn("The Found proxy at [{}] has not accepted revision 2 of the header with routing to nodes, the sniffed nodes are not connected to", proxy);
+                    }
+                    throw new ConnectTransportException(node, "the Found proxy at [" + proxy + "] does not route connections to nodes");
+                }
+                newAddress = new FoundRoutedAddress(proxy.getAddress(), proxy.getPort(), node.id());
+            }
 
-            boolean oldResolved = !oldAddress.address().isUnresolved();
-            boolean newResolved = !newAddress.address().isUnresolved();
+            InetAddress latestAddress = addressResolver.getAddress(newAddress.getHostString());
+            if(latestAddress == null && newAddress.isUnresolved()) {
+                // nothing to connect to until the host is resolved, so resolve it now.
+                latestAddress = addressResolver.resolveAddress(newAddress.getHostString());
+            }
 
-            boolean resolvedOk = !oldResolved || newResolved;
+            // only update it if the host has been resolved AND the address has changed.
+            if(latestAddress != null && !latestAddress.equals(newAddress.getAddress())) {
+                newAddress = FoundRoutedAddress.withAddress(newAddress, latestAddress);
+            }
 
-            // only update it if the old one was not resolved, or the new address is resolved AND the address has changed.
-            if(resolvedOk && !Arrays.equals(oldAddress.address().getAddress().getAddress(), newAddress.address().getAddress().getAddress())) {
+            if(newAddress != oldAddress) {
                 try {
-                    Field addressField = node.getClass().getDeclaredField("address");
+                    nodeAddressField.set(node, new InetSocketTransportAddress(newAddress));
 
-                    boolean wasAccessible = addressField.isAccessible();
-                    addressField.setAccessible(true);
+                    logger.info("Updated the address of [{}] from [{}] to [{}]", node, oldAddress, newAddress);
+                } catch (IllegalAccessException iae) {
+                    logger.error("Unable to update the address of [{}]. Plugin upgrade likely required.", iae, node);
+                }
+            }
+        }
+        super.connectToNode(node, light);
 
-                    addressField.set(node, newAddress);
+        if (warmUpConnections) {
+            WarmNode warmNode = warmNodes.get(node);
+            if (warmNode == null || warmNode.light != light) {
+                warmNode = new WarmNode(light);
+                warmNodes.put(node, warmNode);
+            }
+            warmNode.connected();
+            awaitAuthenticated(node, light);
+        }
+    }
 
-                    addressField.setAccessible(wasAccessible);
+    @Override
+    protected void connectToChannels(NodeChannels nodeChannels, DiscoveryNode node) {
+        if (!channelBootstraps.isEmpty()) {
+            // the socket buffers have to be set before a channel connects, when its type isn't known yet. the channels
+            // are connected by this thread one type after the other before any of them is waited for, so each connection
+            // is planned to be made by the bootstrap of its type.
+            List<ClientBootstrap> plan = new ArrayList<ClientBootstrap>();
+            for (TransportRequestOptions.Type type : CONNECT_ORDER) {
+                int count = connectionsPerNode(type);
+                for (int i = 0; i < count; i++) {
+                    plan.add(channelBootstraps.get(type));
+                }
+            }
+            channelBootstrapPlan.set(plan.iterator());
+        }
+        try {
+            super.connectToChannels(nodeChannels, node);
+        } finally {
+            channelBootstrapPlan.remove();
+        }
+
+        // the type of a channel is only known once it's been connected, so the rest of the profiles of the
+        // types are applied to the channels afterwards.
+        for (Map.Entry<TransportRequestOptions.Type, FoundConnectionProfile> entry : channelProfiles.entrySet()) {
+            // the channels of a type are handed out in turn, so asking as many times as there are channels gets all of them.
+            int count = connectionsPerNode(entry.getKey());
+            for (int i = 0; i < count; i++) {
+                entry.getValue().applyTo(nodeChannels.channel(entry.getKey()));
+            }
+        }
+    }
+
+    private int connectionsPerNode(TransportRequestOptions.Type type) {
+        switch (type) {
+            case RECOVERY:
+                return connectionsPerNodeRecovery;
+            case BULK:
+                return connectionsPerNodeBulk;
+            case REG:
+                return connectionsPerNodeReg;
+            case STATE:
+                return connectionsPerNodeState;
+            case PING:
+                return connectionsPerNodePing;
+            default:
+                return 0;
+        }
+    }
+
+    @Override
+    public void disconnectFromNode(DiscoveryNode node) {
+        // explicitly disconnected nodes are not re-established, and sniffing has found them gone.
+        warmNodes.remove(node);
+        profile.getHeader().forgetRoutedTo(node.id());
+        super.disconnectFromNode(node);
+    }
 
-                    logger.info("Updated the resolved address of [{}] from [{}] to [{}]", node, oldAddress, newAddress);
-                } catch (ReflectiveOperationException roe) {
-                    logger.error("Unable to update the resolved address of [{}]. Plugin upgrade likely required.", roe, node);
+    @Override
+    protected boolean disconnectFromNode(DiscoveryNode node, Channel channel, String reason) {
+        boolean disconnected = super.disconnectFromNode(node, channel, reason);
+        WarmNode warmNode = warmNodes.get(node);
+        if (disconnected && warmNode != null) {
+            FoundAuthenticatingChannelHandler handler = channel.getPipeline().get(FoundAuthenticatingChannelHandler.class);
+            if (handler != null && handler.isRejected()) {
+                // connecting again would only be rejected again, and count against the client at the proxy.
+                warmNodes.remove(node, warmNode);
+                logger.warn("Found Elasticsearch rejected the connection to [{}], the connections to it are not re-established", node);
+            } else {
+                reconnect(node, warmNode.nextRetryInterval());
+            }
+        }
+        return disconnected;
+    }
+
+    /**
+     * Waits until all the connections to the node have been authenticated, or the warm-up timeout expires.
+     */
+    private void awaitAuthenticated(DiscoveryNode node, boolean light) {
+        List<Channel> channels = new ArrayList<Channel>();
+        try {
+            if (light) {
+                // light connections use a single channel for everything.
+                channels.add(nodeChannel(node, TransportRequestOptions.options()));
+            } else {
+                addChannels(channels, node, TransportRequestOptions.Type.RECOVERY, connectionsPerNodeRecovery);
+                addChannels(channels, node, TransportRequestOptions.Type.BULK, connectionsPerNodeBulk);
+                addChannels(channels, node, TransportRequestOptions.Type.REG, connectionsPerNodeReg);
+                addChannels(channels, node, TransportRequestOptions.Type.STATE, connectionsPerNodeState);
+                addChannels(channels, node, TransportRequestOptions.Type.PING, connectionsPerNodePing);
+            }
+        } catch (ConnectTransportException e) {
+            // disconnected in the meantime
+            return;
+        }
+
+        long deadline = System.currentTimeMillis() + warmUpTimeout.millis();
+        for (Channel channel : channels) {
+            FoundAuthenticatingChannelHandler handler = channel.getPipeline().get(FoundAuthenticatingChannelHandler.class);
+            ChannelFuture authenticated = handler == null ? null : handler.getAuthenticationFuture();
+            if (authenticated == null) {
+                // the handler has already removed itself
+                continue;
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0 || !authenticated.awaitUninterruptibly(remaining)) {
+                logger.debug("Timed out after [{}] waiting for the connections to [{}] to be authenticated", warmUpTimeout, node);
+                return;
+            }
+        }
+        logger.debug("Warmed up [{}] connections to [{}]", channels.size(), node);
+    }
+
+    private void addChannels(List<Channel> channels, DiscoveryNode node, TransportRequestOptions.Type type, int count) {
+        // the channels of a type are handed out in turn, so asking as many times as there are channels gets all of them.
+        for (int i = 0; i < count; i++) {
+            Channel channel = nodeChannel(node, TransportRequestOptions.options().withType(type));
+            if (!channels.contains(channel)) {
+                channels.add(channel);
+            }
+        }
+    }
+
+    /**
+     * Re-establishes the connections to a node in the background, retrying until it succeeds, the node
+     * is explicitly disconnected or its connections are rejected.
+     */
+    private void reconnect(final DiscoveryNode node, TimeValue delay) {
+        if (!lifecycle.started()) {
+            return;
+        }
+        try {
+            threadPool.schedule(delay, ThreadPool.Names.GENERIC, new Runnable() {
+                @Override
+                public void run() {
+                    WarmNode warmNode = warmNodes.get(node);
+                    if (warmNode == null || !lifecycle.started() || nodeConnected(node)) {
+                        return;
+                    }
+                    try {
+                        connectToNode(node, warmNode.light);
+                        logger.debug("Re-established the connections to [{}]", node);
+                    } catch (Exception e) {
+                        TimeValue retryInterval = warmNode.nextRetryInterval();
+                        logger.debug("Unable to re-establish the connections to [{}], retrying in [{}]", e, node, retryInterval);
+                        reconnect(node, retryInterval);
+                    }
                 }
+            });
+        } catch (Exception e) {
+            logger.debug("Unable to schedule re-establishing the connections to [{}]", e, node);
+        }
+    }
+
+    /**
+     * A node whose connections are re-established when they are dropped, and how often that has happened
+     * lately.
+     */
+    private class WarmNode {
+        final boolean light;
+        private int retries;
+        private boolean up;
+        private long connectedAt;
+
+        WarmNode(boolean light) {
+            this.light = light;
+        }
+
+        synchronized void connected() {
+            // connecting to a node that is already connected does not make it any younger.
+            if (!up) {
+                up = true;
+                connectedAt = System.currentTimeMillis();
             }
         }
-        super.connectToNode(node, light);
+
+        /**
+         * Returns how long to wait before re-establishing the connections: not at all the first time, and
+         * twice as long as the time before after that. Connections that have stayed up for longer than the
+         * longest wait start over.
+         */
+        synchronized TimeValue nextRetryInterval() {
+            long maxInterval = Math.max(warmUpRetryInterval.millis(), warmUpMaxRetryInterval.millis());
+            if (up && System.currentTimeMillis() - connectedAt > maxInterval) {
+                retries = 0;
+            }
+            up = false;
+            int retry = retries++;
+            if (retry == 0) {
+                return TimeValue.timeValueMillis(0);
+            }
+            long interval = warmUpRetryInterval.millis() << Math.min(retry - 1, 30);
+            return TimeValue.timeValueMillis(interval < 0 ? maxInterval : Math.min(interval, maxInterval));
+        }
     }
 }
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2013, Found AS.
+ * See LICENSE for details.
+ */
+
+package org.elasticsearch.transport.netty;
+
+import no.found.elasticsearch.transport.netty.ConnectionSetupStats;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The statistics of a {@link FoundNettyTransport} that are published through JMX.
+ */
+public interface FoundNettyTransportMXBean {
+    /**
+     * Returns the latencies of resolving, connecting, handshaking and authenticating, per remote address
+     * and outcome.
+     */
+    List<ConnectionSetupStats.PhaseLatency> getConnectionSetupLatencies();
+
+    /**
+     * Returns the application bytes that have been encrypted.
+     */
+    long getPlaintextBytesWritten();
+
+    /**
+     * Returns the encrypted bytes that have been written, including the handshakes.
+     */
+    long getCiphertextBytesWritten();
+
+    /**
+     * Returns the application bytes that have been decrypted.
+     */
+    long getPlaintextBytesRead();
+
+    /**
+     * Returns the encrypted bytes that have been read, including the handshakes.
+     */
+    long getCiphertextBytesRead();
+
+    long getRecordsWrapped();
+
+    long getRecordsUnwrapped();
+
+    /**
+     * Returns the number of times a buffer was taken from the SSL buffer pool.
+     */
+    long getBufferPoolHits();
+
+    /**
+     * Returns the number of times the SSL buffer pool was empty and a buffer had to be allocated.
+     */
+    long getBufferPoolMisses();
+
+    /**
+     * Returns the number of writes waiting to be encrypted, over all connections.
+     */
+    long getPendingUnencryptedWrites();
+
+    /**
+     * Returns the number of encrypted writes waiting to be written, over all connections.
+     */
+    long getPendingEncryptedWrites();
+
+    long getKeepAlivesSent();
+
+    /**
+     * Returns the number of connections that Found Elasticsearch did not accept, by the status code
+     * of its response.
+     */
+    Map<Integer, Long> getAuthenticationFailures();
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2013, Found AS.
+ * See LICENSE for details.
+ */
+
+package no.found.elasticsearch.transport.netty;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A plain socket server that reads the Found header of every connection and accepts it. Used as a stand-in
+ * for the Found proxy when testing how connections are set up. Whatever is sent after the header is discarded.
+ *
+ * By default the stand-in only knows revision 1 of the header, and rejects connections that send revision 2
+ * with a generic unsupported revision response. Given tunables, it accepts revision 2 and answers it with its
+ * capabilities. It can also be made to reject every connection, and to drop the connections it has accepted.
+ */
+public class LocalFoundProxy implements AutoCloseable {
+    private final ServerSocket serverSocket;
+    private final List<Socket> sockets = new CopyOnWriteArrayList<Socket>();
+    private final List<Header> headers = new CopyOnWriteArrayList<Header>();
+    private final Thread acceptThread;
+    private final long[] tunables;
+    private volatile int rejectionCode = FoundHeaderNegotiation.UNSUPPORTED_REVISION_CODE;
+    private volatile String rejectionDescription = "Unsupported revision";
+    private volatile boolean rejectAll;
+
+    public LocalFoundProxy() throws IOException {
+        this(null);
+    }
+
+    /**
+     * @param tunables the keys and values of the tunables to advertise to revision 2 headers,
+     *                 or {@code null} to reject revision 2.
+     */
+    public LocalFoundProxy(long[] tunables) throws IOException {
+        this.tunables = tunables;
+        serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+
+        acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (!serverSocket.isClosed()) {
+                        final Socket socket = serverSocket.accept();
+                        sockets.add(socket);
+                        Thread connectionThread = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                handle(socket);
+                            }
+                        }, "local-found-proxy-" + socket.getPort());
+                        connectionThread.setDaemon(true);
+                        connectionThread.start();
+                    }
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        }, "local-found-proxy-accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Makes the proxy reject revision 2 headers with the given response instead.
+     */
+    public void rejectRevision2With(int code, String description) {
+        rejectionCode = code;
+        rejectionDescription = description;
+    }
+
+    /**
+     * Makes the proxy reject every following connection with the given response, whatever its revision.
+     */
+    public void rejectWith(int code, String description) {
+        rejectionCode = code;
+        rejectionDescription = description;
+        rejectAll = true;
+    }
+
+    /**
+     * Closes the connections that have been accepted so far, as if the proxy had gone away.
+     */
+    public void dropConnections() throws IOException {
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+    }
+
+    /**
+     * Returns the headers that have been received, in the order they were received.
+     */
+    public List<Header> getHeaders() {
+        return headers;
+    }
+
+    private void handle(Socket socket) {
+        try {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            byte[] payload = new byte[in.readInt()];
+            in.readFully(payload);
+            Header header = Header.parse(payload);
+            headers.add(header);
+
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            if (rejectAll || (header.revision == 2 && tunables == null)) {
+                writeResponse(out, -1, rejectionCode, rejectionDescription);
+                socket.close();
+                return;
+            }
+            writeResponse(out, header.revision, 200, "OK");
+
+            byte[] discarded = new byte[8192];
+            while (in.read(discarded) != -1) {
+                // keep reading until the client closes the connection
+            }
+        } catch (IOException e) {
+            // closed or not a Found header
+        }
+    }
+
+    private void writeResponse(DataOutputStream out, int revision, int code, String description) throws IOException {
+        byte[] descriptionBytes = description.getBytes(StandardCharsets.UTF_8);
+        int capabilitiesLength = revision == 2 ? 8 + tunables.length / 2 * 12 : 0;
+        out.writeInt(12 + descriptionBytes.length + capabilitiesLength);
+        out.writeInt(revision);
+        out.writeInt(code);
+        out.writeInt(descriptionBytes.length);
+        out.write(descriptionBytes);
+        if (revision == 2) {
+            out.writeInt(FoundServerCapabilities.NODE_ROUTING | FoundServerCapabilities.KEEP_ALIVE);
+            out.writeInt(tunables.length / 2);
+            for (int i = 0; i + 1 < tunables.length; i += 2) {
+                out.writeInt((int) tunables[i]);
+                out.writeLong(tunables[i + 1]);
+            }
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+    }
+
+    /**
+     * A header received by the proxy.
+     */
+    public static class Header {
+        public final int revision;
+        public final String clusterName;
+        public final String apiKey;
+        public final String targetNode;
+        public final int capabilities;
+
+        private Header(int revision, String clusterName, String apiKey, String targetNode, int capabilities) {
+            this.revision = revision;
+            this.clusterName = clusterName;
+            this.apiKey = apiKey;
+            this.targetNode = targetNode;
+            this.capabilities = capabilities;
+        }
+
+        static Header parse(byte[] payload) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+            in.readInt(); // revision size
+            int revision = in.readInt();
+            in.skipBytes(in.readInt()); // versions
+            String clusterName = readString(in);
+            String apiKey = readString(in);
+            if (revision == 2) {
+                in.readInt(); // capabilities size
+                int capabilities = in.readInt();
+                String targetNode = readString(in);
+                return new Header(revision, clusterName, apiKey, targetNode.isEmpty() ? null : targetNode, capabilities);
+            }
+            String targetNode = in.available() > 0 ? readString(in) : null;
+            return new Header(revision, clusterName, apiKey, targetNode, 0);
+        }
+
+        private static String readString(DataInputStream in) throws IOException {
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
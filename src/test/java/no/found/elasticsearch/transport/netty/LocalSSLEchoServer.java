@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2013, Found AS.
+ * See LICENSE for details.
+ */
+
+package no.found.elasticsearch.transport.netty;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSocket;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.security.KeyStore;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A JDK {@link SSLServerSocket} that echoes everything it receives. Used as a stand-in for the
+ * Found proxy when testing the SSL handler against a real TLS peer.
+ */
+public class LocalSSLEchoServer implements AutoCloseable {
+    public static final String KEYSTORE = "/test-keystore.jks";
+    public static final char[] KEYSTORE_PASSWORD = "found-test".toCharArray();
+
+    private final SSLServerSocket serverSocket;
+    private final List<SSLSocket> sockets = new CopyOnWriteArrayList<SSLSocket>();
+    private final Thread acceptThread;
+
+    public LocalSSLEchoServer() throws Exception {
+        this(null);
+    }
+
+    /**
+     * @param protocols the protocols to enable on the server, or {@code null} to use the defaults.
+     */
+    public LocalSSLEchoServer(String[] protocols) throws Exception {
+        serverSocket = (SSLServerSocket) createContext().getServerSocketFactory().createServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        if (protocols != null) {
+            serverSocket.setEnabledProtocols(protocols);
+        }
+
+        acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (!serverSocket.isClosed()) {
+                        final SSLSocket socket = (SSLSocket) serverSocket.accept();
+                        sockets.add(socket);
+                        Thread echoThread = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                echo(socket);
+                            }
+                        }, "local-ssl-echo-" + socket.getPort());
+                        echoThread.setDaemon(true);
+                        echoThread.start();
+                    }
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        }, "local-ssl-echo-accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    public static SSLContext createContext() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        try (InputStream in = LocalSSLEchoServer.class.getResourceAsStream(KEYSTORE)) {
+            keyStore.load(in, KEYSTORE_PASSWORD);
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keyStore, KEYSTORE_PASSWORD);
+
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(kmf.getKeyManagers(), null, null);
+        return context;
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Returns the sockets accepted so far.
+     */
+    public List<SSLSocket> getSockets() {
+        return sockets;
+    }
+
+    private void echo(SSLSocket socket) {
+        byte[] buffer = new byte[8192];
+        try {
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+                out.flush();
+            }
+        } catch (SocketException e) {
+            // closed
+        } catch (IOException e) {
+            // closed
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        for (SSLSocket socket : sockets) {
+            socket.close();
+        }
+    }
+}
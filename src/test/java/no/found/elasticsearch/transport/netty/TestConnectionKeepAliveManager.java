@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2013, Found AS.
+ * See LICENSE for details.
+ */
+
+package no.found.elasticsearch.transport.netty;
+
+import org.elasticsearch.common.netty.channel.*;
+import org.elasticsearch.common.netty.util.HashedWheelTimer;
+import org.elasticsearch.common.unit.TimeValue;
+import org.hamcrest.BaseMatcher;
+import org.hamcrest.Description;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.*;
+
+public class TestConnectionKeepAliveManager {
+    private static final TimeValue INTERVAL = TimeValue.timeValueMillis(200);
+
+    private ConnectionKeepAliveManager manager;
+    private Channel channel;
+    private ChannelPipeline pipeline;
+    private ChannelHandlerContext context;
+
+    @Before
+    public void setUp() throws Exception {
+        manager = new ConnectionKeepAliveManager(new HashedWheelTimer(Executors.defaultThreadFactory(), 10, TimeUnit.MILLISECONDS));
+
+        channel = mock(Channel.class);
+        pipeline = mock(ChannelPipeline.class);
+        context = mock(ChannelHandlerContext.class);
+
+        when(context.getChannel()).thenReturn(channel);
+        when(context.getPipeline()).thenReturn(pipeline);
+        when(channel.isOpen()).thenReturn(true);
+        when(channel.isConnected()).thenReturn(true);
+        when(channel.getRemoteAddress()).thenReturn(new InetSocketAddress("localhost", 9343));
+        when(pipeline.execute(any(Runnable.class))).thenAnswer(new Answer<ChannelFuture>() {
+            @Override
+            public ChannelFuture answer(InvocationOnMock invocation) throws Throwable {
+                ((Runnable) invocation.getArguments()[0]).run();
+                return null;
+            }
+        });
+    }
+
+    @After
+    public void cleanUp() {
+        manager.close();
+    }
+
+    @Test
+    public void testKeepAliveSentWhenIdle() throws Exception {
+        ConnectionKeepAliveHandler handler = new ConnectionKeepAliveHandler(manager, INTERVAL);
+        handler.afterAdd(context);
+        assertEquals(1, manager.getChannelCount());
+
+        verify(context, timeout(5000).atLeast(2)).sendDownstream(any(DownstreamMessageEvent.class));
+        assertTrue(manager.getKeepAlivesSent() >= 2);
+    }
+
+    @Test
+    public void testKeepAliveNotSentWhenWritten() throws Exception {
+        ConnectionKeepAliveHandler handler = new ConnectionKeepAliveHandler(manager, INTERVAL);
+        handler.afterAdd(context);
+
+        final MessageEvent write = new DownstreamMessageEvent(channel, Channels.future(channel), new Object(), null);
+        long deadline = System.currentTimeMillis() + INTERVAL.millis() * 4;
+        while (System.currentTimeMillis() < deadline) {
+            handler.writeRequested(context, write);
+            Thread.sleep(INTERVAL.millis() / 10);
+        }
+
+        // only the writes themselves were sent.
+        verify(context, never()).sendDownstream(argThat(new BaseMatcher<ChannelEvent>() {
+            @Override
+            public boolean matches(Object item) {
+                return item != write;
+            }
+
+            @Override
+            public void describeTo(Description description) {
+                description.appendText("a keep-alive message");
+            }
+        }));
+    }
+
+    @Test
+    public void testKeepAliveNotSentWhenRead() throws Exception {
+        ConnectionKeepAliveHandler handler = new ConnectionKeepAliveHandler(manager, INTERVAL);
+        handler.afterAdd(context);
+
+        MessageEvent read = new UpstreamMessageEvent(channel, new Object(), null);
+        long deadline = System.currentTimeMillis() + INTERVAL.millis() * 4;
+        while (System.currentTimeMillis() < deadline) {
+            handler.messageReceived(context, read);
+            Thread.sleep(INTERVAL.millis() / 10);
+        }
+
+        verify(context, never()).sendDownstream(any(ChannelEvent.class));
+    }
+
+    @Test
+    public void testCoarseClockAdvances() throws Exception {
+        ConnectionKeepAliveHandler handler = new ConnectionKeepAliveHandler(manager, INTERVAL);
+        handler.afterAdd(context);
+
+        long start = manager.currentTimeMillis();
+        Thread.sleep(100);
+        assertTrue(manager.currentTimeMillis() > start);
+    }
+
+    @Test
+    public void testRemovedHandlerIsNoLongerTracked() throws Exception {
+        ConnectionKeepAliveHandler handler = new ConnectionKeepAliveHandler(manager, INTERVAL);
+        handler.afterAdd(context);
+        handler.afterRemove(context);
+        // closing the channel afterwards must not unregister it twice
+        handler.channelClosed(context, mock(ChannelStateEvent.class));
+        assertEquals(0, manager.getChannelCount());
+
+        Thread.sleep(INTERVAL.millis() * 2);
+        verify(context, never()).sendDownstream(any(ChannelEvent.class));
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2013, Found AS.
+ * See LICENSE for details.
+ */
+
+package no.found.elasticsearch.transport.netty;
+
+import org.elasticsearch.transport.netty.FoundNettyTransportMXBean;
+import org.junit.Test;
+
+import javax.management.StandardMBean;
+import javax.management.openmbean.CompositeData;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class TestConnectionSetupStats {
+    @Test
+    public void testBucketsCoverTheirValues() {
+        long previousUpperBound = -1;
+        for (long micros = 0; micros < 100000; micros++) {
+            int bucket = LatencyHistogram.bucket(micros);
+            long upperBound = LatencyHistogram.upperBound(bucket);
+            assertTrue(micros <= upperBound);
+            // at most a quarter off
+            assertTrue(upperBound - micros <= micros / 4);
+            assertTrue(upperBound >= previousUpperBound);
+            previousUpperBound = upperBound;
+        }
+        assertTrue(LatencyHistogram.upperBound(LatencyHistogram.bucket(Long.MAX_VALUE)) > TimeUnit.HOURS.toMicros(1));
+    }
+
+    @Test
+    public void testQuantiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i, TimeUnit.MILLISECONDS);
+        }
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(50.5, histogram.getMeanMillis(), 0.001);
+        assertEquals(100, histogram.getMaxMillis(), 0.001);
+        assertEquals(50, histogram.getQuantileMillis(0.5), 50 / 4.0);
+        assertEquals(90, histogram.getQuantileMillis(0.9), 90 / 4.0);
+        assertEquals(99, histogram.getQuantileMillis(0.99), 99 / 4.0);
+        assertTrue(histogram.getQuantileMillis(1) <= histogram.getMaxMillis());
+    }
+
+    @Test
+    public void testEmptyHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getMeanMillis(), 0);
+        assertEquals(0, histogram.getQuantileMillis(0.99), 0);
+    }
+
+    @Test
+    public void testRecordedPerPhaseAddressAndOutcome() throws Exception {
+        ConnectionSetupStats stats = new ConnectionSetupStats();
+        InetSocketAddress address = new InetSocketAddress(InetAddress.getByAddress("test.found.io", new byte[] {10, 0, 0, 1}), 9343);
+
+        stats.record(ConnectionSetupStats.Phase.HANDSHAKE, ConnectionSetupStats.address(address), true, TimeUnit.MILLISECONDS.toNanos(20));
+        stats.record(ConnectionSetupStats.Phase.HANDSHAKE, ConnectionSetupStats.address(address), true, TimeUnit.MILLISECONDS.toNanos(40));
+        stats.record(ConnectionSetupStats.Phase.HANDSHAKE, ConnectionSetupStats.address(address), false, TimeUnit.MILLISECONDS.toNanos(1000));
+
+        assertEquals("test.found.io/10.0.0.1:9343", ConnectionSetupStats.address(address));
+        assertEquals(2, stats.getHistogram(ConnectionSetupStats.Phase.HANDSHAKE, "test.found.io/10.0.0.1:9343", true).getCount());
+        assertEquals(1, stats.getHistogram(ConnectionSetupStats.Phase.HANDSHAKE, "test.found.io/10.0.0.1:9343", false).getCount());
+        assertNull(stats.getHistogram(ConnectionSetupStats.Phase.CONNECT, "test.found.io/10.0.0.1:9343", true));
+        assertEquals(2, stats.getLatencies().size());
+    }
+
+    @Test
+    public void testLatenciesArePublishable() throws Exception {
+        final ConnectionSetupStats stats = new ConnectionSetupStats();
+        stats.record(ConnectionSetupStats.Phase.AUTHENTICATION, "test.found.io/10.0.0.1:9343", true, TimeUnit.MILLISECONDS.toNanos(5));
+
+        FoundNettyTransportMXBean transport = mock(FoundNettyTransportMXBean.class);
+        when(transport.getConnectionSetupLatencies()).thenReturn(stats.getLatencies());
+        StandardMBean mbean = new StandardMBean(transport, FoundNettyTransportMXBean.class, true);
+
+        CompositeData[] latencies = (CompositeData[]) mbean.getAttribute("ConnectionSetupLatencies");
+        assertEquals(1, latencies.length);
+        assertEquals("AUTHENTICATION", latencies[0].get("phase"));
+        assertEquals("success", latencies[0].get("outcome"));
+        assertEquals(1L, latencies[0].get("count"));
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2013, Found AS.
+ * See LICENSE for details.
+ */
+
+package no.found.elasticsearch.transport.netty;
+
+import no.found.elasticsearch.transport.netty.ssl.ImmediateExecutor;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.unit.TimeValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class TestFoundAddressResolver {
+    ESLogger logger = ESLoggerFactory.getLogger(getClass().getCanonicalName());
+
+    private ScheduledExecutorService scheduler;
+    private ExecutorService executor;
+
+    @Before
+    public void setUp() {
+        scheduler = Executors.newScheduledThreadPool(1);
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void cleanUp() {
+        scheduler.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testFirstLookupResolvesInBackground() throws Exception {
+        final CountDownLatch resolving = new CountDownLatch(1);
+        FoundAddressResolver resolver = new FoundAddressResolver(logger, scheduler, executor, TimeValue.timeValueMillis(0)) {
+            @Override
+            protected InetAddress[] lookup(String host) throws UnknownHostException {
+                try {
+                    resolving.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.lookup(host);
+            }
+        };
+
+        assertNull(resolver.getAddress("localhost"));
+        assertNull(resolver.getAddress("localhost"));
+        resolving.countDown();
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (resolver.getAddress("localhost") == null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(resolver.getAddress("localhost").isLoopbackAddress());
+    }
+
+    @Test
+    public void testResolveAddressBlocksOnlyForUncachedHosts() throws Exception {
+        final AtomicInteger lookups = new AtomicInteger();
+        FoundAddressResolver resolver = new FoundAddressResolver(logger, scheduler, executor, TimeValue.timeValueMillis(0)) {
+            @Override
+            protected InetAddress[] lookup(String host) throws UnknownHostException {
+                if (host.startsWith("unknown")) {
+                    throw new UnknownHostException(host);
+                }
+                byte last = (byte) lookups.incrementAndGet();
+                return new InetAddress[] {InetAddress.getByAddress(host, new byte[] {10, 0, 0, last})};
+            }
+        };
+
+        InetAddress address = resolver.resolveAddress("test-host");
+        assertEquals(InetAddress.getByAddress(new byte[] {10, 0, 0, 1}), address);
+        assertEquals(address, resolver.getAddress("test-host"));
+        assertEquals(address, resolver.resolveAddress("test-host"));
+        assertEquals(1, lookups.get());
+
+        assertNull(resolver.resolveAddress("unknown-host"));
+    }
+
+    @Test
+    public void testAddressesAreRefreshed() throws Exception {
+        final AtomicInteger lookups = new AtomicInteger();
+        FoundAddressResolver resolver = new FoundAddressResolver(logger, scheduler, ImmediateExecutor.INSTANCE, TimeValue.timeValueMillis(10)) {
+            @Override
+            protected InetAddress[] lookup(String host) throws UnknownHostException {
+                byte last = (byte) lookups.incrementAndGet();
+                return new InetAddress[] {InetAddress.getByAddress(host, new byte[] {10, 0, 0, last})};
+            }
+        };
+
+        assertNull(resolver.getAddress("test-host"));
+        InetAddress first = resolver.getAddress("test-host");
+        assertEquals("test-host", first.getHostName());
+
+        resolver.start();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (first.equals(resolver.getAddress("test-host")) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertNotEquals(first, resolver.getAddress("test-host"));
+
+        resolver.close();
+        int lookupsAfterClose = lookups.get();
+        Thread.sleep(100);
+        assertTrue(lookups.get() <= lookupsAfterClose + 1);
+    }
+
+    @Test
+    public void testFailedLookupKeepsPreviousAddress() throws Exception {
+        final AtomicInteger lookups = new AtomicInteger();
+        FoundAddressResolver resolver = new FoundAddressResolver(logger, scheduler, ImmediateExecutor.INSTANCE, TimeValue.timeValueMillis(10)) {
+            @Override
+            protected InetAddress[] lookup(String host) throws UnknownHostException {
+                if (lookups.incrementAndGet() > 1) {
+                    throw new UnknownHostException(host);
+                }
+                return new InetAddress[] {InetAddress.getByAddress(host, new byte[] {10, 0, 0, 1})};
+            }
+        };
+
+        resolver.getAddress("test-host");
+        resolver.start();
+        long deadline = System.currentTimeMillis() + 10000;
+        while (lookups.get() < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        resolver.close();
+
+        assertEquals(InetAddress.getByAddress(new byte[] {10, 0, 0, 1}), resolver.getAddress("test-host"));
+    }
+
+    @Test
+    public void testLookupsAreRecorded() throws Exception {
+        ConnectionSetupStats stats = new ConnectionSetupStats();
+        FoundAddressResolver resolver = new FoundAddressResolver(logger, scheduler, ImmediateExecutor.INSTANCE, TimeValue.timeValueMillis(0)) {
+            @Override
+            protected InetAddress[] lookup(String host) throws UnknownHostException {
+                if (host.startsWith("unknown")) {
+                    throw new UnknownHostException(host);
+                }
+                return new InetAddress[] {InetAddress.getByAddress(host, new byte[] {10, 0, 0, 1})};
+            }
+        };
+        resolver.setSetupStats(stats);
+
+        resolver.getAddress("test-host");
+        resolver.getAddress("unknown-host");
+
+        assertEquals(1, stats.getHistogram(ConnectionSetupStats.Phase.DNS, "test-host", true).getCount());
+        assertEquals(1, stats.getHistogram(ConnectionSetupStats.Phase.DNS, "unknown-host", false).getCount());
+    }
+}
@@ -10,19 +10,26 @@ import org.elasticsearch.cluster.ClusterName;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.ESLoggerFactory;
 import org.elasticsearch.common.netty.buffer.ChannelBuffer;
+import org.elasticsearch.common.netty.bootstrap.ClientBootstrap;
 import org.elasticsearch.common.netty.buffer.ChannelBuffers;
 import org.elasticsearch.common.netty.channel.*;
+import org.elasticsearch.common.netty.channel.socket.nio.NioClientSocketChannelFactory;
 import org.elasticsearch.common.netty.util.HashedWheelTimer;
 import org.elasticsearch.common.netty.util.Timer;
+import org.elasticsearch.common.settings.ImmutableSettings;
 import org.elasticsearch.common.unit.TimeValue;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import java.net.InetSocketAddress;
+import java.util.Collections;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static org.junit.Assert.*;
@@ -75,6 +82,29 @@ public class TestFoundAuthenticatingChannelHandler {
         return new FoundAuthenticatingChannelHandler(logger, scheduler, clusterName, keepAliveInterval, unsafeAllowSelfSigned, new String[] {knownHost}, new int[] {sslPort}, apiKey);
     }
 
+    public FoundConnectionProfile.Builder getProfile() {
+        return FoundConnectionProfile.builder()
+            .hostSuffixes(socketAddress.getHostString())
+            .sslPorts(socketAddress.getPort())
+            .header(new FoundTransportHeader(clusterName.value(), API_KEY))
+            .sslHandlerFactory(new FoundSSLHandlerFactory(ImmutableSettings.EMPTY))
+            .keepAliveInterval(keepAliveInterval);
+    }
+
+    public FoundAuthenticatingChannelHandler getChannelHandler(FoundConnectionProfile.Builder profile) {
+        return new FoundAuthenticatingChannelHandler(logger, scheduler, profile.build());
+    }
+
+    @Test
+    public void testHandlersWithoutFactoryShareOne() throws Exception {
+        FoundSSLHandlerFactory factory = getChannelHandler(FOUND_HOST, SSL_PORT).getProfile().getSslHandlerFactory();
+
+        assertSame(factory, getChannelHandler(FOUND_HOST, SSL_PORT).getProfile().getSslHandlerFactory());
+        assertNotSame(factory, getChannelHandler(true, FOUND_HOST, SSL_PORT, API_KEY).getProfile().getSslHandlerFactory());
+        // nothing to shut down
+        assertNull(factory.getHandshakeExecutor());
+    }
+
     @Test
     public void testSSLNotAddedForUnknownHost() throws Exception {
         FoundAuthenticatingChannelHandler handler = getChannelHandler("unknown", socketAddress.getPort());
@@ -190,4 +220,303 @@ public class TestFoundAuthenticatingChannelHandler {
 
         verify(channel).close();
     }
+
+    @Test
+    public void testFragmentedResponseIsCumulated() throws Exception {
+        FoundAuthenticatingChannelHandler handler = getChannelHandler(socketAddress.getHostString(), socketAddress.getPort());
+
+        ChannelBuffer response = ChannelBuffers.wrappedBuffer(
+                new byte[] {0, 0, 0, (byte)14}, // msg size
+                new byte[] {0, 0, 0, (byte)1}, // revision
+                new byte [] {0, 0, 0, (byte)200}, // 200
+                new byte[] {0, 0, 0, (byte)2}, // description-length (2)
+                "OK".getBytes(UTF_8), // OK as bytes
+                new byte[] {1, 2, 3} // the start of the first transport message
+        );
+
+        // one byte at a time, with the last byte of the response arriving together with the transport message.
+        while (response.readableBytes() > 4) {
+            handler.messageReceived(context, new UpstreamMessageEvent(channel, response.readSlice(1), socketAddress));
+            verify(channelPipeline, never()).remove(handler);
+        }
+        handler.messageReceived(context, new UpstreamMessageEvent(channel, response, socketAddress));
+
+        verify(channelPipeline).remove(handler);
+        verify(channel, never()).close();
+
+        ArgumentCaptor<UpstreamMessageEvent> argument = ArgumentCaptor.forClass(UpstreamMessageEvent.class);
+        verify(context).sendUpstream(argument.capture());
+        assertEquals(ChannelBuffers.wrappedBuffer(new byte[] {1, 2, 3}), argument.getValue().getMessage());
+    }
+
+    @Test
+    public void testRemainingBytesAreNotCopied() throws Exception {
+        FoundAuthenticatingChannelHandler handler = getChannelHandler(socketAddress.getHostString(), socketAddress.getPort());
+
+        byte[] bytes = ChannelBuffers.wrappedBuffer(
+                new byte[] {0, 0, 0, (byte)14}, // msg size
+                new byte[] {0, 0, 0, (byte)1}, // revision
+                new byte [] {0, 0, 0, (byte)200}, // 200
+                new byte[] {0, 0, 0, (byte)2}, // description-length (2)
+                "OK".getBytes(UTF_8), // OK as bytes
+                new byte[] {1, 2, 3} // the start of the first transport message
+        ).copy().array();
+
+        handler.messageReceived(context, new UpstreamMessageEvent(channel, ChannelBuffers.wrappedBuffer(bytes), socketAddress));
+
+        ArgumentCaptor<UpstreamMessageEvent> argument = ArgumentCaptor.forClass(UpstreamMessageEvent.class);
+        verify(context).sendUpstream(argument.capture());
+        ChannelBuffer remaining = (ChannelBuffer) argument.getValue().getMessage();
+        assertEquals(ChannelBuffers.wrappedBuffer(new byte[] {1, 2, 3}), remaining);
+        assertSame(bytes, remaining.array());
+    }
+
+    @Test
+    public void testGatedWritesFlushedOnSuccessfulAuthentication() throws Exception {
+        FoundAuthenticatingChannelHandler handler = getChannelHandler(getProfile().gateWrites(true));
+        handler.isFoundCluster = true;
+        handler.headerSent = true;
+
+        MessageEvent first = write(new byte[] {1, 2});
+        MessageEvent second = write(new byte[] {3});
+        handler.writeRequested(context, first);
+        handler.writeRequested(context, second);
+        verify(context, never()).sendDownstream(any(ChannelEvent.class));
+
+        handler.messageReceived(context, new UpstreamMessageEvent(channel, ChannelBuffers.wrappedBuffer(
+                new byte[] {0, 0, 0, (byte)14}, // msg size
+                new byte[] {0, 0, 0, (byte)1}, // revision
+                new byte [] {0, 0, 0, (byte)200}, // 200
+                new byte[] {0, 0, 0, (byte)2}, // description-length (2)
+                "OK".getBytes(UTF_8) // OK as bytes
+        ), socketAddress));
+
+        ArgumentCaptor<DownstreamMessageEvent> argument = ArgumentCaptor.forClass(DownstreamMessageEvent.class);
+        verify(context).sendDownstream(argument.capture());
+        assertEquals(ChannelBuffers.wrappedBuffer(new byte[] {1, 2, 3}), argument.getValue().getMessage());
+
+        assertFalse(first.getFuture().isDone());
+        argument.getValue().getFuture().setSuccess();
+        assertTrue(first.getFuture().isSuccess());
+        assertTrue(second.getFuture().isSuccess());
+
+        // once authenticated, writes pass straight through
+        MessageEvent third = write(new byte[] {4});
+        handler.writeRequested(context, third);
+        verify(context).sendDownstream(third);
+    }
+
+    @Test
+    public void testGatedWritesFailedWhenBadStatusReceived() throws Exception {
+        FoundAuthenticatingChannelHandler handler = getChannelHandler(getProfile().gateWrites(true));
+        handler.isFoundCluster = true;
+        handler.headerSent = true;
+
+        MessageEvent first = write(new byte[] {1, 2});
+        handler.writeRequested(context, first);
+
+        handler.messageReceived(context, new UpstreamMessageEvent(channel, ChannelBuffers.wrappedBuffer(
+                new byte[] {0, 0, 0, (byte)17}, // msg size
+                new byte[] {0, 0, 0, (byte)1}, // revision
+                new byte [] {0, 0, 1, (byte)147}, // 403
+                new byte[] {0, 0, 0, (byte)5}, // description-length (5)
+                "NOTOK".getBytes(UTF_8) // NOTOK as bytes
+        ), socketAddress));
+
+        assertTrue(first.getFuture().isDone());
+        assertFalse(first.getFuture().isSuccess());
+        verify(context, never()).sendDownstream(any(ChannelEvent.class));
+        verify(channel).close();
+    }
+
+    @Test
+    public void testWritesNotGatedByDefault() throws Exception {
+        FoundAuthenticatingChannelHandler handler = getChannelHandler(socketAddress.getHostString(), socketAddress.getPort());
+        handler.isFoundCluster = true;
+        handler.headerSent = true;
+
+        MessageEvent first = write(new byte[] {1, 2});
+        handler.writeRequested(context, first);
+
+        verify(context).sendDownstream(first);
+    }
+
+    @Test
+    public void testDelayedHeaderSentWithFirstWrite() throws Exception {
+        FoundAuthenticatingChannelHandler handler = getChannelHandler(getProfile().headerDelay(TimeValue.timeValueHours(1)));
+        handler.isFoundCluster = true;
+
+        handler.channelConnected(context, event);
+        verify(context, never()).sendDownstream(any(ChannelEvent.class));
+
+        MessageEvent first = write(new byte[] {1, 2});
+        handler.writeRequested(context, first);
+
+        ArgumentCaptor<DownstreamMessageEvent> argument = ArgumentCaptor.forClass(DownstreamMessageEvent.class);
+        verify(context).sendDownstream(argument.capture());
+        assertEquals(ChannelBuffers.wrappedBuffer(new FoundTransportHeader(clusterName.value(), API_KEY).getHeaderBuffer(), ChannelBuffers.wrappedBuffer(new byte[] {1, 2})),
+                argument.getValue().getMessage());
+        assertSame(first.getFuture(), argument.getValue().getFuture());
+    }
+
+    @Test
+    public void testDelayedHeaderSentWithoutWrites() throws Exception {
+        FoundAuthenticatingChannelHandler handler = getChannelHandler(getProfile().headerDelay(TimeValue.timeValueMillis(1)));
+        handler.isFoundCluster = true;
+        when(channel.isConnected()).thenReturn(true);
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                ((Runnable) invocation.getArguments()[0]).run();
+                return null;
+            }
+        }).when(channelPipeline).execute(any(Runnable.class));
+
+        handler.channelConnected(context, event);
+
+        ArgumentCaptor<DownstreamMessageEvent> argument = ArgumentCaptor.forClass(DownstreamMessageEvent.class);
+        verify(context, timeout(10000)).sendDownstream(argument.capture());
+        assertEquals(new FoundTransportHeader(clusterName.value(), API_KEY).getHeaderBuffer(), argument.getValue().getMessage());
+    }
+
+    @Test
+    public void testAuthenticationFutureSucceedsOnSuccessfulAuthentication() throws Exception {
+        FoundAuthenticatingChannelHandler handler = getChannelHandler(socketAddress.getHostString(), socketAddress.getPort());
+
+        handler.connectRequested(context, event);
+        ChannelFuture authenticated = handler.getAuthenticationFuture();
+        assertFalse(authenticated.isDone());
+
+        handler.messageReceived(context, new UpstreamMessageEvent(channel, ChannelBuffers.wrappedBuffer(
+                new byte[] {0, 0, 0, (byte)14}, // msg size
+                new byte[] {0, 0, 0, (byte)1}, // revision
+                new byte [] {0, 0, 0, (byte)200}, // 200
+                new byte[] {0, 0, 0, (byte)2}, // description-length (2)
+                "OK".getBytes(UTF_8)
+        ), socketAddress));
+
+        assertTrue(authenticated.isSuccess());
+    }
+
+    @Test
+    public void testAuthenticationFutureFailsWhenBadStatusReceived() throws Exception {
+        FoundAuthenticatingChannelHandler handler = getChannelHandler(socketAddress.getHostString(), socketAddress.getPort());
+
+        handler.connectRequested(context, event);
+        handler.messageReceived(context, new UpstreamMessageEvent(channel, ChannelBuffers.wrappedBuffer(
+                new byte[] {0, 0, 0, (byte)17}, // msg size
+                new byte[] {0, 0, 0, (byte)1}, // revision
+                new byte [] {0, 0, 1, (byte)147}, // 403
+                new byte[] {0, 0, 0, (byte)5}, // description-length (5)
+                "NOTOK".getBytes(UTF_8)
+        ), socketAddress));
+
+        assertTrue(handler.getAuthenticationFuture().isDone());
+        assertFalse(handler.getAuthenticationFuture().isSuccess());
+    }
+
+    @Test
+    public void testAuthenticationFailuresCountedByCode() throws Exception {
+        FoundTransportMetrics metrics = new FoundTransportMetrics();
+        FoundAuthenticatingChannelHandler handler = getChannelHandler(getProfile().metrics(metrics));
+
+        handler.messageReceived(context, new UpstreamMessageEvent(channel, ChannelBuffers.wrappedBuffer(
+                new byte[] {0, 0, 0, (byte)17}, // msg size
+                new byte[] {0, 0, 0, (byte)1}, // revision
+                new byte [] {0, 0, 1, (byte)147}, // 403
+                new byte[] {0, 0, 0, (byte)5}, // description-length (5)
+                "NOTOK".getBytes(UTF_8)
+        ), socketAddress));
+
+        assertEquals(Collections.singletonMap(403, 1L), metrics.getAuthenticationFailures());
+    }
+
+    @Test
+    public void testAuthenticationFutureFailsWhenClosed() throws Exception {
+        FoundAuthenticatingChannelHandler handler = getChannelHandler(socketAddress.getHostString(), socketAddress.getPort());
+
+        handler.connectRequested(context, event);
+        handler.channelClosed(context, event);
+
+        assertTrue(handler.getAuthenticationFuture().isDone());
+        assertFalse(handler.getAuthenticationFuture().isSuccess());
+    }
+
+    @Test
+    public void testAuthenticationFutureSucceedsForUnknownHost() throws Exception {
+        FoundAuthenticatingChannelHandler handler = getChannelHandler("unknown", socketAddress.getPort());
+
+        handler.connectRequested(context, event);
+
+        assertTrue(handler.getAuthenticationFuture().isSuccess());
+    }
+
+    @Test
+    public void testSetupPhasesAreRecorded() throws Exception {
+        ConnectionSetupStats stats = new ConnectionSetupStats();
+        FoundAuthenticatingChannelHandler handler = getChannelHandler(getProfile().setupStats(stats));
+        ChannelFuture connectFuture = Channels.future(channel);
+        when(event.getFuture()).thenReturn(connectFuture);
+
+        handler.connectRequested(context, event);
+        connectFuture.setSuccess();
+        handler.channelConnected(context, event);
+        handler.messageReceived(context, new UpstreamMessageEvent(channel, ChannelBuffers.wrappedBuffer(
+                new byte[] {0, 0, 0, (byte)14}, // msg size
+                new byte[] {0, 0, 0, (byte)1}, // revision
+                new byte [] {0, 0, 0, (byte)200}, // 200
+                new byte[] {0, 0, 0, (byte)2}, // description-length (2)
+                "OK".getBytes(UTF_8)
+        ), socketAddress));
+
+        String address = ConnectionSetupStats.address(socketAddress);
+        assertEquals(1, stats.getHistogram(ConnectionSetupStats.Phase.CONNECT, address, true).getCount());
+        assertEquals(1, stats.getHistogram(ConnectionSetupStats.Phase.AUTHENTICATION, address, true).getCount());
+    }
+
+    @Test
+    public void testHandshakeIsRecorded() throws Exception {
+        LocalSSLEchoServer server = new LocalSSLEchoServer();
+        NioClientSocketChannelFactory channelFactory = new NioClientSocketChannelFactory(Executors.newCachedThreadPool(), Executors.newCachedThreadPool(), 1, 1);
+        FoundSSLHandlerFactory sslHandlerFactory = new FoundSSLHandlerFactory(ImmutableSettings.settingsBuilder()
+            .put("transport.found.ssl.unsafe_allow_self_signed", true)
+            .build());
+        ConnectionSetupStats stats = new ConnectionSetupStats();
+        final FoundConnectionProfile profile = FoundConnectionProfile.builder()
+            .hostSuffixes("localhost")
+            .sslPorts(server.getPort())
+            .header(new FoundTransportHeader(clusterName.value(), API_KEY))
+            .sslHandlerFactory(sslHandlerFactory)
+            .setupStats(stats)
+            .build();
+        try {
+            ClientBootstrap bootstrap = new ClientBootstrap(channelFactory);
+            bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+                @Override
+                public ChannelPipeline getPipeline() throws Exception {
+                    return Channels.pipeline(new FoundAuthenticatingChannelHandler(logger, scheduler, profile));
+                }
+            });
+            // the header is sent as soon as the connection is established, which starts the handshake.
+            Channel connected = bootstrap.connect(new InetSocketAddress("localhost", server.getPort())).awaitUninterruptibly().getChannel();
+            String address = ConnectionSetupStats.address(connected.getRemoteAddress());
+
+            long deadline = System.currentTimeMillis() + 10000;
+            while (stats.getHistogram(ConnectionSetupStats.Phase.HANDSHAKE, address, true) == null && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertNotNull(stats.getHistogram(ConnectionSetupStats.Phase.HANDSHAKE, address, true));
+            assertEquals(1, stats.getHistogram(ConnectionSetupStats.Phase.HANDSHAKE, address, true).getCount());
+            assertNull(stats.getHistogram(ConnectionSetupStats.Phase.HANDSHAKE, address, false));
+            connected.close().awaitUninterruptibly();
+        } finally {
+            channelFactory.releaseExternalResources();
+            sslHandlerFactory.close();
+            server.close();
+        }
+    }
+
+    private MessageEvent write(byte[] bytes) {
+        return new DownstreamMessageEvent(channel, Channels.future(channel), ChannelBuffers.wrappedBuffer(bytes), socketAddress);
+    }
 }
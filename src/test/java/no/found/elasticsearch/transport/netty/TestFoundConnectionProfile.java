@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2013, Found AS.
+ * See LICENSE for details.
+ */
+
+package no.found.elasticsearch.transport.netty;
+
+import no.found.elasticsearch.transport.netty.ssl.FoundSSLHandler;
+import org.elasticsearch.common.netty.bootstrap.ClientBootstrap;
+import org.elasticsearch.common.netty.channel.Channel;
+import org.elasticsearch.common.netty.channel.ChannelConfig;
+import org.elasticsearch.common.netty.channel.ChannelPipeline;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.same;
+import static org.mockito.Mockito.*;
+
+public class TestFoundConnectionProfile {
+    private FoundConnectionProfile.Builder builder() {
+        return FoundConnectionProfile.builder()
+            .header(new FoundTransportHeader("cluster", "api-key"))
+            .sslHandlerFactory(new FoundSSLHandlerFactory(ImmutableSettings.EMPTY));
+    }
+
+    @Test
+    public void testMatchesHostSuffixes() {
+        FoundConnectionProfile profile = builder().hostSuffixes(".found.io", ".found.no").build();
+
+        assertTrue(profile.isFoundHost("cluster.found.io"));
+        assertTrue(profile.isFoundHost("cluster.found.no"));
+        assertFalse(profile.isFoundHost("cluster.example.com"));
+    }
+
+    @Test
+    public void testMatchesSslPorts() {
+        FoundConnectionProfile profile = builder().sslPorts(9343, -1).build();
+
+        assertTrue(profile.isSslPort(9343));
+        assertFalse(profile.isSslPort(9300));
+        assertFalse(profile.isSslPort(-1));
+    }
+
+    @Test
+    public void testNotChangedByBuilderArrays() {
+        String[] hostSuffixes = {".found.io"};
+        int[] sslPorts = {9343};
+        FoundConnectionProfile profile = builder().hostSuffixes(hostSuffixes).sslPorts(sslPorts).build();
+
+        hostSuffixes[0] = ".example.com";
+        sslPorts[0] = 9300;
+
+        assertTrue(profile.isFoundHost("cluster.found.io"));
+        assertTrue(profile.isSslPort(9343));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRequiresHeader() {
+        FoundConnectionProfile.builder().sslHandlerFactory(new FoundSSLHandlerFactory(ImmutableSettings.EMPTY)).build();
+    }
+
+    @Test
+    public void testBuilderStartsWithProfile() {
+        FoundConnectionProfile profile = builder().hostSuffixes(".found.io").sslPorts(9343).gateWrites(true).build();
+        FoundConnectionProfile bulk = FoundConnectionProfile.builder(profile)
+            .keepAliveInterval(TimeValue.timeValueSeconds(5))
+            .sendBufferSize(new ByteSizeValue(1, ByteSizeUnit.MB))
+            .build();
+
+        assertTrue(bulk.isFoundHost("cluster.found.io"));
+        assertTrue(bulk.isSslPort(9343));
+        assertTrue(bulk.isGateWrites());
+        assertSame(profile.getHeader(), bulk.getHeader());
+        assertEquals(TimeValue.timeValueSeconds(5), bulk.getKeepAliveInterval());
+        assertEquals(new ByteSizeValue(1, ByteSizeUnit.MB), bulk.getSendBufferSize());
+        assertNull(bulk.getReceiveBufferSize());
+        assertNull(profile.getSendBufferSize());
+    }
+
+    @Test
+    public void testApplyToBootstrapSetsSocketBuffers() {
+        FoundConnectionProfile profile = builder().build();
+        FoundConnectionProfile bulk = FoundConnectionProfile.builder(profile)
+            .receiveBufferSize(new ByteSizeValue(1, ByteSizeUnit.MB))
+            .tcpNoDelay(false)
+            .build();
+        ClientBootstrap bootstrap = new ClientBootstrap();
+
+        assertFalse(profile.hasSocketBufferSizes());
+        assertTrue(bulk.hasSocketBufferSizes());
+
+        bulk.applyTo(bootstrap);
+
+        assertEquals(1024 * 1024, bootstrap.getOption("receiveBufferSize"));
+        assertNull(bootstrap.getOption("sendBufferSize"));
+        assertNull(bootstrap.getOption("tcpNoDelay"));
+    }
+
+    @Test
+    public void testApplyToAuthenticatingChannel() {
+        FoundConnectionProfile profile = builder().build();
+        FoundConnectionProfile ping = FoundConnectionProfile.builder(profile)
+            .maxRecordSize(1024)
+            .tcpNoDelay(true)
+            .build();
+        FoundAuthenticatingChannelHandler handler = new FoundAuthenticatingChannelHandler(null, null, profile);
+        FoundSSLHandler sslHandler = mock(FoundSSLHandler.class);
+        Channel channel = channel();
+        when(channel.getPipeline().get(FoundAuthenticatingChannelHandler.class)).thenReturn(handler);
+        when(channel.getPipeline().get(FoundSSLHandler.class)).thenReturn(sslHandler);
+
+        ping.applyTo(channel);
+
+        assertSame(ping, handler.getProfile());
+        verify(sslHandler).setMaxRecordSize(1024);
+        verify(channel.getConfig()).setOption("tcpNoDelay", true);
+        verify(channel.getConfig(), never()).setOption(eq("sendBufferSize"), any());
+    }
+
+    @Test
+    public void testApplyToAuthenticatedChannelReplacesKeepAlive() {
+        FoundConnectionProfile state = builder().keepAliveInterval(TimeValue.timeValueSeconds(5)).build();
+        ConnectionKeepAliveHandler keepAliveHandler = new ConnectionKeepAliveHandler(mock(ConnectionKeepAliveManager.class), TimeValue.timeValueSeconds(20));
+        Channel channel = channel();
+        when(channel.getPipeline().get(ConnectionKeepAliveHandler.class)).thenReturn(keepAliveHandler);
+
+        state.applyTo(channel);
+
+        ArgumentCaptor<ConnectionKeepAliveHandler> replacement = ArgumentCaptor.forClass(ConnectionKeepAliveHandler.class);
+        verify(channel.getPipeline()).replace(same(keepAliveHandler), eq("found-connection-keep-alive"), replacement.capture());
+        assertEquals(TimeValue.timeValueSeconds(5), replacement.getValue().getKeepAliveInterval());
+    }
+
+    private Channel channel() {
+        Channel channel = mock(Channel.class);
+        ChannelPipeline pipeline = mock(ChannelPipeline.class);
+        when(channel.getPipeline()).thenReturn(pipeline);
+        when(channel.getConfig()).thenReturn(mock(ChannelConfig.class));
+        // run the updates right away, as if on the I/O thread.
+        doAnswer(new Answer<Object>() {
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                ((Runnable) invocation.getArguments()[0]).run();
+                return null;
+            }
+        }).when(pipeline).execute(any(Runnable.class));
+        return channel;
+    }
+}
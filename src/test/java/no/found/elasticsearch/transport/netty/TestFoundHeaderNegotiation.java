@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2013, Found AS.
+ * See LICENSE for details.
+ */
+
+package no.found.elasticsearch.transport.netty;
+
+import org.elasticsearch.common.unit.TimeValue;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestFoundHeaderNegotiation {
+    @Test
+    public void testUnsupportedRevisionResponse() {
+        assertTrue(FoundHeaderNegotiation.isUnsupportedRevision(400, "Unsupported revision"));
+        assertTrue(FoundHeaderNegotiation.isUnsupportedRevision(400, "unsupported revision [2]"));
+        assertFalse(FoundHeaderNegotiation.isUnsupportedRevision(400, "Bad request"));
+        assertFalse(FoundHeaderNegotiation.isUnsupportedRevision(401, "Invalid API-key"));
+        assertFalse(FoundHeaderNegotiation.isUnsupportedRevision(503, "Unsupported revision"));
+    }
+
+    @Test
+    public void testDowngradeExpires() throws Exception {
+        FoundHeaderNegotiation negotiation = new FoundHeaderNegotiation(2, TimeValue.timeValueMillis(50));
+        assertTrue(negotiation.isProbing("host"));
+
+        assertTrue(negotiation.revisionUnsupported("host"));
+        assertFalse(negotiation.revisionUnsupported("host"));
+        assertEquals(1, negotiation.revisionFor("host"));
+        assertFalse(negotiation.isProbing("host"));
+        assertEquals(2, negotiation.revisionFor("other-host"));
+
+        Thread.sleep(100);
+        assertEquals(2, negotiation.revisionFor("host"));
+        assertTrue(negotiation.isProbing("host"));
+    }
+
+    @Test
+    public void testAcceptedHostIsNotProbed() {
+        FoundHeaderNegotiation negotiation = new FoundHeaderNegotiation(2);
+        negotiation.revisionUnsupported("host");
+        negotiation.accepted("host", new FoundServerCapabilities(2, 0, -1, -1));
+
+        assertEquals(2, negotiation.revisionFor("host"));
+        assertFalse(negotiation.isProbing("host"));
+        assertNotNull(negotiation.getCapabilities("host"));
+
+        negotiation.revisionUnsupported("host");
+        assertNull(negotiation.getCapabilities("host"));
+    }
+
+    @Test
+    public void testRevision1IsNeverProbed() {
+        FoundHeaderNegotiation negotiation = new FoundHeaderNegotiation(1);
+        assertEquals(1, negotiation.revisionFor("host"));
+        assertFalse(negotiation.isProbing("host"));
+    }
+}
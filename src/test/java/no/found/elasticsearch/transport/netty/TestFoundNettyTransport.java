@@ -7,31 +7,40 @@ package no.found.elasticsearch.transport.netty;
 
 import org.elasticsearch.Version;
 import org.elasticsearch.cluster.ClusterNameModule;
+import org.elasticsearch.cluster.node.DiscoveryNode;
 import org.elasticsearch.common.inject.Injector;
 import org.elasticsearch.common.inject.ModulesBuilder;
 import org.elasticsearch.common.netty.bootstrap.ClientBootstrap;
+import org.elasticsearch.common.netty.channel.Channel;
 import org.elasticsearch.common.netty.channel.ChannelPipeline;
+import org.elasticsearch.common.netty.channel.socket.SocketChannelConfig;
 import org.elasticsearch.common.settings.ImmutableSettings;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.settings.SettingsModule;
+import org.elasticsearch.common.transport.InetSocketTransportAddress;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.indices.breaker.CircuitBreakerModule;
+import org.elasticsearch.threadpool.ThreadPool;
 import org.elasticsearch.threadpool.ThreadPoolModule;
+import org.elasticsearch.transport.ConnectTransportException;
 import org.elasticsearch.transport.TransportModule;
+import org.elasticsearch.transport.TransportRequestOptions;
+import org.elasticsearch.transport.TransportServiceAdapter;
 import org.elasticsearch.transport.netty.FoundNettyTransport;
+import org.elasticsearch.transport.netty.NettyTransport;
 import org.junit.Test;
 
 import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
 
-import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
 
 public class TestFoundNettyTransport {
-    @Test
-    public void testClientBootstrapUpdated() throws Exception {
-        Settings settings = ImmutableSettings.settingsBuilder()
-                .put("name", "found-client-test")
-                .put("transport.type", "org.elasticsearch.transport.netty.FoundNettyTransport")
-            .build();
-
+    private Injector createInjector(Settings settings) {
         ModulesBuilder modules = new ModulesBuilder();
 
         modules.add(new Version.Module(Version.CURRENT));
@@ -41,7 +50,17 @@ public class TestFoundNettyTransport {
         modules.add(new ThreadPoolModule(settings));
         modules.add(new CircuitBreakerModule(settings));
 
-        Injector injector = modules.createInjector();
+        return modules.createInjector();
+    }
+
+    @Test
+    public void testClientBootstrapUpdated() throws Exception {
+        Settings settings = ImmutableSettings.settingsBuilder()
+                .put("name", "found-client-test")
+                .put("transport.type", "org.elasticsearch.transport.netty.FoundNettyTransport")
+            .build();
+
+        Injector injector = createInjector(settings);
 
         FoundNettyTransport transport = injector.getInstance(FoundNettyTransport.class);
         transport.start();
@@ -55,4 +74,314 @@ public class TestFoundNettyTransport {
         FoundAuthenticatingChannelHandler channelHandler = pipeline.get(FoundAuthenticatingChannelHandler.class);
         assertNotNull(channelHandler);
     }
+
+    @Test
+    public void testSniffedNodesRoutedThroughProxy() throws Exception {
+        Settings settings = ImmutableSettings.settingsBuilder()
+                .put(revision2Settings())
+                .put("client.transport.sniff", true)
+            .build();
+
+        Injector injector = createInjector(settings);
+        FoundNettyTransport transport = injector.getInstance(FoundNettyTransport.class);
+        LocalFoundProxy proxy = new LocalFoundProxy(new long[0]);
+        try {
+            transport.transportServiceAdapter(mock(TransportServiceAdapter.class));
+            transport.start();
+
+            transport.connectToNodeLight(proxyNode(proxy));
+
+            // a node found by sniffing has the address it publishes within the cluster.
+            DiscoveryNode sniffed = new DiscoveryNode("node-1", new InetSocketTransportAddress("10.0.0.1", 9300), Version.CURRENT);
+            transport.connectToNode(sniffed);
+            assertTrue(transport.nodeConnected(sniffed));
+
+            InetSocketAddress sniffedAddress = ((InetSocketTransportAddress) sniffed.address()).address();
+            assertTrue(sniffedAddress instanceof FoundRoutedAddress);
+            assertEquals(proxy.getPort(), sniffedAddress.getPort());
+            assertEquals("node-1", ((FoundRoutedAddress) sniffedAddress).getNodeId());
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (proxy.getHeaders().size() < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            // the connection to the seed is not routed, the connections to the sniffed node are.
+            int unrouted = 0;
+            for (LocalFoundProxy.Header header : proxy.getHeaders()) {
+                assertEquals("test-cluster", header.clusterName);
+                assertEquals("test-key", header.apiKey);
+                assertEquals(2, header.revision);
+                if (header.targetNode == null) {
+                    unrouted++;
+                } else {
+                    assertEquals("node-1", header.targetNode);
+                }
+            }
+            assertEquals(1, unrouted);
+            assertTrue(proxy.getHeaders().size() >= 2);
+        } finally {
+            transport.close();
+            proxy.close();
+            injector.getInstance(ThreadPool.class).shutdownNow();
+        }
+    }
+
+    @Test
+    public void testSniffedNodesNotRoutedWithRevision1() throws Exception {
+        Settings settings = ImmutableSettings.settingsBuilder()
+                .put(revision2Settings())
+                .put("transport.found.header-revision", 1)
+                .put("client.transport.sniff", true)
+            .build();
+
+        Injector injector = createInjector(settings);
+        FoundNettyTransport transport = injector.getInstance(FoundNettyTransport.class);
+        LocalFoundProxy proxy = new LocalFoundProxy();
+        try {
+            transport.transportServiceAdapter(mock(TransportServiceAdapter.class));
+            transport.start();
+
+            transport.connectToNodeLight(proxyNode(proxy));
+
+            DiscoveryNode sniffed = new DiscoveryNode("node-1", new InetSocketTransportAddress("10.0.0.1", 9300), Version.CURRENT);
+            try {
+                transport.connectToNode(sniffed);
+                fail("connected to a sniffed node through a proxy that does not route to nodes");
+            } catch (ConnectTransportException expected) {
+            }
+            assertFalse(transport.nodeConnected(sniffed));
+            assertFalse(((InetSocketTransportAddress) sniffed.address()).address() instanceof FoundRoutedAddress);
+
+            Thread.sleep(100);
+            assertEquals(1, proxy.getHeaders().size());
+            assertNull(proxy.getHeaders().get(0).targetNode);
+        } finally {
+            transport.close();
+            proxy.close();
+            injector.getInstance(ThreadPool.class).shutdownNow();
+        }
+    }
+
+    @Test
+    public void testRevision2CapabilitiesNegotiated() throws Exception {
+        Injector injector = createInjector(revision2Settings());
+        FoundNettyTransport transport = injector.getInstance(FoundNettyTransport.class);
+        LocalFoundProxy proxy = new LocalFoundProxy(new long[] {
+            FoundServerCapabilities.IDLE_TIMEOUT, 30000,
+            FoundServerCapabilities.KEEP_ALIVE_INTERVAL, 5000
+        });
+        try {
+            transport.transportServiceAdapter(mock(TransportServiceAdapter.class));
+            transport.start();
+
+            transport.connectToNodeLight(proxyNode(proxy));
+
+            FoundHeaderNegotiation negotiation = transport.getHeaderNegotiation();
+            long deadline = System.currentTimeMillis() + 5000;
+            while (negotiation.getCapabilities("localhost") == null && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            FoundServerCapabilities capabilities = negotiation.getCapabilities("localhost");
+            assertNotNull(capabilities);
+            assertEquals(2, capabilities.getRevision());
+            assertTrue(capabilities.supports(FoundServerCapabilities.KEEP_ALIVE));
+            assertEquals(TimeValue.timeValueSeconds(30), capabilities.getIdleTimeout());
+            assertEquals(TimeValue.timeValueSeconds(5), capabilities.adjustKeepAliveInterval(TimeValue.timeValueSeconds(20)));
+
+            LocalFoundProxy.Header header = proxy.getHeaders().get(0);
+            assertEquals(2, header.revision);
+            assertEquals(FoundTransportHeader.CLIENT_CAPABILITIES, header.capabilities);
+            assertEquals("test-key", header.apiKey);
+            assertNull(header.targetNode);
+        } finally {
+            transport.close();
+            proxy.close();
+            injector.getInstance(ThreadPool.class).shutdownNow();
+        }
+    }
+
+    @Test
+    public void testFallsBackToRevision1() throws Exception {
+        Injector injector = createInjector(revision2Settings());
+        FoundNettyTransport transport = injector.getInstance(FoundNettyTransport.class);
+        LocalFoundProxy proxy = new LocalFoundProxy();
+        try {
+            transport.transportServiceAdapter(mock(TransportServiceAdapter.class));
+            transport.start();
+
+            DiscoveryNode node = proxyNode(proxy);
+            // the rejected connection is made again with revision 1 before it's handed out.
+            transport.connectToNodeLight(node);
+
+            assertTrue(transport.nodeConnected(node));
+            assertEquals(1, transport.getHeaderNegotiation().revisionFor("localhost"));
+            long deadline = System.currentTimeMillis() + 5000;
+            while (proxy.getHeaders().size() < 2 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(2, proxy.getHeaders().size());
+            assertEquals(2, proxy.getHeaders().get(0).revision);
+            assertEquals(1, proxy.getHeaders().get(1).revision);
+            assertEquals("test-key", proxy.getHeaders().get(1).apiKey);
+
+            transport.disconnectFromNode(node);
+            transport.connectToNodeLight(node);
+
+            deadline = System.currentTimeMillis() + 5000;
+            while (proxy.getHeaders().size() < 3 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(3, proxy.getHeaders().size());
+            assertEquals(1, proxy.getHeaders().get(2).revision);
+        } finally {
+            transport.close();
+            proxy.close();
+            injector.getInstance(ThreadPool.class).shutdownNow();
+        }
+    }
+
+    @Test
+    public void testOtherRejectionsKeepRevision2() throws Exception {
+        Injector injector = createInjector(revision2Settings());
+        FoundNettyTransport transport = injector.getInstance(FoundNettyTransport.class);
+        LocalFoundProxy proxy = new LocalFoundProxy();
+        proxy.rejectRevision2With(401, "Invalid API-key");
+        try {
+            transport.transportServiceAdapter(mock(TransportServiceAdapter.class));
+            transport.start();
+
+            try {
+                transport.connectToNodeLight(proxyNode(proxy));
+                fail("Expected the connection to be rejected");
+            } catch (ConnectTransportException e) {
+                // expected
+            }
+
+            assertEquals(1, proxy.getHeaders().size());
+            assertEquals(2, transport.getHeaderNegotiation().revisionFor("localhost"));
+            assertTrue(transport.getHeaderNegotiation().isProbing("localhost"));
+        } finally {
+            transport.close();
+            proxy.close();
+            injector.getInstance(ThreadPool.class).shutdownNow();
+        }
+    }
+
+    @Test
+    public void testChannelProfileSetsSocketBuffersBeforeConnecting() throws Exception {
+        Settings settings = ImmutableSettings.settingsBuilder()
+                .put("name", "found-client-test")
+                .put("cluster.name", "test-cluster")
+                .put("transport.type", "org.elasticsearch.transport.netty.FoundNettyTransport")
+                .putArray("transport.found.host-suffixes", "localhost")
+                .put("transport.found.header-coalesce-delay", "0")
+                .put("transport.found.dns-refresh-interval", "0")
+                .put("transport.found.jmx-enabled", false)
+                .put("transport.found.channel-profile.bulk.receive-buffer-size", "16kb")
+                .put("transport.found.channel-profile.bulk.tcp-no-delay", false)
+            .build();
+        Injector injector = createInjector(settings);
+        FoundNettyTransport transport = injector.getInstance(FoundNettyTransport.class);
+        LocalFoundProxy proxy = new LocalFoundProxy();
+        Socket reference = new Socket();
+        try {
+            transport.transportServiceAdapter(mock(TransportServiceAdapter.class));
+            transport.start();
+
+            DiscoveryNode node = proxyNode(proxy);
+            transport.connectToNode(node);
+
+            // what the OS makes of the buffer size, which may differ from what was asked for.
+            reference.setReceiveBufferSize(16 * 1024);
+            int expected = reference.getReceiveBufferSize();
+
+            Method nodeChannel = NettyTransport.class.getDeclaredMethod("nodeChannel", DiscoveryNode.class, TransportRequestOptions.class);
+            nodeChannel.setAccessible(true);
+            for (int i = 0; i < 3; i++) {
+                Channel bulk = (Channel) nodeChannel.invoke(transport, node, TransportRequestOptions.options().withType(TransportRequestOptions.Type.BULK));
+                SocketChannelConfig config = (SocketChannelConfig) bulk.getConfig();
+                assertEquals(expected, config.getReceiveBufferSize());
+                assertFalse(config.isTcpNoDelay());
+            }
+            Channel reg = (Channel) nodeChannel.invoke(transport, node, TransportRequestOptions.options().withType(TransportRequestOptions.Type.REG));
+            assertNotEquals(expected, ((SocketChannelConfig) reg.getConfig()).getReceiveBufferSize());
+        } finally {
+            reference.close();
+            transport.close();
+            proxy.close();
+            injector.getInstance(ThreadPool.class).shutdownNow();
+        }
+    }
+
+    @Test
+    public void testDroppedConnectionsReestablishedUntilRejected() throws Exception {
+        Settings settings = ImmutableSettings.settingsBuilder()
+                .put(revision2Settings())
+                .put("transport.found.header-revision", 1)
+                .put("transport.found.warm-up-connections", true)
+                .put("transport.found.warm-up-retry-interval", "300ms")
+                .put("transport.found.warm-up-max-retry-interval", "1s")
+            .build();
+        Injector injector = createInjector(settings);
+        FoundNettyTransport transport = injector.getInstance(FoundNettyTransport.class);
+        LocalFoundProxy proxy = new LocalFoundProxy();
+        try {
+            transport.transportServiceAdapter(mock(TransportServiceAdapter.class));
+            transport.start();
+
+            DiscoveryNode node = proxyNode(proxy);
+            transport.connectToNodeLight(node);
+            assertEquals(1, proxy.getHeaders().size());
+
+            // the first time the connection is dropped, it is re-established right away.
+            proxy.dropConnections();
+            awaitHeaders(proxy, 2);
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!transport.nodeConnected(node) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(transport.nodeConnected(node));
+
+            // the next time it waits for the retry interval, and then gives up once the proxy rejects it.
+            proxy.rejectWith(401, "Unauthorized");
+            long dropped = System.currentTimeMillis();
+            proxy.dropConnections();
+            awaitHeaders(proxy, 3);
+            assertTrue(System.currentTimeMillis() - dropped >= 300);
+
+            Thread.sleep(1500);
+            assertEquals(3, proxy.getHeaders().size());
+        } finally {
+            transport.close();
+            proxy.close();
+            injector.getInstance(ThreadPool.class).shutdownNow();
+        }
+    }
+
+    private void awaitHeaders(LocalFoundProxy proxy, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (proxy.getHeaders().size() < count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(count, proxy.getHeaders().size());
+    }
+
+    private Settings revision2Settings() {
+        return ImmutableSettings.settingsBuilder()
+                .put("name", "found-client-test")
+                .put("cluster.name", "test-cluster")
+                .put("transport.type", "org.elasticsearch.transport.netty.FoundNettyTransport")
+                .putArray("transport.found.host-suffixes", "localhost")
+                .put("transport.found.api-key", "test-key")
+                .put("transport.found.header-revision", 2)
+                .put("transport.found.header-coalesce-delay", "0")
+                .put("transport.found.dns-refresh-interval", "0")
+                .put("transport.found.jmx-enabled", false)
+            .build();
+    }
+
+    private DiscoveryNode proxyNode(LocalFoundProxy proxy) throws Exception {
+        InetAddress proxyAddress = InetAddress.getByAddress("localhost", new byte[] {127, 0, 0, 1});
+        return new DiscoveryNode("#transport#-1", new InetSocketTransportAddress(new InetSocketAddress(proxyAddress, proxy.getPort())), Version.CURRENT);
+    }
 }
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2013, Found AS.
+ * See LICENSE for details.
+ */
+
+package no.found.elasticsearch.transport.netty;
+
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.junit.Test;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLHandshakeException;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.KeyStore;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class TestFoundSSLEngineTemplate {
+    @Test
+    public void testDefaultsPreferGcm() throws Exception {
+        FoundSSLEngineTemplate template = FoundSSLUtils.createEngineTemplate(FoundSSLUtils.createSslContext(false));
+
+        String[] suites = template.getCipherSuites();
+        assertTrue(suites.length > 0);
+        assertTrue(suites[0], suites[0].contains("_GCM_"));
+        assertEquals("HTTPS", template.getEndpointIdentificationAlgorithm());
+    }
+
+    @Test
+    public void testKeepsPreferredOrderAndDropsUnsupported() throws Exception {
+        SSLContext context = FoundSSLUtils.createSslContext(false);
+        FoundSSLEngineTemplate template = new FoundSSLEngineTemplate(context,
+            Arrays.asList("TLS_RSA_WITH_AES_128_CBC_SHA", "NOT_A_REAL_SUITE", "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256"),
+            new String[] {"TLSv1.2"}, null);
+
+        assertArrayEquals(new String[] {"TLS_RSA_WITH_AES_128_CBC_SHA", "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256"}, template.getCipherSuites());
+        assertArrayEquals(new String[] {"TLSv1.2"}, template.getProtocols());
+    }
+
+    @Test
+    public void testFallsBackToContextDefaults() throws Exception {
+        SSLContext context = FoundSSLUtils.createSslContext(false);
+        FoundSSLEngineTemplate template = new FoundSSLEngineTemplate(context, Arrays.asList("NOT_A_REAL_SUITE"), null, null);
+
+        assertArrayEquals(context.getDefaultSSLParameters().getCipherSuites(), template.getCipherSuites());
+        assertArrayEquals(context.getDefaultSSLParameters().getProtocols(), template.getProtocols());
+    }
+
+    @Test
+    public void testAppliedToEngines() throws Exception {
+        FoundSSLHandlerFactory factory = new FoundSSLHandlerFactory(ImmutableSettings.settingsBuilder()
+            .put("transport.found.ssl.handshake_executor.size", 0)
+            .putArray("transport.found.ssl.cipher_suites", "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384", "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256")
+            .build());
+
+        SSLEngine engine = factory.getEngineTemplate().createEngine(new InetSocketAddress("foo.found.io", 9343));
+        assertTrue(engine.getUseClientMode());
+        assertEquals("foo.found.io", engine.getPeerHost());
+        assertEquals(9343, engine.getPeerPort());
+        assertArrayEquals(new String[] {"TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384", "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256"}, engine.getEnabledCipherSuites());
+        assertEquals("HTTPS", engine.getSSLParameters().getEndpointIdentificationAlgorithm());
+    }
+
+    @Test
+    public void testUnsafeTrustManagerMatchesWholeNames() throws Exception {
+        X509Certificate certificate = testCertificate();
+
+        assertTrue(FoundSSLUtils.UnsafeHostnameTrustManager.matchesHost(certificate, "localhost"));
+        assertTrue(FoundSSLUtils.UnsafeHostnameTrustManager.matchesHost(certificate, "LocalHost."));
+        assertTrue(FoundSSLUtils.UnsafeHostnameTrustManager.matchesHost(certificate, "127.0.0.1"));
+        assertFalse(FoundSSLUtils.UnsafeHostnameTrustManager.matchesHost(certificate, "local"));
+        assertFalse(FoundSSLUtils.UnsafeHostnameTrustManager.matchesHost(certificate, "localhost.example.com"));
+        assertFalse(FoundSSLUtils.UnsafeHostnameTrustManager.matchesHost(certificate, "127.0.0.2"));
+    }
+
+    @Test(expected = CertificateException.class)
+    public void testUnsafeTrustManagerChecksTheServerCertificate() throws Exception {
+        new FoundSSLUtils.UnsafeHostnameTrustManager().checkServerTrusted(new X509Certificate[] {testCertificate()}, "RSA",
+            SSLContext.getDefault().createSSLEngine("localhost.example.com", 443));
+    }
+
+    @Test
+    public void testSafeContextIsTheDefaultContext() throws Exception {
+        assertSame(SSLContext.getDefault(), FoundSSLUtils.createSslContext(false));
+    }
+
+    @Test
+    public void testUnsafeTrustManagerChecksTheHostOfTheSocket() throws Exception {
+        SSLSocketFactory socketFactory = FoundSSLUtils.createSslContext(true).getSocketFactory();
+        try (LocalSSLEchoServer server = new LocalSSLEchoServer()) {
+            try (SSLSocket socket = (SSLSocket) socketFactory.createSocket("localhost", server.getPort())) {
+                socket.startHandshake();
+            }
+
+            // the address is that of localhost, but the socket was opened to another host.
+            Socket plain = new Socket("127.0.0.1", server.getPort());
+            try (SSLSocket socket = (SSLSocket) socketFactory.createSocket(plain, "other.example.com", server.getPort(), true)) {
+                socket.startHandshake();
+                fail("the certificate of localhost was accepted for another host");
+            } catch (SSLHandshakeException expected) {
+            }
+        }
+    }
+
+    private static X509Certificate testCertificate() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        try (InputStream in = TestFoundSSLEngineTemplate.class.getResourceAsStream(LocalSSLEchoServer.KEYSTORE)) {
+            keyStore.load(in, LocalSSLEchoServer.KEYSTORE_PASSWORD);
+        }
+        return (X509Certificate) keyStore.getCertificate(keyStore.aliases().nextElement());
+    }
+}
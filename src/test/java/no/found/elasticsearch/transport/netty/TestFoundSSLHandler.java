@@ -0,0 +1,604 @@
+/*
+ * Copyright (c) 2013, Found AS.
+ * See LICENSE for details.
+ */
+
+package no.found.elasticsearch.transport.netty;
+
+import no.found.elasticsearch.transport.netty.ssl.FoundSSLHandler;
+import no.found.elasticsearch.transport.netty.ssl.SslMetrics;
+import org.elasticsearch.common.netty.bootstrap.ClientBootstrap;
+import org.elasticsearch.common.netty.buffer.ChannelBuffer;
+import org.elasticsearch.common.netty.buffer.ChannelBuffers;
+import org.elasticsearch.common.netty.channel.*;
+import org.elasticsearch.common.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.net.ssl.SSLSession;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class TestFoundSSLHandler {
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    private LocalSSLEchoServer server;
+    private NioClientSocketChannelFactory channelFactory;
+    private final List<FoundSSLHandlerFactory> factories = new ArrayList<FoundSSLHandlerFactory>();
+
+    @Before
+    public void setUp() throws Exception {
+        server = new LocalSSLEchoServer();
+        channelFactory = new NioClientSocketChannelFactory(Executors.newCachedThreadPool(), Executors.newCachedThreadPool(), 1, 1);
+    }
+
+    @After
+    public void cleanUp() throws Exception {
+        server.close();
+        channelFactory.releaseExternalResources();
+        for (FoundSSLHandlerFactory factory : factories) {
+            factory.close();
+        }
+    }
+
+    @Test
+    public void testRoundTripWithPooledWrap() throws Exception {
+        roundTrip(factory("transport.found.ssl.wrap_direct", "false"), 1, 100, 20000, 1024 * 1024);
+    }
+
+    @Test
+    public void testRoundTripWithDirectWrap() throws Exception {
+        roundTrip(factory("transport.found.ssl.wrap_direct", "true"), 1, 100, 20000, 1024 * 1024);
+    }
+
+    @Test
+    public void testRoundTripWithBatchUnwrap() throws Exception {
+        roundTrip(factory("transport.found.ssl.batch_unwrap", "true"), 1, 100, 20000, 1024 * 1024);
+    }
+
+    @Test
+    public void testBatchUnwrapCoalescesRecords() throws Exception {
+        ClientConnection connection = connect(factory("transport.found.ssl.batch_unwrap", "true"));
+        try {
+            byte[] bytes = new byte[1024 * 1024];
+            new Random(0).nextBytes(bytes);
+            assertTrue(connection.channel.write(ChannelBuffers.wrappedBuffer(bytes)).await(TIMEOUT_MILLIS));
+
+            ChannelBuffer received = connection.awaitReceived(bytes.length);
+            assertArrayEquals(bytes, toArray(received));
+
+            // the echo server writes at most 8k per record, so anything below that count
+            // means that several records were passed upstream as one message.
+            int records = bytes.length / 8192;
+            synchronized (connection.receiver) {
+                assertTrue("messages received: " + connection.receiver.messages, connection.receiver.messages < records);
+            }
+        } finally {
+            connection.channel.close().awaitUninterruptibly();
+        }
+    }
+
+    @Test
+    public void testManySmallWritesWithDirectWrap() throws Exception {
+        int[] sizes = new int[500];
+        for (int i = 0; i < sizes.length; i++) {
+            sizes[i] = 1 + i % 50;
+        }
+        roundTrip(factory("transport.found.ssl.wrap_direct", "true"), sizes);
+    }
+
+    @Test
+    public void testWritesQueuedDuringHandshakeAreGathered() throws Exception {
+        // the handshake messages are held back until all the writes are queued, so it can't finish in between.
+        ClientConnection connection = connect(factory("transport.found.ssl.wrap_direct", "false"), true);
+        try {
+            int count = 100;
+            ChannelFuture[] futures = new ChannelFuture[count];
+            for (int i = 0; i < count; i++) {
+                futures[i] = connection.channel.write(ChannelBuffers.wrappedBuffer(new byte[] {(byte) i}));
+            }
+            connection.recordCounter.release();
+            for (ChannelFuture future : futures) {
+                assertTrue(future.await(TIMEOUT_MILLIS));
+                assertTrue(future.isSuccess());
+            }
+
+            ChannelBuffer received = connection.awaitReceived(count);
+            assertEquals(count, received.readableBytes());
+            for (int i = 0; i < count; i++) {
+                assertEquals((byte) i, received.getByte(i));
+            }
+
+            // the writes are queued while handshaking, and should leave as a handful of records
+            // together with the handshake messages rather than one record per write.
+            assertTrue("records written: " + connection.recordCounter.records, connection.recordCounter.records < count / 4);
+        } finally {
+            connection.channel.close().awaitUninterruptibly();
+        }
+    }
+
+    @Test
+    public void testConcurrentWriters() throws Exception {
+        final ClientConnection connection = connect(factory("transport.found.ssl.wrap_direct", "true"));
+        try {
+            final int threads = 8;
+            final int writesPerThread = 200;
+            final int writeSize = 100;
+            final List<ChannelFuture> futures = new CopyOnWriteArrayList<ChannelFuture>();
+            final CountDownLatch start = new CountDownLatch(1);
+
+            Thread[] writers = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                final byte[] bytes = new byte[writeSize];
+                Arrays.fill(bytes, (byte) t);
+                writers[t] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            start.await();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                        for (int i = 0; i < writesPerThread; i++) {
+                            futures.add(connection.channel.write(ChannelBuffers.wrappedBuffer(bytes)));
+                        }
+                    }
+                });
+                writers[t].start();
+            }
+            start.countDown();
+            for (Thread writer : writers) {
+                writer.join(TIMEOUT_MILLIS);
+            }
+
+            assertEquals(threads * writesPerThread, futures.size());
+            for (ChannelFuture future : futures) {
+                assertTrue(future.await(TIMEOUT_MILLIS));
+                assertTrue(future.isSuccess());
+            }
+
+            int total = threads * writesPerThread * writeSize;
+            ChannelBuffer received = connection.awaitReceived(total);
+            assertEquals(total, received.readableBytes());
+
+            // every write must arrive in one piece.
+            int[] perThread = new int[threads];
+            for (int offset = 0; offset < total; offset += writeSize) {
+                byte value = received.getByte(offset);
+                for (int i = 1; i < writeSize; i++) {
+                    assertEquals(value, received.getByte(offset + i));
+                }
+                perThread[value]++;
+            }
+            for (int count : perThread) {
+                assertEquals(writesPerThread, count);
+            }
+        } finally {
+            connection.channel.close().awaitUninterruptibly();
+        }
+    }
+
+    @Test
+    public void testHandshakeTasksRunOnHandshakeExecutor() throws Exception {
+        FoundSSLHandlerFactory factory = factory("transport.found.ssl.handshake_executor.size", "1");
+        roundTrip(factory, 1, 100, 20000);
+
+        ThreadPoolExecutor executor = (ThreadPoolExecutor) factory.getHandshakeExecutor();
+        assertTrue("completed handshake tasks: " + executor.getCompletedTaskCount(), executor.getCompletedTaskCount() > 0);
+    }
+
+    @Test
+    public void testRoundTripWithHandshakeOnWorker() throws Exception {
+        FoundSSLHandlerFactory factory = factory("transport.found.ssl.handshake_executor.size", "0");
+        assertNull(factory.getHandshakeExecutor());
+        roundTrip(factory, 1, 100, 20000);
+    }
+
+    @Test
+    public void testHandshakeExecutorByDefault() throws Exception {
+        ThreadPoolExecutor executor = (ThreadPoolExecutor) factory().getHandshakeExecutor();
+        assertEquals(Math.min(4, Runtime.getRuntime().availableProcessors()), executor.getMaximumPoolSize());
+    }
+
+    @Test
+    public void testRejectedHandshakeTasksFailTheHandshake() throws Exception {
+        FoundSSLHandlerFactory factory = factory("transport.found.ssl.handshake_executor.size", "1");
+        // a shut down executor rejects every task, which must not be run on the netty worker instead.
+        factory.getHandshakeExecutor().shutdown();
+
+        ClientConnection connection = connect(factory);
+        ChannelFuture write = connection.channel.write(ChannelBuffers.wrappedBuffer(new byte[] {1}));
+        assertTrue(write.await(TIMEOUT_MILLIS));
+        assertFalse(write.isSuccess());
+        assertTrue(connection.channel.getCloseFuture().await(TIMEOUT_MILLIS));
+    }
+
+    @Test
+    public void testSequentialHandshakesOnHandshakeExecutor() throws Exception {
+        // more threads than there are processors, so the tasks are done at any point of the resume.
+        FoundSSLHandlerFactory factory = factory("transport.found.ssl.handshake_executor.size", "4");
+        for (int i = 0; i < 10; i++) {
+            ClientConnection connection = connect(factory);
+            try {
+                connection.channel.write(ChannelBuffers.wrappedBuffer(new byte[] {(byte) i}));
+                assertEquals((byte) i, connection.awaitReceived(1).getByte(0));
+            } finally {
+                connection.channel.close().awaitUninterruptibly();
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentHandshakes() throws Exception {
+        FoundSSLHandlerFactory factory = factory("transport.found.ssl.handshake_executor.size", "2",
+            "transport.found.ssl.batch_unwrap", "true");
+        List<ClientConnection> connections = new ArrayList<ClientConnection>();
+        try {
+            for (int i = 0; i < 10; i++) {
+                ClientConnection connection = connect(factory);
+                connections.add(connection);
+                connection.channel.write(ChannelBuffers.wrappedBuffer(new byte[] {(byte) i}));
+            }
+            for (int i = 0; i < connections.size(); i++) {
+                ChannelBuffer received = connections.get(i).awaitReceived(1);
+                assertEquals(1, received.readableBytes());
+                assertEquals((byte) i, received.getByte(0));
+            }
+        } finally {
+            for (ClientConnection connection : connections) {
+                connection.channel.close().awaitUninterruptibly();
+            }
+        }
+    }
+
+    @Test
+    public void testMetricsCountBytesAndRecords() throws Exception {
+        FoundSSLHandlerFactory factory = factory();
+        SslMetrics metrics = new SslMetrics();
+        factory.setMetrics(metrics);
+
+        ClientConnection connection = connect(factory);
+        try {
+            echo(connection, 20000);
+            assertEquals(1, metrics.getOpenHandlers());
+            assertEquals(20000, metrics.getPlaintextBytesWritten());
+            assertEquals(20000, metrics.getPlaintextBytesRead());
+            // the handshake and the per-record overhead are only counted as ciphertext
+            assertTrue(metrics.getCiphertextBytesWritten() > metrics.getPlaintextBytesWritten());
+            assertTrue(metrics.getCiphertextBytesRead() > metrics.getPlaintextBytesRead());
+            // 20000 bytes don't fit in a single record
+            assertTrue(metrics.getRecordsWrapped() >= 2);
+            assertTrue(metrics.getRecordsUnwrapped() >= 2);
+            assertEquals(0, metrics.getPendingUnencryptedWrites());
+            assertEquals(0, metrics.getPendingEncryptedWrites());
+        } finally {
+            connection.channel.close().awaitUninterruptibly();
+        }
+        assertEquals(0, metrics.getOpenHandlers());
+    }
+
+    @Test
+    public void testMaxRecordSizeLimitsRecords() throws Exception {
+        FoundSSLHandlerFactory factory = factory();
+        SslMetrics metrics = new SslMetrics();
+        factory.setMetrics(metrics);
+
+        ClientConnection connection = connect(factory);
+        try {
+            echo(connection, 100);
+            connection.channel.getPipeline().get(FoundSSLHandler.class).setMaxRecordSize(1000);
+            long recordsWrapped = metrics.getRecordsWrapped();
+            long plaintextBytesWritten = metrics.getPlaintextBytesWritten();
+
+            echo(connection, 20000);
+            assertEquals(20000, metrics.getPlaintextBytesWritten() - plaintextBytesWritten);
+            assertTrue(metrics.getRecordsWrapped() - recordsWrapped >= 20);
+        } finally {
+            connection.channel.close().awaitUninterruptibly();
+        }
+    }
+
+    @Test
+    public void testDynamicRecordSizingGrowsRecords() throws Exception {
+        FoundSSLHandlerFactory factory = factory("transport.found.ssl.dynamic_record_sizing", "true",
+            "transport.found.ssl.record_size_idle_reset", "1h");
+        SslMetrics metrics = new SslMetrics();
+        factory.setMetrics(metrics);
+
+        ClientConnection connection = connect(factory);
+        try {
+            // a record that isn't filled doesn't grow the records.
+            echo(connection, 100);
+
+            // 1400, 2800, 5600 and then the remaining 10200 bytes.
+            long recordsWrapped = metrics.getRecordsWrapped();
+            echo(connection, 20000);
+            assertEquals(4, metrics.getRecordsWrapped() - recordsWrapped);
+
+            // the records have grown as large as they get.
+            recordsWrapped = metrics.getRecordsWrapped();
+            echo(connection, 20000);
+            assertEquals(2, metrics.getRecordsWrapped() - recordsWrapped);
+        } finally {
+            connection.channel.close().awaitUninterruptibly();
+        }
+    }
+
+    @Test
+    public void testDynamicRecordSizingStartsOverAfterIdle() throws Exception {
+        FoundSSLHandlerFactory factory = factory("transport.found.ssl.dynamic_record_sizing", "true",
+            "transport.found.ssl.record_size_idle_reset", "50ms");
+        SslMetrics metrics = new SslMetrics();
+        factory.setMetrics(metrics);
+
+        ClientConnection connection = connect(factory);
+        try {
+            echo(connection, 20000);
+            Thread.sleep(100);
+
+            long recordsWrapped = metrics.getRecordsWrapped();
+            echo(connection, 20000);
+            assertEquals(4, metrics.getRecordsWrapped() - recordsWrapped);
+        } finally {
+            connection.channel.close().awaitUninterruptibly();
+        }
+    }
+
+    @Test
+    public void testReconnectsResumeSession() throws Exception {
+        FoundSSLHandlerFactory factory = factory();
+        ClientConnection first = connect(factory);
+        ClientConnection second = null;
+        try {
+            echo(first, 100);
+            String cipherSuite = first.channel.getPipeline().get(FoundSSLHandler.class).getEngine().getSession().getCipherSuite();
+            assertTrue(cipherSuite, cipherSuite.contains("_GCM_"));
+            assertEquals(1, factory.getFullHandshakes());
+            assertEquals(0, factory.getResumedHandshakes());
+
+            second = connect(factory);
+            echo(second, 100);
+            assertEquals(1, factory.getFullHandshakes());
+            assertEquals(1, factory.getResumedHandshakes());
+            assertTrue(second.channel.getPipeline().get(FoundSSLHandler.class).isSessionResumed());
+        } finally {
+            first.channel.close().awaitUninterruptibly();
+            if (second != null) {
+                second.channel.close().awaitUninterruptibly();
+            }
+        }
+    }
+
+    @Test
+    public void testSessionCacheSettings() throws Exception {
+        FoundSSLHandlerFactory factory = factory("transport.found.ssl.session_cache.size", "10",
+            "transport.found.ssl.session_cache.timeout", "5m");
+        assertEquals(10, factory.getSslContext().getClientSessionContext().getSessionCacheSize());
+        assertEquals(300, factory.getSslContext().getClientSessionContext().getSessionTimeout());
+    }
+
+    @Test
+    public void testNegotiatesTls13() throws Exception {
+        ClientConnection connection = connect(factory());
+        try {
+            echo(connection, 100);
+            SSLSession session = connection.channel.getPipeline().get(FoundSSLHandler.class).getEngine().getSession();
+            assertEquals("TLSv1.3", session.getProtocol());
+            assertTrue(session.getCipherSuite(), session.getCipherSuite().startsWith("TLS_AES_"));
+        } finally {
+            connection.channel.close().awaitUninterruptibly();
+        }
+    }
+
+    @Test
+    public void testFallsBackToTls12() throws Exception {
+        server.close();
+        server = new LocalSSLEchoServer(new String[]{"TLSv1.2"});
+
+        ClientConnection connection = connect(factory());
+        try {
+            echo(connection, 100);
+            assertEquals("TLSv1.2", connection.channel.getPipeline().get(FoundSSLHandler.class).getEngine().getSession().getProtocol());
+        } finally {
+            connection.channel.close().awaitUninterruptibly();
+        }
+    }
+
+    @Test
+    public void testKeyUpdateIsNotRenegotiation() throws Exception {
+        FoundSSLHandlerFactory factory = factory();
+        ClientConnection connection = connect(factory);
+        try {
+            echo(connection, 100);
+            // on TLS 1.3, this makes the server send a KeyUpdate message.
+            server.getSockets().get(0).startHandshake();
+            echo(connection, 20000);
+            echo(connection, 100);
+
+            assertTrue(connection.channel.isOpen());
+            assertEquals(1, factory.getFullHandshakes() + factory.getResumedHandshakes());
+        } finally {
+            connection.channel.close().awaitUninterruptibly();
+        }
+    }
+
+    @Test
+    public void testPeerHalfCloseClosesChannel() throws Exception {
+        ClientConnection connection = connect(factory());
+        try {
+            echo(connection, 100);
+            server.getSockets().get(0).shutdownOutput();
+
+            FoundSSLHandler sslHandler = connection.channel.getPipeline().get(FoundSSLHandler.class);
+            assertTrue(sslHandler.getSSLEngineInboundCloseFuture().await(TIMEOUT_MILLIS));
+            assertTrue(connection.channel.getCloseFuture().await(TIMEOUT_MILLIS));
+            assertTrue(sslHandler.getEngine().isOutboundDone());
+        } finally {
+            connection.channel.close().awaitUninterruptibly();
+        }
+    }
+
+    private void echo(ClientConnection connection, int size) throws Exception {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        assertTrue(connection.channel.write(ChannelBuffers.wrappedBuffer(bytes)).await(TIMEOUT_MILLIS));
+        assertArrayEquals(bytes, toArray(connection.awaitReceived(size)));
+        connection.clearReceived();
+    }
+
+    private FoundSSLHandlerFactory factory(String... keyValues) {
+        ImmutableSettings.Builder builder = ImmutableSettings.settingsBuilder()
+            .put("transport.found.ssl.unsafe_allow_self_signed", true);
+        for (int i = 0; i < keyValues.length; i += 2) {
+            builder.put(keyValues[i], keyValues[i + 1]);
+        }
+        FoundSSLHandlerFactory factory = new FoundSSLHandlerFactory(builder.build());
+        factories.add(factory);
+        return factory;
+    }
+
+    private void roundTrip(FoundSSLHandlerFactory factory, int... sizes) throws Exception {
+        Random random = new Random(sizes.length);
+        ChannelBuffer expected = ChannelBuffers.dynamicBuffer();
+
+        ClientConnection connection = connect(factory);
+        try {
+            ChannelFuture lastWrite = null;
+            for (int size : sizes) {
+                byte[] bytes = new byte[size];
+                random.nextBytes(bytes);
+                expected.writeBytes(bytes);
+                lastWrite = connection.channel.write(ChannelBuffers.wrappedBuffer(bytes));
+            }
+            assertTrue(lastWrite.await(TIMEOUT_MILLIS));
+            assertTrue(lastWrite.isSuccess());
+
+            ChannelBuffer received = connection.awaitReceived(expected.readableBytes());
+            assertEquals(expected.readableBytes(), received.readableBytes());
+            assertArrayEquals(toArray(expected), toArray(received));
+        } finally {
+            connection.channel.close().awaitUninterruptibly();
+        }
+    }
+
+    private ClientConnection connect(FoundSSLHandlerFactory factory) throws Exception {
+        return connect(factory, false);
+    }
+
+    /**
+     * @param holdRecords whether to hold back the records the client writes until they are released.
+     */
+    private ClientConnection connect(FoundSSLHandlerFactory factory, boolean holdRecords) throws Exception {
+        InetSocketAddress address = new InetSocketAddress("localhost", server.getPort());
+        final FoundSSLHandler sslHandler = factory.newHandler(address);
+        final ReceivingHandler receiver = new ReceivingHandler();
+        final RecordCountingHandler recordCounter = new RecordCountingHandler(holdRecords);
+
+        ClientBootstrap bootstrap = new ClientBootstrap(channelFactory);
+        bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+            @Override
+            public ChannelPipeline getPipeline() throws Exception {
+                return Channels.pipeline(recordCounter, sslHandler, receiver);
+            }
+        });
+
+        ChannelFuture connectFuture = bootstrap.connect(address);
+        assertTrue(connectFuture.await(TIMEOUT_MILLIS));
+        assertTrue(connectFuture.isSuccess());
+        return new ClientConnection(connectFuture.getChannel(), receiver, recordCounter);
+    }
+
+    private static byte[] toArray(ChannelBuffer buffer) {
+        byte[] bytes = new byte[buffer.readableBytes()];
+        buffer.getBytes(buffer.readerIndex(), bytes);
+        return bytes;
+    }
+
+    static class ClientConnection {
+        final Channel channel;
+        final ReceivingHandler receiver;
+        final RecordCountingHandler recordCounter;
+
+        ClientConnection(Channel channel, ReceivingHandler receiver, RecordCountingHandler recordCounter) {
+            this.channel = channel;
+            this.receiver = receiver;
+            this.recordCounter = recordCounter;
+        }
+
+        ChannelBuffer awaitReceived(int length) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS);
+            synchronized (receiver) {
+                while (receiver.received.readableBytes() < length && System.nanoTime() < deadline) {
+                    receiver.wait(100);
+                }
+                return receiver.received.copy();
+            }
+        }
+
+        void clearReceived() {
+            synchronized (receiver) {
+                receiver.received.clear();
+            }
+        }
+    }
+
+    static class ReceivingHandler extends SimpleChannelUpstreamHandler {
+        final ChannelBuffer received = ChannelBuffers.dynamicBuffer();
+        int messages;
+
+        @Override
+        public synchronized void messageReceived(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+            received.writeBytes((ChannelBuffer) e.getMessage());
+            messages++;
+            notifyAll();
+        }
+    }
+
+    static class RecordCountingHandler extends SimpleChannelDownstreamHandler {
+        volatile int records;
+        private List<MessageEvent> held;
+        private ChannelHandlerContext heldContext;
+
+        RecordCountingHandler(boolean hold) {
+            held = hold ? new ArrayList<MessageEvent>() : null;
+        }
+
+        @Override
+        public synchronized void writeRequested(ChannelHandlerContext ctx, MessageEvent e) throws Exception {
+            records++;
+            if (held != null) {
+                heldContext = ctx;
+                held.add(e);
+                return;
+            }
+            super.writeRequested(ctx, e);
+        }
+
+        /**
+         * Writes the held records, and lets the records written from now on through.
+         */
+        synchronized void release() {
+            List<MessageEvent> events = held;
+            held = null;
+            for (MessageEvent e : events) {
+                heldContext.sendDownstream(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2013, Found AS.
+ * See LICENSE for details.
+ */
+
+package no.found.elasticsearch.transport.netty;
+
+import org.elasticsearch.common.netty.buffer.ChannelBuffer;
+import org.elasticsearch.common.netty.buffer.ChannelBuffers;
+import org.elasticsearch.common.unit.TimeValue;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestFoundServerCapabilities {
+    @Test
+    public void testReadSkipsUnknownTunables() {
+        ChannelBuffer buffer = ChannelBuffers.dynamicBuffer();
+        buffer.writeInt(FoundServerCapabilities.KEEP_ALIVE);
+        buffer.writeInt(2);
+        buffer.writeInt(FoundServerCapabilities.IDLE_TIMEOUT);
+        buffer.writeLong(60000);
+        buffer.writeInt(42);
+        buffer.writeLong(7);
+
+        FoundServerCapabilities capabilities = FoundServerCapabilities.read(buffer, buffer.writerIndex());
+
+        assertEquals(2, capabilities.getRevision());
+        assertTrue(capabilities.supports(FoundServerCapabilities.KEEP_ALIVE));
+        assertFalse(capabilities.supports(FoundServerCapabilities.NODE_ROUTING));
+        assertEquals(TimeValue.timeValueSeconds(60), capabilities.getIdleTimeout());
+        assertNull(capabilities.getKeepAliveInterval());
+        assertEquals(0, buffer.readableBytes());
+    }
+
+    @Test
+    public void testReadWithoutCapabilities() {
+        FoundServerCapabilities capabilities = FoundServerCapabilities.read(ChannelBuffers.EMPTY_BUFFER, 0);
+
+        assertEquals(2, capabilities.getRevision());
+        assertNull(capabilities.getIdleTimeout());
+        assertNull(capabilities.getKeepAliveInterval());
+    }
+
+    @Test
+    public void testAdjustKeepAliveInterval() {
+        TimeValue configured = TimeValue.timeValueSeconds(20);
+
+        assertSame(configured, FoundServerCapabilities.NONE.adjustKeepAliveInterval(configured));
+        assertEquals(TimeValue.timeValueSeconds(5), new FoundServerCapabilities(2, 0, -1, 5000).adjustKeepAliveInterval(configured));
+        assertEquals(TimeValue.timeValueSeconds(15), new FoundServerCapabilities(2, 0, 30000, -1).adjustKeepAliveInterval(configured));
+        assertEquals(TimeValue.timeValueSeconds(10), new FoundServerCapabilities(2, 0, 20000, 15000).adjustKeepAliveInterval(configured));
+        assertSame(configured, new FoundServerCapabilities(2, 0, 60000, 30000).adjustKeepAliveInterval(configured));
+
+        TimeValue disabled = TimeValue.timeValueMillis(0);
+        assertSame(disabled, new FoundServerCapabilities(2, 0, 20000, 15000).adjustKeepAliveInterval(disabled));
+    }
+}
@@ -9,6 +9,8 @@ import java.nio.charset.StandardCharsets;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 
 public class TestFoundTransportHeader {
     @Test
@@ -36,4 +38,84 @@ public class TestFoundTransportHeader {
 
         assertEquals(0, headerBuffer.readableBytes());
     }
+
+    @Test
+    public void testHeaderBufferIsReusable() throws IOException {
+        FoundTransportHeader fth = new FoundTransportHeader("test-cluster", "test-key");
+
+        ChannelBuffer first = fth.getHeaderBuffer();
+        first.skipBytes(first.readableBytes());
+
+        ChannelBuffer second = fth.getHeaderBuffer();
+        assertEquals(second.getInt(0), second.readableBytes() - 4);
+        assertEquals(new FoundTransportHeader("test-cluster", "test-key").getHeaderBuffer(), second);
+    }
+
+    @Test
+    public void testDerivedHeadersAreReused() {
+        FoundTransportHeader fth = new FoundTransportHeader("test-cluster", "test-key");
+
+        assertSame(fth, fth.withRevision(1));
+        assertSame(fth.withRevision(2), fth.withRevision(2));
+        assertEquals(2, fth.withRevision(2).getRevision());
+
+        FoundTransportHeader revision2 = fth.withRevision(2);
+        assertSame(revision2.routedTo("node-1"), revision2.routedTo("node-1"));
+        assertNotSame(revision2.routedTo("node-1"), revision2.routedTo("node-2"));
+        assertEquals("node-2", revision2.routedTo("node-2").getTargetNode());
+    }
+
+    @Test
+    public void testForgottenNodesAreNotKept() {
+        FoundTransportHeader fth = new FoundTransportHeader("test-cluster", "test-key");
+        FoundTransportHeader routed = fth.withRevision(2).routedTo("node-1");
+
+        fth.forgetRoutedTo("node-1");
+        assertNotSame(routed, fth.withRevision(2).routedTo("node-1"));
+        assertEquals("node-1", fth.withRevision(2).routedTo("node-1").getTargetNode());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRevision1CannotBeRouted() {
+        new FoundTransportHeader("test-cluster", "test-key").routedTo("node-1");
+    }
+
+    @Test
+    public void testRevision2HeaderBufferEndsWithCapabilitiesAndTargetNode() throws IOException {
+        FoundTransportHeader fth = new FoundTransportHeader("test-cluster", "test-key").withRevision(2);
+        ChannelBuffer revision1 = new FoundTransportHeader("test-cluster", "test-key").getHeaderBuffer();
+
+        ChannelBuffer headerBuffer = fth.getHeaderBuffer();
+        assertEquals(headerBuffer.readInt(), headerBuffer.readableBytes()); // header length
+
+        assertEquals(4, headerBuffer.readInt()); // revision size
+        assertEquals(2, headerBuffer.readInt()); // revision
+
+        // the same fields as a revision 1 header
+        revision1.skipBytes(12);
+        assertEquals(revision1, headerBuffer.readBytes(revision1.readableBytes()));
+
+        assertEquals(4, headerBuffer.readInt()); // capabilities size
+        assertEquals(FoundTransportHeader.CLIENT_CAPABILITIES, headerBuffer.readInt());
+        assertEquals(0, headerBuffer.readInt()); // empty target node
+
+        assertEquals(0, headerBuffer.readableBytes());
+    }
+
+    @Test
+    public void testRoutedRevision2HeaderKeepsRevision() throws IOException {
+        FoundTransportHeader fth = new FoundTransportHeader("test-cluster", "test-key", null, 2).routedTo("node-1");
+        assertEquals(2, fth.getRevision());
+
+        ChannelBuffer headerBuffer = fth.getHeaderBuffer();
+        headerBuffer.skipBytes(headerBuffer.readableBytes() - "node-1".length() - 4);
+
+        assertEquals("node-1".length(), headerBuffer.readInt()); // target node size
+        assertArrayEquals("node-1".getBytes(StandardCharsets.UTF_8), headerBuffer.readBytes("node-1".length()).array()); // target node
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsUnknownRevision() {
+        new FoundTransportHeader("test-cluster", "test-key", null, 3);
+    }
 }
@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2013, Found AS.
+ * See LICENSE for details.
+ */
+
+package no.found.elasticsearch.transport.netty;
+
+import no.found.elasticsearch.transport.netty.ssl.ImmediateExecutor;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.netty.channel.ChannelFuture;
+import org.elasticsearch.common.netty.channel.ChannelPipeline;
+import org.elasticsearch.common.netty.channel.ChannelPipelineFactory;
+import org.elasticsearch.common.netty.channel.Channels;
+import org.elasticsearch.common.netty.channel.socket.nio.NioClientSocketChannelFactory;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class TestSpreadingClientBootstrap {
+    private static final String HOST = "test.found.io";
+
+    ESLogger logger = ESLoggerFactory.getLogger(getClass().getCanonicalName());
+
+    private ScheduledExecutorService scheduler;
+    private NioClientSocketChannelFactory channelFactory;
+    private List<Listener> listeners = new ArrayList<Listener>();
+
+    @Before
+    public void setUp() {
+        scheduler = Executors.newScheduledThreadPool(1);
+        channelFactory = new NioClientSocketChannelFactory(Executors.newCachedThreadPool(), Executors.newCachedThreadPool());
+    }
+
+    @After
+    public void cleanUp() throws IOException {
+        for (Listener listener : listeners) {
+            listener.close();
+        }
+        channelFactory.releaseExternalResources();
+        scheduler.shutdownNow();
+    }
+
+    @Test
+    public void testSpreadsConnectionsAcrossAddresses() throws Exception {
+        Listener first = listen(address(1), 0);
+        Listener second = listen(address(2), first.getPort());
+        SpreadingClientBootstrap bootstrap = createBootstrap(address(1), address(2));
+
+        for (int i = 0; i < 4; i++) {
+            ChannelFuture future = bootstrap.connect(new InetSocketAddress(address(1), first.getPort()));
+            assertTrue(future.awaitUninterruptibly(5000));
+            assertTrue(future.isSuccess());
+            assertTrue(future.getChannel().isConnected());
+        }
+
+        assertAccepted(first, 2);
+        assertAccepted(second, 2);
+    }
+
+    @Test
+    public void testFailedAddressFallsBackToNext() throws Exception {
+        Listener listener = listen(address(1), 0);
+        SpreadingClientBootstrap bootstrap = createBootstrap(address(3), address(1));
+
+        for (int i = 0; i < 2; i++) {
+            ChannelFuture future = bootstrap.connect(new InetSocketAddress(address(1), listener.getPort()));
+            assertTrue(future.awaitUninterruptibly(5000));
+            assertTrue(future.isSuccess());
+            assertEquals(address(1), ((InetSocketAddress) future.getChannel().getRemoteAddress()).getAddress());
+        }
+        assertAccepted(listener, 2);
+    }
+
+    @Test
+    public void testFailsWhenAllAddressesFail() throws Exception {
+        ServerSocket unused = new ServerSocket(0, 1, address(1));
+        int port = unused.getLocalPort();
+        unused.close();
+
+        SpreadingClientBootstrap bootstrap = createBootstrap(address(1), address(3));
+        ChannelFuture future = bootstrap.connect(new InetSocketAddress(address(1), port));
+        assertTrue(future.awaitUninterruptibly(5000));
+        assertFalse(future.isSuccess());
+        assertNotNull(future.getCause());
+    }
+
+    @Test
+    public void testOtherHostsAreConnectedAsUsual() throws Exception {
+        Listener listener = listen(address(1), 0);
+        final AtomicInteger lookups = new AtomicInteger();
+        SpreadingClientBootstrap bootstrap = createBootstrap(lookups, address(2));
+
+        ChannelFuture future = bootstrap.connect(new InetSocketAddress(InetAddress.getByAddress("localhost", new byte[] {127, 0, 0, 1}), listener.getPort()));
+        assertTrue(future.awaitUninterruptibly(5000));
+        assertTrue(future.isSuccess());
+        assertEquals(0, lookups.get());
+        assertAccepted(listener, 1);
+    }
+
+    private static InetAddress address(int last) throws UnknownHostException {
+        return InetAddress.getByAddress(HOST, new byte[] {127, 0, 0, (byte) last});
+    }
+
+    private SpreadingClientBootstrap createBootstrap(InetAddress... addresses) {
+        return createBootstrap(new AtomicInteger(), addresses);
+    }
+
+    private SpreadingClientBootstrap createBootstrap(final AtomicInteger lookups, final InetAddress... addresses) {
+        FoundAddressResolver resolver = new FoundAddressResolver(logger, scheduler, ImmediateExecutor.INSTANCE, TimeValue.timeValueMillis(0)) {
+            @Override
+            protected InetAddress[] lookup(String host) throws UnknownHostException {
+                lookups.incrementAndGet();
+                return addresses;
+            }
+        };
+        // the first lookup resolves the host, as the executor runs it right away.
+        resolver.getAddresses(HOST);
+        lookups.set(0);
+
+        FoundConnectionProfile profile = FoundConnectionProfile.builder()
+            .header(new FoundTransportHeader("cluster", "api-key"))
+            .sslHandlerFactory(new FoundSSLHandlerFactory(ImmutableSettings.EMPTY))
+            .hostSuffixes(".found.io")
+            .build();
+        SpreadingClientBootstrap bootstrap = new SpreadingClientBootstrap(channelFactory, resolver, scheduler, profile,
+            TimeValue.timeValueMillis(100));
+        bootstrap.setPipelineFactory(new ChannelPipelineFactory() {
+            @Override
+            public ChannelPipeline getPipeline() throws Exception {
+                return Channels.pipeline();
+            }
+        });
+        return bootstrap;
+    }
+
+    private Listener listen(InetAddress address, int port) throws IOException {
+        Listener listener = new Listener(new ServerSocket(port, 50, address));
+        listeners.add(listener);
+        listener.start();
+        return listener;
+    }
+
+    private void assertAccepted(Listener listener, int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (listener.accepted.get() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, listener.accepted.get());
+    }
+
+    private static class Listener extends Thread {
+        private final ServerSocket serverSocket;
+        private final List<Socket> sockets = new ArrayList<Socket>();
+        final AtomicInteger accepted = new AtomicInteger();
+
+        Listener(ServerSocket serverSocket) {
+            this.serverSocket = serverSocket;
+            setDaemon(true);
+        }
+
+        int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Socket socket = serverSocket.accept();
+                    synchronized (sockets) {
+                        sockets.add(socket);
+                    }
+                    accepted.incrementAndGet();
+                }
+            } catch (IOException e) {
+                // closed
+            }
+        }
+
+        void close() throws IOException {
+            serverSocket.close();
+            synchronized (sockets) {
+                for (Socket socket : sockets) {
+                    socket.close();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2013, Found AS.
+ * See LICENSE for details.
+ */
+
+package no.found.elasticsearch.transport.netty;
+
+import no.found.elasticsearch.transport.netty.ssl.SslBufferPool;
+import org.elasticsearch.common.settings.ImmutableSettings;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class TestSslBufferPool {
+    @Test
+    public void testCountsHitsAndMisses() throws Exception {
+        SslBufferPool pool = new SslBufferPool(1024 * 1024, 4, false);
+
+        ByteBuffer first = pool.acquireBuffer();
+        ByteBuffer second = pool.acquireBuffer();
+        assertEquals(0, pool.getHits());
+        assertEquals(2, pool.getMisses());
+        assertEquals(2, pool.getHighWaterMark());
+
+        pool.releaseBuffer(first);
+        pool.releaseBuffer(second);
+
+        ByteBuffer third = pool.acquireBuffer();
+        assertSame(second, third);
+        assertEquals(1, pool.getHits());
+        assertEquals(2, pool.getMisses());
+        assertEquals(2, pool.getHighWaterMark());
+        pool.releaseBuffer(third);
+    }
+
+    @Test
+    public void testStripesShareThePoolSize() throws Exception {
+        SslBufferPool single = new SslBufferPool(18 * 1024 * 1024);
+        SslBufferPool striped = new SslBufferPool(18 * 1024 * 1024, 8, false);
+
+        assertEquals(1, single.getStripeCount());
+        assertEquals(8, striped.getStripeCount());
+        assertTrue(striped.getMaxPoolSize() >= single.getMaxPoolSize());
+    }
+
+    @Test
+    public void testDirectBuffers() throws Exception {
+        SslBufferPool pool = new SslBufferPool(1024 * 1024, 1, true);
+        ByteBuffer buffer = pool.acquireBuffer();
+        assertTrue(buffer.isDirect());
+        pool.releaseBuffer(buffer);
+    }
+
+    @Test
+    public void testFactorySettings() throws Exception {
+        FoundSSLHandlerFactory factory = new FoundSSLHandlerFactory(ImmutableSettings.settingsBuilder()
+            .put("transport.found.ssl.buffer_pool.size", "1mb")
+            .put("transport.found.ssl.buffer_pool.stripes", 3)
+            .put("transport.found.ssl.buffer_pool.direct", true)
+            .build());
+
+        SslBufferPool pool = factory.getBufferPool();
+        assertEquals(3, pool.getStripeCount());
+        assertTrue(pool.isDirect());
+        assertTrue(pool.getMaxPoolSize() < 2 * 1024 * 1024);
+    }
+}